@@ -16,6 +16,7 @@ import android.widget.TextView;
 import com.ticketapp.auth.app.main.FileManager;
 import com.ticketapp.auth.app.main.TicketActivity;
 import com.ticketapp.auth.app.ulctools.Reader;
+import com.ticketapp.auth.ticket.TicketContext;
 import com.ticketapp.auth.R;
 
 public class ConsolePopup extends DialogFragment {
@@ -27,8 +28,20 @@ public class ConsolePopup extends DialogFragment {
     private final View.OnClickListener btn_archive_listener = new View.OnClickListener() {
         public void onClick(View v) {
             FileManager.saveLog(TicketActivity.outer);
+            FileManager.saveTimings(TicketActivity.outer);
             console.setText("");
-            Reader.history = "";
+            Reader.history.clear();
+        }
+    };
+
+    private Button btn_timings;
+    private final View.OnClickListener btn_timings_listener = new View.OnClickListener() {
+        public void onClick(View v) {
+            Reader.history.message("\nTap phase times in microseconds\n" + TicketContext.forApp(TicketActivity.outer).getTimings().report()
+                    + "\nCommand timeouts\n" + Reader.getTimeouts().report()
+                    + "\nCard links\n" + Reader.getConnection().report()
+                    + "--------------------------------");
+            update();
         }
     };
 
@@ -42,11 +55,14 @@ public class ConsolePopup extends DialogFragment {
         View view = inflater.inflate(R.layout.console_popup, container);
         console = view.findViewById(R.id.console);
         scrollView = view.findViewById(R.id.scrollView);
-        console.setText(Reader.history);
+        console.setText(Reader.history.toText());
         btn_archive = view.findViewById(R.id.btn_console_archive);
 
         btn_archive.setOnClickListener(btn_archive_listener);
 
+        btn_timings = view.findViewById(R.id.btn_console_timings);
+        btn_timings.setOnClickListener(btn_timings_listener);
+
         console_hint = view.findViewById(R.id.console_hint);
 
         if (console.getText().length() >= 1) {
@@ -59,7 +75,7 @@ public class ConsolePopup extends DialogFragment {
     }
 
     public void update() {
-        console.setText(Reader.history);
+        console.setText(Reader.history.toText());
         if (console.getText().length() >= 1) {
             console_hint.setVisibility(View.GONE);
         }
@@ -18,9 +18,12 @@ import android.widget.ImageButton;
 import android.widget.PopupMenu;
 import android.widget.TextView;
 
+import com.ticketapp.auth.app.main.NfcWorker;
 import com.ticketapp.auth.app.main.TicketActivity;
 import com.ticketapp.auth.app.ulctools.Dump;
+import com.ticketapp.auth.app.ulctools.EventLog;
 import com.ticketapp.auth.app.ulctools.Reader;
+import com.ticketapp.auth.ticket.TicketLayout;
 import com.ticketapp.auth.R;
 
 public class DumpFragment extends Fragment {
@@ -30,6 +33,7 @@ public class DumpFragment extends Fragment {
     private static String received_data = "";
     private static TextView card_data;
     private static final byte[] data = new byte[192];
+    private static final TicketLayout ticketLayout = new TicketLayout();
     private static boolean stringAsBinary = false;
     private static ActionBar actionBar;
     private static TextView safeMode_indicator;
@@ -51,30 +55,58 @@ public class DumpFragment extends Fragment {
         if (TicketActivity.nfcA_available) DumpFragment.read(false);
     }
 
-    public static void read(boolean display) {
-        boolean autoAuth = TicketActivity.autoAuth;
+    public static void read(final boolean display) {
+        final boolean autoAuth = TicketActivity.autoAuth;
         if (TicketActivity.nfcA_available) {
-            String info = "";
-            if (Reader.connect()) {
-                Reader.readMemory(data, autoAuth, display);
-                Reader.disconnect();
-                int mode = 0;
-                if (stringAsBinary) mode = 1;
-                received_data = Dump.hexView(data, mode);
-                card_data.setText(received_data);
-                card_auth0 = (int) data[42 * 4];
-                card_auth1 = (int) data[43 * 4];
-                if (card_auth0 > 2 && card_auth0 <= 48) {
-                    if (card_auth1 == 1) info += "write protected starting from page " + card_auth0;
-                    else if (card_auth1 == 0)
-                        info += "R/W protected starting from page " + card_auth0;
+            NfcWorker.submit(new NfcWorker.Job<byte[]>() {
+                @Override
+                public byte[] run() {
+                    if (!Reader.connect()) return null;
+                    byte[] memory = new byte[data.length];
+                    Reader.readMemory(memory, autoAuth, display);
+                    Reader.disconnect();
+                    return memory;
                 }
-                auth_info.setText(info);
-                auth_info.setEllipsize(TextUtils.TruncateAt.MARQUEE);
-                auth_info.setSelected(true);
-                tag_hint.setVisibility(View.GONE);
-            }
+
+                @Override
+                public void done(byte[] memory) {
+                    if (memory != null) show(memory);
+                }
+            });
+        }
+    }
+
+    /**
+     * Show a memory image read from the card.
+     */
+    private static void show(byte[] memory) {
+        String info = "";
+        System.arraycopy(memory, 0, data, 0, data.length);
+        int mode = 0;
+        if (stringAsBinary) mode = 1;
+        received_data = view(mode);
+        card_data.setText(received_data);
+        card_auth0 = (int) data[42 * 4];
+        card_auth1 = (int) data[43 * 4];
+        if (card_auth0 > 2 && card_auth0 <= 48) {
+            if (card_auth1 == 1) info += "write protected starting from page " + card_auth0;
+            else if (card_auth1 == 0)
+                info += "R/W protected starting from page " + card_auth0;
         }
+        auth_info.setText(info);
+        auth_info.setEllipsize(TextUtils.TruncateAt.MARQUEE);
+        auth_info.setSelected(true);
+        tag_hint.setVisibility(View.GONE);
+    }
+
+    /**
+     * @param mode 0 for hex, 1 for binary
+     * @return the memory, followed by the ticket fields decoded from it
+     */
+    private static String view(int mode) {
+        return Dump.hexView(data, mode) + "\nTicket (pages " + TicketLayout.FIRST_PAGE + " - "
+                + (TicketLayout.FIRST_PAGE + TicketLayout.PAGES - 1) + ")\n"
+                + ticketLayout.wrap(data, TicketLayout.FIRST_PAGE * 4).describe();
     }
 
     public static void erase() {
@@ -168,6 +200,10 @@ public class DumpFragment extends Fragment {
             pum.getMenu().getItem(0).setEnabled(false);
             pum.getMenu().getItem(1).setEnabled(false);
         }
+        MenuItem readerMode = pum.getMenu().findItem(R.id.action_reader_mode);
+        readerMode.setChecked(TicketActivity.readerMode);
+        readerMode.setEnabled(TicketActivity.isReaderModeAvailable());
+        pum.getMenu().findItem(logLevelItem(Reader.history.getLevel())).setChecked(true);
         pum.setOnMenuItemClickListener(new PopupMenu.OnMenuItemClickListener() {
             @Override
             public boolean onMenuItemClick(MenuItem item) {
@@ -178,6 +214,18 @@ public class DumpFragment extends Fragment {
                     case R.id.action_auth_test:
                         Reader.testAuthenticate();
                         break;
+                    case R.id.action_reader_mode:
+                        ((TicketActivity) getActivity()).setReaderMode(!item.isChecked());
+                        break;
+                    case R.id.action_log_off:
+                        Reader.history.setLevel(EventLog.Level.OFF);
+                        break;
+                    case R.id.action_log_messages:
+                        Reader.history.setLevel(EventLog.Level.MESSAGES);
+                        break;
+                    case R.id.action_log_commands:
+                        Reader.history.setLevel(EventLog.Level.COMMANDS);
+                        break;
                     default:
                         break;
                 }
@@ -189,16 +237,27 @@ public class DumpFragment extends Fragment {
 
     }
 
+    private static int logLevelItem(EventLog.Level level) {
+        switch (level) {
+            case OFF:
+                return R.id.action_log_off;
+            case COMMANDS:
+                return R.id.action_log_commands;
+            default:
+                return R.id.action_log_messages;
+        }
+    }
+
     private void switchStringView() {
         stringAsBinary = !stringAsBinary;
         if (stringAsBinary) {
             string_switch.setTitle("BIN");
-            received_data = Dump.hexView(data, 1);
+            received_data = view(1);
             card_data.setText(received_data);
             btn_tools.setAlpha(150);
         } else {
             string_switch.setTitle("HEX");
-            received_data = Dump.hexView(data, 0);
+            received_data = view(0);
             card_data.setText(received_data);
             btn_tools.setAlpha(255);
         }
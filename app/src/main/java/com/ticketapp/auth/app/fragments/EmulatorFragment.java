@@ -8,35 +8,44 @@ import android.app.Fragment;
 import android.media.AudioManager;
 import android.media.ToneGenerator;
 import android.os.Bundle;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.TextView;
 
+import com.ticketapp.auth.app.main.NfcWorker;
+import com.ticketapp.auth.app.main.TicketActivity;
+import com.ticketapp.auth.app.ulctools.EventLog;
 import com.ticketapp.auth.app.ulctools.Reader;
 import com.ticketapp.auth.app.ulctools.Utilities;
 import com.ticketapp.auth.ticket.Ticket;
+import com.ticketapp.auth.ticket.TicketContext;
+import com.ticketapp.auth.ticket.TicketResult;
 import com.ticketapp.auth.R;
 
 import java.security.GeneralSecurityException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.Date;
 
 public class EmulatorFragment extends Fragment {
+
     private static Ticket ticket;
+    private static final DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy hh:mm");
 
     private static TextView ticket_info;
 
     private Button btn_issue;
     private Button btn_validate;
 
-    public boolean issue_mode = false;
-    public boolean active = false;
+    // read by the thread that discovers the cards
+    public volatile boolean issue_mode = false;
+    public volatile boolean active = false;
 
     public EmulatorFragment() {
         try {
-            ticket = new Ticket();
+            ticket = new Ticket(TicketContext.forApp(TicketActivity.outer));
             active = true;
         } catch (GeneralSecurityException g) {
             Utilities.log(g.toString(), true);
@@ -59,10 +68,20 @@ public class EmulatorFragment extends Fragment {
         }
     };
 
+    /**
+     * Enable the buttons for a card in the field. Called on the main thread.
+     */
     public void setCardAvailable(boolean b) {
         btn_validate.setEnabled(b);
         btn_issue.setEnabled(b);
-        active = b;
+    }
+
+    /**
+     * Queue the job of the selected mode for a new card, if this fragment is shown. Can be
+     * called on any thread, the views are only touched by the jobs on the main thread.
+     */
+    public void cardDiscovered(boolean shown) {
+        active = shown;
         if (issue_mode) {
             issue();
         } else {
@@ -71,57 +90,79 @@ public class EmulatorFragment extends Fragment {
     }
 
     public void issue() {
-        if (active && Reader.connect()) {
-            try {
-                ticket.issue(2, 3);
-                ticket_info.setText(Ticket.getInfoToShow());
-            } catch (Exception e) {
-                e.printStackTrace();
+        if (!active) return;
+        NfcWorker.submit(new NfcWorker.Job<TicketResult>() {
+            @Override
+            public TicketResult run() throws Exception {
+                if (!Reader.connect()) return null;
+                try {
+                    ticket.issue(2, 3);
+                    logSession();
+                    return ticket.getResult();
+                } finally {
+                    Reader.disconnect();
+                }
             }
-            Reader.disconnect();
-        }
+
+            @Override
+            public void done(TicketResult result) {
+                if (result != null) ticket_info.setText(result.render(dateFormat));
+            }
+        });
     }
 
     public void use() {
-        if (active && Reader.connect()) {
-            try {
-                int currentTime = (int) ((new Date()).getTime() / 1000 / 60);
-                int uses = ticket.getRemainingUses();
-                int expiryTime = ticket.getExpiryTime();
-
-                ticket.use();
-
-                Reader.disconnect();
-                boolean valid = ticket.isValid();
-                String msg;
-
-                if (valid) {
-                    msg = "Used ticket successfully. The ticket was valid.";
-                } else {
-                    msg = "Ticket use FAILED. The following data may be INVALID.";
+        if (!active) return;
+        NfcWorker.submit(new NfcWorker.Job<TicketResult>() {
+            @Override
+            public TicketResult run() throws Exception {
+                if (!Reader.connect()) return null;
+                try {
+                    ticket.use();
+                    logSession();
+                    return ticket.getResult();
+                } finally {
+                    Reader.disconnect();
                 }
-                System.out.println(msg);
-                Reader.history += "\n" + msg + "\n";
-
-                String info = "Current time:\n"
-                        + new Date((long) currentTime * 60 * 1000) + "\n\nExpiry time:\n"
-                        + new Date((long) expiryTime * 60 * 1000) + "\n\nRemaining uses: " + uses + "\n";
-                System.out.println(info);
-                Reader.history += "\n" + info + "\n--------------------------------";
+            }
 
-                if (valid) {
+            @Override
+            public void done(TicketResult result) {
+                if (result == null) return;
+                if (Reader.history.isLogging(EventLog.Level.MESSAGES)) {
+                    String msg;
+                    if (result.isValid()) {
+                        msg = "Used ticket successfully. The ticket was valid.";
+                    } else {
+                        msg = "Ticket use FAILED. The following data may be INVALID.";
+                    }
+                    String info = "Current time:\n" + new Date()
+                            + "\n\nExpiry time:\n" + (result.getExpiry() > 0 ? new Date(result.getExpiry() * 1000) : "-")
+                            + "\n\nRemaining uses: " + (result.getRemaining() >= 0 ? result.getRemaining() : "-") + "\n";
+                    Reader.history.message("\n" + msg + "\n\n" + info + "\n--------------------------------");
+                }
+                if (result.isValid()) {
                     ToneGenerator toneG = new ToneGenerator(AudioManager.STREAM_RING, 100);
                     toneG.startTone(ToneGenerator.TONE_CDMA_ALERT_CALL_GUARD, 100);
                 } else {
                     ToneGenerator toneG = new ToneGenerator(AudioManager.STREAM_RING, 100);
                     toneG.startTone(ToneGenerator.TONE_CDMA_ABBR_INTERCEPT, 100);
                 }
-                ticket_info.setText(Ticket.getInfoToShow());
-            } catch (GeneralSecurityException g) {
-                 Log.d("Error", g.toString());
+                ticket_info.setText(result.render(dateFormat));
             }
-            Reader.disconnect();
-        }
+        });
+    }
+
+    /**
+     * Write what the last issue or use did to the card into the log. Called on the NFC worker.
+     */
+    private static void logSession() {
+        if (!Reader.history.isLogging(EventLog.Level.MESSAGES)) return;
+        Reader.history.message("\nPages written: " + ticket.getSession().getWrittenPages()
+                + ", unchanged pages skipped: " + ticket.getSession().getSkippedWrites()
+                + ", key cache hit rate: " + Math.round(TicketContext.forApp(TicketActivity.outer).getKeyCache().getHitRate() * 100) + "%"
+                + ", static MACs already verified: " + TicketContext.forApp(TicketActivity.outer).getStaticMacs().getHits()
+                + ", retries: " + ticket.getSession().getRetries() + "\n");
     }
 
     @Override
@@ -12,6 +12,7 @@ import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.TextView;
 
+import com.ticketapp.auth.app.main.NfcWorker;
 import com.ticketapp.auth.app.ulctools.Reader;
 import com.ticketapp.auth.R;
 
@@ -26,11 +27,18 @@ public class ErasePopup extends DialogFragment {
 
     private final View.OnClickListener btn_erase_listener = new View.OnClickListener() {
         public void onClick(View v) {
-            if (Reader.connect()) {
-                Reader.erase(erase_auth);
-                Reader.disconnect();
-                DumpFragment.update();
-            }
+            final boolean auth = erase_auth;
+            NfcWorker.submit(new NfcWorker.Job<Void>() {
+                @Override
+                public Void run() {
+                    if (Reader.connect()) {
+                        Reader.erase(auth);
+                        Reader.disconnect();
+                    }
+                    return null;
+                }
+            });
+            DumpFragment.update();
             dismiss();
         }
     };
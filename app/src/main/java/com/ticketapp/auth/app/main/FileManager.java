@@ -11,6 +11,8 @@ import android.widget.Toast;
 import com.ticketapp.auth.app.fragments.FileNameComparator;
 import com.ticketapp.auth.app.fragments.KeyListFragment;
 import com.ticketapp.auth.app.ulctools.Reader;
+import com.ticketapp.auth.ticket.TapTimings;
+import com.ticketapp.auth.ticket.TicketContext;
 import com.ticketapp.auth.R;
 
 import java.io.BufferedReader;
@@ -33,6 +35,7 @@ public class FileManager {
     public static ArrayList<String> keys = new ArrayList<String>();
     public static ArrayList<String> fileNames = new ArrayList<String>();
     private static final String defaultKey = "default,BREAKMEIFYOUCAN!";
+    public static final String METRICS_FILE = "metrics.prom";
 
     public static void writeKeys(Context context) {
         try {
@@ -45,7 +48,7 @@ public class FileManager {
             }
             outputStreamWriter.close();
         } catch (IOException e) {
-            Reader.history += "\nKey write error " + Calendar.getInstance().getTime() + "\n";
+            Reader.history.message("\nKey write error " + Calendar.getInstance().getTime() + "\n");
         }
     }
 
@@ -91,12 +94,12 @@ public class FileManager {
                 outputStreamWriter.write(defaultKey + "\n");
             }
         } catch (FileNotFoundException e) {
-            Reader.history += "\nKey file FileNotFoundException " + Calendar.getInstance().getTime() + "\n";
+            Reader.history.message("\nKey file FileNotFoundException " + Calendar.getInstance().getTime() + "\n");
             Log.e("log activity", "File not found: " + e.toString());
             writeKeys(context);
 
         } catch (IOException e) {
-            Reader.history += "\nKey file IOException " + Calendar.getInstance().getTime() + "\n";
+            Reader.history.message("\nKey file IOException " + Calendar.getInstance().getTime() + "\n");
             Log.e("log activity", "Can not read file: " + e.toString());
         }
         return keys;
@@ -143,7 +146,7 @@ public class FileManager {
 
 
     public static void saveLog(Context context) {
-        if (Reader.history.length() > 0) {
+        if (!Reader.history.isEmpty()) {
             String currentTimeStamp;
             Toast.makeText(context, context.getString(R.string.log_saved_msg), Toast.LENGTH_SHORT).show();
 
@@ -153,7 +156,7 @@ public class FileManager {
             try {
                 OutputStreamWriter outputStreamWriter = new OutputStreamWriter(context.openFileOutput("log_" + currentTimeStamp + ".txt", Context.MODE_PRIVATE));
 
-                outputStreamWriter.write(Reader.history);
+                outputStreamWriter.write(Reader.history.toText());
 
                 outputStreamWriter.close();
             } catch (IOException e) {
@@ -161,6 +164,51 @@ public class FileManager {
         }
     }
 
+    /**
+     * Save the tap phase histograms as a text file, shown in the archive with the logs.
+     */
+    public static void saveTimings(Context context) {
+        TapTimings timings = TicketContext.forApp(context).getTimings();
+        if (timings.get(TapTimings.Phase.ISSUE_TOTAL).getCount() == 0
+                && timings.get(TapTimings.Phase.USE_TOTAL).getCount() == 0) return;
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd-HH:mm:ss");
+        String currentTimeStamp = dateFormat.format(new Date());
+
+        try {
+            OutputStreamWriter outputStreamWriter = new OutputStreamWriter(context.openFileOutput("log_timings_" + currentTimeStamp + ".txt", Context.MODE_PRIVATE));
+
+            outputStreamWriter.write("Tap phase times in microseconds\n" + timings.report()
+                    + "\nCommand timeouts\n" + Reader.getTimeouts().report()
+                    + "\nCard links\n" + Reader.getConnection().report());
+
+            outputStreamWriter.close();
+        } catch (IOException e) {
+            Log.e("log activity", "Can not write timings: " + e.toString());
+        }
+    }
+
+    /**
+     * Write the tap counters to metrics.prom in the Prometheus text format, for a collector
+     * that pulls the file from the device. The file is replaced whole, so it is never read
+     * half written.
+     */
+    public static void saveMetrics(Context context) {
+        String snapshot = TicketContext.forApp(context).getMetrics().snapshot(Reader.getTimeouts().getTagsLost(),
+                Reader.getTimeouts().getTimedOut());
+        try {
+            OutputStreamWriter outputStreamWriter = new OutputStreamWriter(context.openFileOutput(METRICS_FILE + ".tmp", Context.MODE_PRIVATE));
+            outputStreamWriter.write(snapshot);
+            outputStreamWriter.close();
+            File dir = context.getFilesDir();
+            if (!new File(dir, METRICS_FILE + ".tmp").renameTo(new File(dir, METRICS_FILE))) {
+                Log.e("log activity", "Can not replace " + METRICS_FILE);
+            }
+        } catch (IOException e) {
+            Log.e("log activity", "Can not write metrics: " + e.toString());
+        }
+    }
+
     public static String readFile(Context context, String fileName) {
         String content = "";
         try {
@@ -0,0 +1,85 @@
+package com.ticketapp.auth.app.main;
+/**
+ * Developed for Aalto University course CS-E4300 Network Security.
+ * Copyright (C) 2021-2022 Aalto University
+ */
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Single background thread that does all communication with the card.
+ * <p/>
+ * The card functions in {@link com.ticketapp.auth.app.ulctools.Reader} are static and not
+ * thread-safe, so every tap, dump and erase is queued here and runs one after another on
+ * the same thread. A job does the RF and crypto work in {@link Job#run()} and its result is
+ * handed to {@link Job#done(Object)} on the main thread, where the views can be updated.
+ * A tap that comes in while the previous result is still being shown simply waits in the
+ * queue.
+ */
+public class NfcWorker {
+
+    /**
+     * Work done with the card.
+     *
+     * @param <T> result passed from the worker thread to the main thread
+     */
+    public static abstract class Job<T> {
+        /** Runs on the worker thread. Talks to the card, must not touch views. */
+        public abstract T run() throws Exception;
+
+        /** Runs on the main thread with the result of {@link #run()}. */
+        public void done(T result) {
+        }
+
+        /** Runs on the main thread if {@link #run()} threw. */
+        public void failed(Exception e) {
+            Log.e("NfcWorker", "Job failed: " + e.toString());
+        }
+    }
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "nfc-worker");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private NfcWorker() {
+    }
+
+    /**
+     * Queue a job. It starts when the jobs submitted before it have finished.
+     */
+    public static <T> void submit(final Job<T> job) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final T result = job.run();
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            job.done(result);
+                        }
+                    });
+                } catch (final Exception e) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            job.failed(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,56 @@
+package com.ticketapp.auth.app.main;
+
+import android.annotation.TargetApi;
+import android.nfc.NfcAdapter;
+import android.nfc.Tag;
+import android.os.Build;
+import android.os.Bundle;
+
+/**
+ * Tag discovery with reader mode instead of the foreground dispatch.
+ * <p/>
+ * The foreground dispatch sends every tag through the intent system, after the platform has
+ * looked for an NDEF message on it. In reader mode only NFC-A tags are polled, the NDEF check
+ * is skipped and the tag comes straight to {@link #onTagDiscovered(Tag)}, which hands it to
+ * the same pipeline as the intents without a detour over the main thread. Reader mode needs Android 4.4, and
+ * this class can only be loaded there, see {@link TicketActivity#isReaderModeAvailable()}.
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class ReaderModeDispatch implements NfcAdapter.ReaderCallback {
+    /**
+     * Time between the presence checks of the platform, in milliseconds. A check goes over the
+     * same link as the commands of the ticket, and a tap takes well below a second, so they
+     * are kept out of its way; a lost tag is noticed by the Reader when it does not answer.
+     */
+    public static final int PRESENCE_CHECK_DELAY = 1000;
+
+    private static final int FLAGS = NfcAdapter.FLAG_READER_NFC_A | NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK;
+
+    private final TicketActivity activity;
+
+    ReaderModeDispatch(TicketActivity activity) {
+        this.activity = activity;
+    }
+
+    /**
+     * Start polling for tags. Only allowed while the activity is resumed.
+     */
+    void enable(NfcAdapter adapter) {
+        Bundle extras = new Bundle();
+        extras.putInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY, PRESENCE_CHECK_DELAY);
+        adapter.enableReaderMode(activity, this, FLAGS, extras);
+    }
+
+    void disable(NfcAdapter adapter) {
+        adapter.disableReaderMode(activity);
+    }
+
+    /**
+     * Called on a binder thread of the NFC service. The jobs for the tag are queued from
+     * here, the activity posts the view updates to the main thread itself.
+     */
+    @Override
+    public void onTagDiscovered(Tag tag) {
+        activity.tagDiscovered(tag);
+    }
+}
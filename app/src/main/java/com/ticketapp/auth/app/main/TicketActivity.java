@@ -18,7 +18,9 @@ import android.content.IntentFilter;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
 import android.nfc.tech.NfcA;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.Vibrator;
 import android.provider.Settings;
 import android.view.Menu;
@@ -29,7 +31,9 @@ import com.ticketapp.auth.app.fragments.ConsolePopup;
 import com.ticketapp.auth.app.fragments.DumpFragment;
 import com.ticketapp.auth.app.fragments.EmulatorFragment;
 import com.ticketapp.auth.app.fragments.KeyListFragment;
+import com.ticketapp.auth.app.ulctools.EventLog;
 import com.ticketapp.auth.app.ulctools.Reader;
+import com.ticketapp.auth.ticket.TicketContext;
 import com.ticketapp.auth.R;
 
 import java.util.Calendar;
@@ -39,22 +43,40 @@ public class TicketActivity extends Activity implements ActionBar.OnNavigationLi
     private static final String STATE_SELECTED_NAVIGATION_ITEM = "selected_navigation_item";
     public static FileManager fileManager;
     public static boolean autoAuth = true;
+    // discover tags with reader mode instead of the foreground dispatch, switched in the menu,
+    // see ReaderModeDispatch
+    public static boolean readerMode = false;
     public static Context outer;
 
     // Fragments
     public static FragmentManager fm;
-    public static boolean nfcA_available = false;
+    public static volatile boolean nfcA_available = false;
     private static EmulatorFragment userMode;
     private static KeyListFragment keyList;
     private static DumpFragment dumpMode;
     private static ArchiveFragment archiveFragment;
+    // the fragment in the container, read by the thread that discovers the cards
+    private static volatile Fragment shown;
 
     private static Vibrator vibrator;
     private NfcAdapter adapter;
     private PendingIntent pendingIntent;
     private IntentFilter[] filters;
     private String[][] techLists;
+    private ReaderModeDispatch readerDispatch;
+    private boolean readerModeEnabled = false;
+    private boolean resumed = false;
     private Context context;
+    // time between the metrics snapshots, in milliseconds
+    private static final long METRICS_INTERVAL = 60 * 1000;
+    private final Handler handler = new Handler();
+    private final Runnable metricsWriter = new Runnable() {
+        @Override
+        public void run() {
+            FileManager.saveMetrics(context);
+            handler.postDelayed(this, METRICS_INTERVAL);
+        }
+    };
     private final ConsolePopup consoleWindow = new ConsolePopup();
 
     @Override
@@ -67,6 +89,8 @@ public class TicketActivity extends Activity implements ActionBar.OnNavigationLi
 
         context = getApplicationContext();
         outer = context;
+        // a key chosen before the activity was created again stays in use
+        if (Reader.authKey == null) Reader.authKey = getString(R.string.default_auth_key);
 
         fileManager = new FileManager();
         FileManager.getKeys(outer);
@@ -87,6 +111,7 @@ public class TicketActivity extends Activity implements ActionBar.OnNavigationLi
         filters = new IntentFilter[]{ndef,};
 
         techLists = new String[][]{new String[]{NfcA.class.getName()}};
+        if (isReaderModeAvailable()) readerDispatch = new ReaderModeDispatch(this);
 
         // Set up the action bar to show a dropdown list.
         final ActionBar actionBar = getActionBar();
@@ -122,8 +147,69 @@ public class TicketActivity extends Activity implements ActionBar.OnNavigationLi
         super.onResume();
         Intent intent = getIntent();
         resolveIntent(intent);
-        adapter.enableForegroundDispatch(this, pendingIntent, filters,
-                techLists);
+        resumed = true;
+        enableDispatch();
+        handler.postDelayed(metricsWriter, METRICS_INTERVAL);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        resumed = false;
+        disableDispatch();
+        // the app may not come back, so the counters so far are written now
+        handler.removeCallbacks(metricsWriter);
+        FileManager.saveMetrics(context);
+        // the syncs wait for the storage, so they are queued after the taps still being handled
+        final TicketContext ticketContext = TicketContext.forApp(context);
+        NfcWorker.submit(new NfcWorker.Job<Void>() {
+            @Override
+            public Void run() {
+                ticketContext.getJournal().flush();
+                ticketContext.getKeyStates().flush();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return true if the platform has reader mode. ReaderModeDispatch implements an interface
+     * older platforms do not have, so it must not be touched there.
+     */
+    public static boolean isReaderModeAvailable() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * Switch between reader mode and the foreground dispatch, see {@link #readerMode}.
+     */
+    public void setReaderMode(boolean enabled) {
+        readerMode = enabled && isReaderModeAvailable();
+        // the dispatch can only be changed while the activity is in the foreground
+        if (!resumed) return;
+        disableDispatch();
+        enableDispatch();
+    }
+
+    private void enableDispatch() {
+        if (adapter == null) return;
+        if (readerMode && readerDispatch != null) {
+            readerDispatch.enable(adapter);
+            readerModeEnabled = true;
+        } else {
+            adapter.enableForegroundDispatch(this, pendingIntent, filters,
+                    techLists);
+        }
+    }
+
+    private void disableDispatch() {
+        if (adapter == null) return;
+        if (readerModeEnabled) {
+            readerDispatch.disable(adapter);
+            readerModeEnabled = false;
+        } else {
+            adapter.disableForegroundDispatch(this);
+        }
     }
 
     @Override
@@ -179,6 +265,7 @@ public class TicketActivity extends Activity implements ActionBar.OnNavigationLi
             default:
                 return true;
         }
+        shown = newFragment;
         getFragmentManager().beginTransaction()
                 .setCustomAnimations(enter, R.animator.fragment_slide_out)
                 .replace(R.id.container, newFragment)
@@ -194,20 +281,48 @@ public class TicketActivity extends Activity implements ActionBar.OnNavigationLi
         if (NfcAdapter.ACTION_TECH_DISCOVERED.equals(action)) {
 
             Tag tagFromIntent = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
+            tagDiscovered(tagFromIntent);
+        }
+    }
+
+    /**
+     * Start the ticket pipeline for a new tag, from an intent on the main thread or from reader
+     * mode on a binder thread. The jobs are queued with the worker on the calling thread, so a
+     * busy main thread does not hold up the tap; only the views are updated on the main thread.
+     */
+    void tagDiscovered(Tag tag) {
+        if (Reader.history.isLogging(EventLog.Level.MESSAGES)) {
             String timestamp = "" + Calendar.getInstance().getTime();
-            Reader.history += "\nNew tag discovered on\n" + timestamp + "\n";
-
-            for (int k = 0; k < tagFromIntent.getTechList().length; k++) {
-                if (tagFromIntent.getTechList()[k]
-                        .equals("android.nfc.tech.NfcA")) {
-                    vibrator.vibrate(50);
-                    nfcA_available = true;
-                    Reader.nfcA_card = NfcA.get(tagFromIntent);
-                    userMode.setCardAvailable(userMode.isVisible());
-                    if (dumpMode.isVisible()) {
-                        DumpFragment.update();
+            Reader.history.message("\nNew tag discovered on\n" + timestamp + "\n");
+        }
+
+        for (int k = 0; k < tag.getTechList().length; k++) {
+            if (tag.getTechList()[k]
+                    .equals("android.nfc.tech.NfcA")) {
+                nfcA_available = true;
+                final NfcA nfcA = NfcA.get(tag);
+                // the worker owns the card, so the new tag is handed over in the queue
+                // before the jobs that use it
+                NfcWorker.submit(new NfcWorker.Job<Void>() {
+                    @Override
+                    public Void run() {
+                        Reader.setCard(nfcA);
+                        return null;
                     }
+                });
+                Fragment current = shown;
+                final boolean ticketShown = current == userMode;
+                userMode.cardDiscovered(ticketShown);
+                if (current == dumpMode) {
+                    DumpFragment.update();
                 }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        vibrator.vibrate(50);
+                        userMode.setCardAvailable(ticketShown);
+                    }
+                });
             }
         }
     }
@@ -0,0 +1,98 @@
+package com.ticketapp.auth.app.ulctools;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * The link to the current card, opened once per tap and closed once at its end.
+ * <p/>
+ * Opening a link that is already open does nothing, so the authentication lasts for the whole
+ * transaction. The card only has to be selected again after a NAK or a missing answer, which
+ * send it back to idle state and end the authentication; that is a reconnect. The counters
+ * show how much link churn the flows still have: ideally every tap is one connect, no
+ * reconnects and one close.
+ */
+public class CardConnection {
+    private CardTransport card;
+    private long connects = 0;
+    private long reconnects = 0;
+    private long closes = 0;
+
+    /**
+     * Use the link of a new tag. The link of the previous tag is not touched, the tag is gone.
+     */
+    public synchronized void setTransport(CardTransport card) {
+        this.card = card;
+    }
+
+    /**
+     * Connect to the card, unless the link is open already.
+     *
+     * @return false if the card could not be reached
+     */
+    public synchronized boolean open() {
+        if (card == null) return false;
+        if (card.isConnected()) return true;
+        try {
+            card.connect();
+            connects++;
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Close the link and select the card again, e.g. after it answered with NAK. The
+     * authentication is lost.
+     *
+     * @return false if the card could not be reached
+     */
+    public synchronized boolean reconnect() {
+        if (card == null) return false;
+        reconnects++;
+        try {
+            card.close();
+            card.connect();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Close the link, unless it is closed already.
+     *
+     * @return false if closing failed
+     */
+    public synchronized boolean close() {
+        if (card == null || !card.isConnected()) return true;
+        closes++;
+        try {
+            card.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public synchronized long getConnects() {
+        return connects;
+    }
+
+    public synchronized long getReconnects() {
+        return reconnects;
+    }
+
+    public synchronized long getCloses() {
+        return closes;
+    }
+
+    /**
+     * @return the counters, and the reconnects per connect
+     */
+    public synchronized String report() {
+        return String.format(Locale.US, "connects %d, reconnects %d, closes %d, reconnects per connect %.2f\n",
+                connects, reconnects, closes, connects == 0 ? 0.0 : (double) reconnects / connects);
+    }
+}
@@ -0,0 +1,56 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Commands of one family of cards, behind the memory map of the Ultralight C.
+ * <p/>
+ * The ticket logic addresses every card as an Ultralight C: user memory on pages 4 - 39, the
+ * lock bytes on page 40, the one-way counter on page 41, AUTH0 and AUTH1 on pages 42 and 43
+ * and the 16-byte key on pages 44 - 47. A family translates these pages and the key to the
+ * memory and commands of its cards. {@link Reader#getFamily()} picks the family of the
+ * current card.
+ */
+public interface CardFamily {
+
+    /**
+     * @return name of the card type, e.g. for the log
+     */
+    String getName();
+
+    /**
+     * Authenticate with the card.
+     *
+     * @param key 16-byte Ultralight C key
+     * @return boolean value of success
+     */
+    boolean authenticate(byte[] key);
+
+    /**
+     * Read a contiguous range of Ultralight C pages.
+     *
+     * @return boolean value of success
+     */
+    boolean readPages(int startPage, int numberOfPages, byte[] target, int targetPos);
+
+    /**
+     * Write one Ultralight C page.
+     *
+     * @param data 4 bytes of page data
+     * @return boolean value of success
+     */
+    boolean writePage(byte[] data, int page);
+
+    /**
+     * Write the 16-byte key of pages 44 - 47 at once. Cards that derive a password from the
+     * key need all of it, so the key pages are not written one by one.
+     *
+     * @param key 16-byte Ultralight C key
+     * @return boolean value of success, true only if the whole key reached the card
+     */
+    boolean writeKey(byte[] key);
+
+    /**
+     * @return page of the card memory an Ultralight C memory page (0 - 40) is stored on,
+     * or -1 if the card does not have it
+     */
+    int physicalPage(int page);
+}
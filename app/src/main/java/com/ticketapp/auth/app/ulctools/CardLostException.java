@@ -0,0 +1,19 @@
+package com.ticketapp.auth.app.ulctools;
+
+import java.io.IOException;
+
+/**
+ * The card left the field, or its answer did not arrive, while a command was sent.
+ * <p/>
+ * A {@link CardTransport} reports a lost card with this exception, so the layers above it do
+ * not depend on the platform: {@link NfcATransport} translates the TagLostException of the
+ * phone, and the {@link CardSimulator} throws it on any JVM.
+ */
+public class CardLostException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CardLostException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,159 @@
+package com.ticketapp.auth.app.ulctools;
+
+import java.util.ArrayList;
+
+/**
+ * Pages that were read from or written to the card during one tap.
+ * <p/>
+ * Reads that are already known are served from memory, and every page that was written
+ * is recorded, so the pages changed by a transaction can be listed afterwards.
+ */
+public class CardSession {
+    /** Pages 0 - 43 can be read, pages 44 - 47 hold the authentication key */
+    public static final int READABLE_PAGES = 44;
+    public static final int PAGES = 48;
+
+    private final byte[] memory = new byte[PAGES * 4];
+    private final boolean[] known = new boolean[PAGES];
+    private final boolean[] written = new boolean[PAGES];
+    private int cacheHits = 0;
+    private int cardReads = 0;
+    private int skippedWrites = 0;
+    private int retries = 0;
+    private long retryNanos = 0;
+
+    /**
+     * Copy pages to the destination if all of them are already known.
+     *
+     * @return false if at least one of the pages has to be read from the card
+     */
+    public boolean read(int startPage, int numberOfPages, byte[] dstBuffer, int dstPos) {
+        if (firstUnknown(startPage, numberOfPages) >= 0) return false;
+        System.arraycopy(memory, startPage * 4, dstBuffer, dstPos, numberOfPages * 4);
+        cacheHits++;
+        return true;
+    }
+
+    /**
+     * @return first page of the range that is not known yet, or -1 if all of them are
+     */
+    public int firstUnknown(int startPage, int numberOfPages) {
+        for (int i = startPage; i < startPage + numberOfPages; i++) {
+            if (i >= PAGES || !known[i]) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return last page of the range that is not known yet, or -1 if all of them are
+     */
+    public int lastUnknown(int startPage, int numberOfPages) {
+        for (int i = startPage + numberOfPages - 1; i >= startPage; i--) {
+            if (i >= PAGES || !known[i]) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Store pages that were read from the card.
+     */
+    public void store(int startPage, int numberOfPages, byte[] srcBuffer, int srcPos) {
+        System.arraycopy(srcBuffer, srcPos, memory, startPage * 4, numberOfPages * 4);
+        for (int i = startPage; i < startPage + numberOfPages; i++) {
+            known[i] = true;
+        }
+        cardReads++;
+    }
+
+    /**
+     * Record a page that was written to the card.
+     * <p/>
+     * The lock bytes (pages 2, 3 and 40) are OR'ed with the written data and a write to the
+     * counter (page 41) increments it, so after writing those the content is not known anymore.
+     * The key (pages 44 - 47) can never be read back.
+     */
+    public void written(int page, byte[] srcBuffer, int srcPos) {
+        written[page] = true;
+        if (page == 2 || page == 3 || page == 40 || page == 41 || page >= READABLE_PAGES) {
+            known[page] = false;
+        } else {
+            System.arraycopy(srcBuffer, srcPos, memory, page * 4, 4);
+            known[page] = true;
+        }
+    }
+
+    /**
+     * Check whether writing the data would leave the page as it is.
+     * <p/>
+     * A write to the counter (page 41) always increments it, so it is never unchanged.
+     *
+     * @return true if the page content is known and equal to the data
+     */
+    public boolean unchanged(int page, byte[] srcBuffer, int srcPos) {
+        if (page == 41 || page >= PAGES || !known[page]) return false;
+        for (int i = 0; i < 4; i++) {
+            if (memory[page * 4 + i] != srcBuffer[srcPos + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Record a write that was not sent because the page already had the same content.
+     */
+    public void skipped() {
+        skippedWrites++;
+    }
+
+    /**
+     * Record a recovery from a transient error.
+     *
+     * @param nanos time spent selecting and authenticating the card again
+     */
+    public void retried(long nanos) {
+        retries++;
+        retryNanos += nanos;
+    }
+
+    /**
+     * Forget everything known about a page, e.g. after a failed write.
+     */
+    public void forget(int page) {
+        known[page] = false;
+    }
+
+    /**
+     * @return list of the pages written during this session, in ascending order
+     */
+    public ArrayList<Integer> getWrittenPages() {
+        ArrayList<Integer> pages = new ArrayList<Integer>();
+        for (int i = 0; i < PAGES; i++) {
+            if (written[i]) pages.add(i);
+        }
+        return pages;
+    }
+
+    /** @return how many reads were served from memory */
+    public int getCacheHits() {
+        return cacheHits;
+    }
+
+    /** @return how many writes were not sent because the page already had the same content */
+    public int getSkippedWrites() {
+        return skippedWrites;
+    }
+
+    /** @return how many times the card was selected and authenticated again after an error */
+    public int getRetries() {
+        return retries;
+    }
+
+    /** @return time spent on recovering from errors */
+    public long getRetryNanos() {
+        return retryNanos;
+    }
+
+    /** @return how many reads went to the card */
+    public int getCardReads() {
+        return cardReads;
+    }
+}
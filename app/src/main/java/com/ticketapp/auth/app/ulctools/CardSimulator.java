@@ -0,0 +1,233 @@
+package com.ticketapp.auth.app.ulctools;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory card that runs on any JVM, the part common to all simulated card families.
+ * <p/>
+ * Every command takes the time given by the {@link LatencyModel}. The time is always added to
+ * {@link #getElapsedMicros()} and the calling thread also waits for it if real time is on.
+ * A command that takes longer than the timeout, or is sent after the card was taken away with
+ * {@link #removeAfter(int)}, costs the timeout and fails with a {@link CardLostException}. So
+ * does a command whose answer is lost with {@link #loseAnswer(byte[])}, although the card
+ * carries it out.
+ * Subclasses answer the commands in {@link #answer(byte[])} and count what they did.
+ */
+public abstract class CardSimulator implements CardTransport {
+    protected static final byte ACK = 0x0A;
+    /** default timeout of NfcA, in milliseconds */
+    public static final int DEFAULT_TIMEOUT = 618;
+
+    protected final byte[] memory;
+    private LatencyModel latency = new LatencyModel();
+    private boolean realTime = false;
+    private boolean connected = false;
+    private int timeoutMillis = DEFAULT_TIMEOUT;
+    private int commandsLeft = -1;
+    private byte[] lostAnswer;
+
+    private long elapsedMicros = 0;
+    private int transceives = 0;
+    protected int reads = 0;
+    protected int writes = 0;
+    protected int authentications = 0;
+    private int naks = 0;
+
+    /**
+     * @param size bytes of the memory image, see {@link #getMemory()}
+     * @param uid  7-byte serial number of the card, stored on pages 0 - 2
+     */
+    protected CardSimulator(int size, byte[] uid) {
+        memory = new byte[size];
+        memory[0] = uid[0];
+        memory[1] = uid[1];
+        memory[2] = uid[2];
+        memory[3] = (byte) (0x88 ^ uid[0] ^ uid[1] ^ uid[2]);
+        System.arraycopy(uid, 3, memory, 4, 4);
+        memory[8] = (byte) (uid[3] ^ uid[4] ^ uid[5] ^ uid[6]);
+        memory[9] = 0x48;
+    }
+
+    public void setLatencyModel(LatencyModel latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @param realTime if true, every command blocks the caller for its simulated latency
+     */
+    public void setRealTime(boolean realTime) {
+        this.realTime = realTime;
+    }
+
+    /**
+     * Copy of the whole memory including the key pages, as a card dump would show it.
+     */
+    public byte[] getMemory() {
+        return Arrays.copyOf(memory, memory.length);
+    }
+
+    /**
+     * Overwrite pages directly, e.g. to prepare a ticket state. No protection is applied.
+     */
+    public void setPages(int startPage, byte[] data) {
+        System.arraycopy(data, 0, memory, startPage * 4, data.length);
+    }
+
+    /**
+     * Take the card out of the field after a number of commands. Until then, or with a negative
+     * number, the card stays in the field.
+     *
+     * @param commands commands the card still answers
+     */
+    public void removeAfter(int commands) {
+        commandsLeft = commands;
+    }
+
+    /**
+     * Lose the answer to the next command that starts with the given bytes, e.g. because the
+     * card moved while answering. The card carries out the command.
+     *
+     * @param command first bytes of the command, null to lose no answer
+     */
+    public void loseAnswer(byte[] command) {
+        lostAnswer = command;
+    }
+
+    /**
+     * @return value of the one-way counter the tickets are counted with
+     */
+    public abstract int getCounter();
+
+    private boolean isPresent() {
+        return commandsLeft != 0;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (!isPresent()) throw new CardLostException("Tag was lost");
+        connected = true;
+        reset();
+    }
+
+    @Override
+    public void close() throws IOException {
+        connected = false;
+        timeoutMillis = DEFAULT_TIMEOUT;
+        reset();
+    }
+
+    @Override
+    public void setTimeout(int millis) {
+        timeoutMillis = millis;
+    }
+
+    @Override
+    public int getTimeout() {
+        return timeoutMillis;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return 253;
+    }
+
+    @Override
+    public byte[] transceive(byte[] data) throws IOException {
+        if (!connected) throw new IOException("Not connected");
+        transceives++;
+        int micros = latency.micros(data);
+        if (!isPresent() || micros > timeoutMillis * 1000) {
+            // no answer, the reader waits until the timeout
+            spend(timeoutMillis * 1000);
+            reset();
+            throw new CardLostException("Tag was lost");
+        }
+        if (commandsLeft > 0) commandsLeft--;
+        if (lostAnswer != null && startsWith(data, lostAnswer)) {
+            lostAnswer = null;
+            answer(data);
+            spend(timeoutMillis * 1000);
+            throw new CardLostException("Answer was lost");
+        }
+        spend(micros);
+        return answer(data);
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private void spend(int micros) {
+        elapsedMicros += micros;
+        if (realTime && micros > 0) LockSupport.parkNanos(micros * 1000L);
+    }
+
+    /**
+     * @param data command bytes
+     * @return response of the card
+     * @throws IOException if the card answers with NAK, see {@link #nak()}
+     */
+    protected abstract byte[] answer(byte[] data) throws IOException;
+
+    /**
+     * Forget the authentication, the card was selected again or answered with NAK.
+     */
+    protected abstract void reset();
+
+    /**
+     * The card answers with a 4-bit NAK and falls back to idle state, which the phone reports
+     * as a failed transceive.
+     */
+    protected byte[] nak() throws IOException {
+        naks++;
+        reset();
+        throw new IOException("Transceive failed");
+    }
+
+    /** @return simulated time spent answering commands, in microseconds */
+    public long getElapsedMicros() {
+        return elapsedMicros;
+    }
+
+    public int getTransceives() {
+        return transceives;
+    }
+
+    /** @return READ and FAST_READ commands answered with data */
+    public int getReads() {
+        return reads;
+    }
+
+    /** @return WRITE commands that changed the memory */
+    public int getWrites() {
+        return writes;
+    }
+
+    public int getAuthentications() {
+        return authentications;
+    }
+
+    public int getNaks() {
+        return naks;
+    }
+
+    public void resetCounters() {
+        elapsedMicros = 0;
+        transceives = 0;
+        reads = 0;
+        writes = 0;
+        authentications = 0;
+        naks = 0;
+    }
+}
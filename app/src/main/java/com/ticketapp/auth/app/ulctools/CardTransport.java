@@ -0,0 +1,51 @@
+package com.ticketapp.auth.app.ulctools;
+
+import java.io.IOException;
+
+/**
+ * Link to a card that raw commands can be sent to.
+ * <p/>
+ * On the phone this is the NfcA technology of the discovered tag, see {@link NfcATransport}.
+ * The {@link CardSimulator} subclasses implement it in memory, so the ticket logic can be run
+ * without a phone or a card.
+ */
+public interface CardTransport {
+
+    void connect() throws IOException;
+
+    void close() throws IOException;
+
+    boolean isConnected();
+
+    /**
+     * Send a raw command to the card and return its response.
+     *
+     * @param data command bytes
+     * @return response bytes
+     * @throws IOException if the card does not answer or answers with NAK
+     */
+    byte[] transceive(byte[] data) throws IOException;
+
+    /**
+     * Set how long a transceive waits for the answer. The timeout is reset to its default
+     * when the link is closed.
+     *
+     * @param millis timeout in milliseconds
+     */
+    void setTimeout(int millis);
+
+    /**
+     * @return timeout of a transceive in milliseconds
+     */
+    int getTimeout();
+
+    /**
+     * @return maximum number of bytes that can be sent or received with one transceive
+     */
+    int getMaxTransceiveLength();
+
+    /**
+     * @return MifareUltralight.TYPE_ULTRALIGHT, TYPE_ULTRALIGHT_C or TYPE_UNKNOWN
+     */
+    int getType();
+}
@@ -1,17 +1,79 @@
 package com.ticketapp.auth.app.ulctools;
 
+import java.util.Arrays;
+
 /**
  * Developed for Aalto University course CS-E4300 Network Security.
  * Copyright (C) 2021-2022 Aalto University
  */
 public class Commands {
 
+    private CardSession session;
+    private boolean writeElision = true;
+
+    /**
+     * Start a new session for the tag that was just tapped. Everything cached from the
+     * previous tag is dropped.
+     *
+     * @return the new session
+     */
+    public CardSession beginSession() {
+        session = new CardSession();
+        return session;
+    }
+
+    /**
+     * @return the session of the current tap, or null if no session was started
+     */
+    public CardSession getSession() {
+        return session;
+    }
+
+    /**
+     * Enable or disable compare-before-write. When enabled, a write is not sent if the page
+     * content is already known from the current session and equal to the data.
+     *
+     * @param enabled boolean value whether unchanged pages are skipped
+     */
+    public void setWriteElision(boolean enabled) {
+        writeElision = enabled;
+    }
+
     public boolean readBinary(int adr, byte[] dstBuffer, int dstPos) {
-        byte[] data = Reader.readPage(adr, false);
-        if (data.length > 0) {
-            System.arraycopy(data, 0, dstBuffer, dstPos, 4);
+        return readBinary(adr, 1, dstBuffer, dstPos);
+    }
+
+    /**
+     * Read a contiguous range of pages from the card with as few commands as possible.
+     * <p/>
+     * Pages already read during the current session are served from memory. When the card
+     * has to be read, the read is extended to a multiple of four pages, because a READ
+     * returns four pages anyway.
+     *
+     * @param adr           first page to read
+     * @param numberOfPages how many pages to read
+     * @param dstBuffer     byte array where the data is stored
+     * @param dstPos        starting position in the destination array
+     * @return boolean value of success
+     */
+    public boolean readBinary(int adr, int numberOfPages, byte[] dstBuffer, int dstPos) {
+        if (session == null || Reader.safeMode || adr + numberOfPages > CardSession.READABLE_PAGES) {
+            return Reader.getFamily().readPages(adr, numberOfPages, dstBuffer, dstPos);
+        }
+        if (session.read(adr, numberOfPages, dstBuffer, dstPos)) return true;
+
+        int first = session.firstUnknown(adr, numberOfPages);
+        int count = session.lastUnknown(adr, numberOfPages) - first + 1;
+        int extended = Math.min((count + 3) / 4 * 4, CardSession.READABLE_PAGES - first);
+        byte[] data = new byte[extended * 4];
+        if (Reader.getFamily().readPages(first, extended, data, 0)) {
+            session.store(first, extended, data, 0);
+        } else if (extended > count && Reader.getFamily().readPages(first, count, data, 0)) {
+            // the extra pages may be protected, read only the missing ones
+            session.store(first, count, data, 0);
         } else return false;
-        return true;
+
+        return session.read(adr, numberOfPages, dstBuffer, dstPos);
     }
 
     /**
@@ -23,8 +85,29 @@ public class Commands {
      * @return boolean value of success
      */
     public boolean writeBinary(int adr, byte[] srcBuffer, int srcPos) {
+        if (writeElision && session != null && !Reader.safeMode && session.unchanged(adr, srcBuffer, srcPos)) {
+            session.skipped();
+            return true;
+        }
         byte[] data = new byte[4];
         System.arraycopy(srcBuffer, srcPos, data, 0, 4);
-        return Reader.updatePage(data, adr, false);
+        boolean result = Reader.getFamily().writePage(data, adr);
+        if (session != null) {
+            if (result && !Reader.safeMode) session.written(adr, srcBuffer, srcPos);
+            else session.forget(adr);
+        }
+        return result;
+    }
+
+    /**
+     * Write the 16-byte key to pages 44 - 47 with one call of the card family. The key pages
+     * can not be read back, so they are never cached in the session.
+     *
+     * @param srcBuffer byte array that contains the key
+     * @param srcPos    starting position of the key on input array
+     * @return boolean value of success
+     */
+    public boolean writeKey(byte[] srcBuffer, int srcPos) {
+        return Reader.getFamily().writeKey(Arrays.copyOfRange(srcBuffer, srcPos, srcPos + 16));
     }
 }
@@ -0,0 +1,187 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Plain Java DES block cipher (FIPS 46-3) with a prepared key schedule.
+ * <p/>
+ * The S-boxes are combined with the P permutation into lookup tables when the class is
+ * loaded, so a round is eight table lookups. Instances are immutable and thread-safe.
+ */
+class DesCipher {
+
+    private static final int[] IP = {
+            58, 50, 42, 34, 26, 18, 10, 2, 60, 52, 44, 36, 28, 20, 12, 4,
+            62, 54, 46, 38, 30, 22, 14, 6, 64, 56, 48, 40, 32, 24, 16, 8,
+            57, 49, 41, 33, 25, 17, 9, 1, 59, 51, 43, 35, 27, 19, 11, 3,
+            61, 53, 45, 37, 29, 21, 13, 5, 63, 55, 47, 39, 31, 23, 15, 7};
+
+    private static final int[] PC1 = {
+            57, 49, 41, 33, 25, 17, 9, 1, 58, 50, 42, 34, 26, 18,
+            10, 2, 59, 51, 43, 35, 27, 19, 11, 3, 60, 52, 44, 36,
+            63, 55, 47, 39, 31, 23, 15, 7, 62, 54, 46, 38, 30, 22,
+            14, 6, 61, 53, 45, 37, 29, 21, 13, 5, 28, 20, 12, 4};
+
+    private static final int[] PC2 = {
+            14, 17, 11, 24, 1, 5, 3, 28, 15, 6, 21, 10,
+            23, 19, 12, 4, 26, 8, 16, 7, 27, 20, 13, 2,
+            41, 52, 31, 37, 47, 55, 30, 40, 51, 45, 33, 48,
+            44, 49, 39, 56, 34, 53, 46, 42, 50, 36, 29, 32};
+
+    private static final int[] SHIFTS = {1, 1, 2, 2, 2, 2, 2, 2, 1, 2, 2, 2, 2, 2, 2, 1};
+
+    private static final int[] P = {
+            16, 7, 20, 21, 29, 12, 28, 17, 1, 15, 23, 26, 5, 18, 31, 10,
+            2, 8, 24, 14, 32, 27, 3, 9, 19, 13, 30, 6, 22, 11, 4, 25};
+
+    private static final int[][] S = {
+            {14, 4, 13, 1, 2, 15, 11, 8, 3, 10, 6, 12, 5, 9, 0, 7,
+                    0, 15, 7, 4, 14, 2, 13, 1, 10, 6, 12, 11, 9, 5, 3, 8,
+                    4, 1, 14, 8, 13, 6, 2, 11, 15, 12, 9, 7, 3, 10, 5, 0,
+                    15, 12, 8, 2, 4, 9, 1, 7, 5, 11, 3, 14, 10, 0, 6, 13},
+            {15, 1, 8, 14, 6, 11, 3, 4, 9, 7, 2, 13, 12, 0, 5, 10,
+                    3, 13, 4, 7, 15, 2, 8, 14, 12, 0, 1, 10, 6, 9, 11, 5,
+                    0, 14, 7, 11, 10, 4, 13, 1, 5, 8, 12, 6, 9, 3, 2, 15,
+                    13, 8, 10, 1, 3, 15, 4, 2, 11, 6, 7, 12, 0, 5, 14, 9},
+            {10, 0, 9, 14, 6, 3, 15, 5, 1, 13, 12, 7, 11, 4, 2, 8,
+                    13, 7, 0, 9, 3, 4, 6, 10, 2, 8, 5, 14, 12, 11, 15, 1,
+                    13, 6, 4, 9, 8, 15, 3, 0, 11, 1, 2, 12, 5, 10, 14, 7,
+                    1, 10, 13, 0, 6, 9, 8, 7, 4, 15, 14, 3, 11, 5, 2, 12},
+            {7, 13, 14, 3, 0, 6, 9, 10, 1, 2, 8, 5, 11, 12, 4, 15,
+                    13, 8, 11, 5, 6, 15, 0, 3, 4, 7, 2, 12, 1, 10, 14, 9,
+                    10, 6, 9, 0, 12, 11, 7, 13, 15, 1, 3, 14, 5, 2, 8, 4,
+                    3, 15, 0, 6, 10, 1, 13, 8, 9, 4, 5, 11, 12, 7, 2, 14},
+            {2, 12, 4, 1, 7, 10, 11, 6, 8, 5, 3, 15, 13, 0, 14, 9,
+                    14, 11, 2, 12, 4, 7, 13, 1, 5, 0, 15, 10, 3, 9, 8, 6,
+                    4, 2, 1, 11, 10, 13, 7, 8, 15, 9, 12, 5, 6, 3, 0, 14,
+                    11, 8, 12, 7, 1, 14, 2, 13, 6, 15, 0, 9, 10, 4, 5, 3},
+            {12, 1, 10, 15, 9, 2, 6, 8, 0, 13, 3, 4, 14, 7, 5, 11,
+                    10, 15, 4, 2, 7, 12, 9, 5, 6, 1, 13, 14, 0, 11, 3, 8,
+                    9, 14, 15, 5, 2, 8, 12, 3, 7, 0, 4, 10, 1, 13, 11, 6,
+                    4, 3, 2, 12, 9, 5, 15, 10, 11, 14, 1, 7, 6, 0, 8, 13},
+            {4, 11, 2, 14, 15, 0, 8, 13, 3, 12, 9, 7, 5, 10, 6, 1,
+                    13, 0, 11, 7, 4, 9, 1, 10, 14, 3, 5, 12, 2, 15, 8, 6,
+                    1, 4, 11, 13, 12, 3, 7, 14, 10, 15, 6, 8, 0, 5, 9, 2,
+                    6, 11, 13, 8, 1, 4, 10, 7, 9, 5, 0, 15, 14, 2, 3, 12},
+            {13, 2, 8, 4, 6, 15, 11, 1, 10, 9, 3, 14, 5, 0, 12, 7,
+                    1, 15, 13, 8, 10, 3, 7, 4, 12, 5, 6, 11, 0, 14, 9, 2,
+                    7, 11, 4, 1, 9, 12, 14, 2, 0, 6, 10, 13, 15, 3, 5, 8,
+                    2, 1, 14, 7, 4, 10, 8, 13, 15, 12, 9, 0, 3, 5, 6, 11}};
+
+    /** S-box i followed by P, indexed by the 6 input bits of the S-box */
+    private static final int[][] SP = new int[8][64];
+    private static final int[] FP = new int[64];
+    /** IP and its inverse, indexed by the position and value of each input byte */
+    private static final long[][] IP_BYTES = new long[8][256];
+    private static final long[][] FP_BYTES = new long[8][256];
+
+    static {
+        for (int i = 0; i < 8; i++) {
+            for (int x = 0; x < 64; x++) {
+                int row = ((x >> 4) & 2) | (x & 1);
+                int col = (x >> 1) & 15;
+                int s = S[i][row * 16 + col] << (28 - 4 * i);
+                SP[i][x] = (int) permute(s & 0xFFFFFFFFL, P, 32);
+            }
+        }
+        for (int i = 0; i < 64; i++) {
+            FP[IP[i] - 1] = i + 1;
+        }
+        for (int pos = 0; pos < 8; pos++) {
+            for (int v = 0; v < 256; v++) {
+                IP_BYTES[pos][v] = permute((long) v << (56 - 8 * pos), IP, 64);
+                FP_BYTES[pos][v] = permute((long) v << (56 - 8 * pos), FP, 64);
+            }
+        }
+    }
+
+    /** 6-bit pieces of the 16 round keys, one for each S-box */
+    private final int[] subkeys = new int[16 * 8];
+
+    /**
+     * @param key 8-byte DES key, parity bits are ignored
+     */
+    DesCipher(byte[] key, int offset) {
+        long k = toLong(key, offset);
+        long cd = permute(k, PC1, 64);
+        int c = (int) (cd >>> 28) & 0x0FFFFFFF;
+        int d = (int) cd & 0x0FFFFFFF;
+        for (int round = 0; round < 16; round++) {
+            c = ((c << SHIFTS[round]) | (c >>> (28 - SHIFTS[round]))) & 0x0FFFFFFF;
+            d = ((d << SHIFTS[round]) | (d >>> (28 - SHIFTS[round]))) & 0x0FFFFFFF;
+            long roundKey = permute(((long) c << 28) | d, PC2, 56);
+            for (int i = 0; i < 8; i++) {
+                subkeys[round * 8 + i] = (int) (roundKey >>> (42 - 6 * i)) & 63;
+            }
+        }
+    }
+
+    long encrypt(long block) {
+        return crypt(block, false);
+    }
+
+    long decrypt(long block) {
+        return crypt(block, true);
+    }
+
+    private long crypt(long block, boolean decrypt) {
+        long ip = permuteBytes(block, IP_BYTES);
+        int l = (int) (ip >>> 32);
+        int r = (int) ip;
+        for (int round = 0; round < 16; round++) {
+            int t = r;
+            r = l ^ f(r, subkeys, (decrypt ? 15 - round : round) * 8);
+            l = t;
+        }
+        return permuteBytes(((long) r << 32) | (l & 0xFFFFFFFFL), FP_BYTES);
+    }
+
+    private static long permuteBytes(long in, long[][] table) {
+        long out = 0;
+        for (int pos = 0; pos < 8; pos++) {
+            out |= table[pos][(int) (in >>> (56 - 8 * pos)) & 0xFF];
+        }
+        return out;
+    }
+
+    /**
+     * Round function: expansion, key mixing, S-boxes and P.
+     */
+    private static int f(int r, int[] k, int off) {
+        // 34 bits: the last bit of r, r, the first bit of r. Every S-box input is 6 bits of it
+        long e = ((r & 1L) << 33) | ((r & 0xFFFFFFFFL) << 1) | ((r >>> 31) & 1);
+        return SP[0][((int) (e >>> 28) ^ k[off]) & 63]
+                | SP[1][((int) (e >>> 24) ^ k[off + 1]) & 63]
+                | SP[2][((int) (e >>> 20) ^ k[off + 2]) & 63]
+                | SP[3][((int) (e >>> 16) ^ k[off + 3]) & 63]
+                | SP[4][((int) (e >>> 12) ^ k[off + 4]) & 63]
+                | SP[5][((int) (e >>> 8) ^ k[off + 5]) & 63]
+                | SP[6][((int) (e >>> 4) ^ k[off + 6]) & 63]
+                | SP[7][((int) e ^ k[off + 7]) & 63];
+    }
+
+    /**
+     * Bit permutation as written in the standard: output bit i is input bit table[i], with
+     * bit 1 being the most significant of the width.
+     */
+    private static long permute(long in, int[] table, int width) {
+        long out = 0;
+        for (int i = 0; i < table.length; i++) {
+            out = (out << 1) | ((in >>> (width - table[i])) & 1);
+        }
+        return out;
+    }
+
+    static long toLong(byte[] b, int offset) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[offset + i] & 0xFF);
+        }
+        return v;
+    }
+
+    static void toBytes(long v, byte[] b, int offset) {
+        for (int i = 7; i >= 0; i--) {
+            b[offset + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.ticketapp.auth.app.ulctools;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Bounded, thread-safe log of what happened with the cards, shown in the console.
+ * <p/>
+ * Events are kept in a ring buffer, so only the latest ones are kept and adding an event never
+ * copies the older ones. Commands and other byte data are stored as they are and turned into
+ * hex only when the text is asked for with {@link #toText()}. The level decides what is
+ * captured at all: with {@link Level#MESSAGES} no bytes are copied, with {@link Level#OFF}
+ * nothing is stored. A caller that builds its text first checks {@link #isLogging(Level)}, so
+ * the text is not built for nothing.
+ */
+public class EventLog {
+
+    public enum Level {OFF, MESSAGES, COMMANDS}
+
+    private static final int MESSAGE = 0;
+    private static final int BYTES = 1;
+    private static final int COMMAND = 2;
+
+    private final long[] times;
+    private final int[] kinds;
+    private final String[] texts;
+    private final byte[][] data;
+    private final byte[][] responses;
+    private int next = 0;
+    private int size = 0;
+    // the commands of every tap would cost more than the tap itself, they are switched on
+    // in the menu of the dump view when needed
+    private volatile Level level = Level.MESSAGES;
+
+    /**
+     * @param capacity maximum number of events kept
+     */
+    public EventLog(int capacity) {
+        times = new long[capacity];
+        kinds = new int[capacity];
+        texts = new String[capacity];
+        data = new byte[capacity][];
+        responses = new byte[capacity][];
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @return true if events of the given level are stored
+     */
+    public boolean isLogging(Level level) {
+        return level != Level.OFF && this.level.compareTo(level) >= 0;
+    }
+
+    /**
+     * Add a line of text.
+     */
+    public void message(String text) {
+        if (isLogging(Level.MESSAGES)) add(MESSAGE, text, null, null);
+    }
+
+    /**
+     * Add labelled bytes, shown as hex after the label.
+     */
+    public void bytes(String label, byte[] bytes) {
+        if (isLogging(Level.COMMANDS)) add(BYTES, label, copy(bytes), null);
+    }
+
+    /**
+     * Add a command sent to the card and the response of the card.
+     *
+     * @param response response of the card, or null if there was none
+     */
+    public void command(byte[] command, byte[] response) {
+        if (isLogging(Level.COMMANDS)) add(COMMAND, null, copy(command), copy(response));
+    }
+
+    private synchronized void add(int kind, String text, byte[] bytes, byte[] response) {
+        times[next] = System.currentTimeMillis();
+        kinds[next] = kind;
+        texts[next] = text;
+        data[next] = bytes;
+        responses[next] = response;
+        next = (next + 1) % times.length;
+        if (size < times.length) size++;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(texts, null);
+        Arrays.fill(data, null);
+        Arrays.fill(responses, null);
+        next = 0;
+        size = 0;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Format the events, oldest first. Commands are prefixed with the time they were sent.
+     *
+     * @return text of the log
+     */
+    public synchronized String toText() {
+        StringBuilder sb = new StringBuilder();
+        SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+        for (int i = 0; i < size; i++) {
+            int e = (next - size + i + times.length) % times.length;
+            switch (kinds[e]) {
+                case MESSAGE:
+                    sb.append(texts[e]);
+                    break;
+                case BYTES:
+                    sb.append(texts[e]).append(Dump.hex(data[e])).append("\n");
+                    break;
+                case COMMAND:
+                    sb.append("\n").append(timeFormat.format(new Date(times[e])))
+                            .append("\n>> ").append(Dump.hex(data[e]).replace("\n", " "));
+                    if (responses[e] != null) {
+                        sb.append("\n<< ").append(Dump.hex(responses[e]).replace("\n", " "));
+                    }
+                    sb.append("\n");
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static byte[] copy(byte[] bytes) {
+        return bytes == null ? null : Arrays.copyOf(bytes, bytes.length);
+    }
+}
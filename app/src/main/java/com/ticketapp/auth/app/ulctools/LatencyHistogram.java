@@ -0,0 +1,99 @@
+package com.ticketapp.auth.app.ulctools;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Fixed-size histogram of durations in microseconds.
+ * <p/>
+ * Values are counted in buckets that are exact below 16 us and then split every power of
+ * two into 8 equal parts, so a value is known to within about 12 % up to more than an hour.
+ * Recording is a few shifts and an increment, with no allocation.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 8;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR + 29 * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    public synchronized void record(long micros) {
+        if (micros < 0) micros = 0;
+        counts[bucket(micros)]++;
+        count++;
+        sum += micros;
+        if (micros > max) max = micros;
+    }
+
+    /**
+     * Record the time since a {@link System#nanoTime()} reading.
+     *
+     * @return the current {@link System#nanoTime()}, to be used as the start of the next step
+     */
+    public long recordSince(long startNanos) {
+        long now = System.nanoTime();
+        record((now - startNanos) / 1000);
+        return now;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @param percent 0 - 100
+     * @return upper bound of the bucket the percentile falls into, in microseconds
+     */
+    public synchronized long getPercentile(double percent) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(max, upperBound(i));
+        }
+        return max;
+    }
+
+    /**
+     * @return count, mean, p50, p90, p99 and max on one line
+     */
+    public synchronized String summary() {
+        return String.format(Locale.US, "%6d %8d %8d %8d %8d %8d", count, getMean(),
+                getPercentile(50), getPercentile(90), getPercentile(99), max);
+    }
+
+    private static int bucket(long micros) {
+        if (micros < LINEAR) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros); // >= 4
+        int sub = (int) (micros >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        int index = LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < LINEAR) return bucket;
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+    }
+}
@@ -0,0 +1,55 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Time a simulated card takes to answer each command, in microseconds.
+ * <p/>
+ * The defaults are rough round trip times measured on a phone with Ultralight C cards:
+ * an EEPROM write is the slowest command, a READ and each step of the authentication cost
+ * about the same.
+ */
+public class LatencyModel {
+    public int readMicros = 1500;
+    public int fastReadMicros = 1500;
+    public int fastReadPerPageMicros = 60;
+    public int writeMicros = 4500;
+    public int authMicros = 2000;
+    public int otherMicros = 1500;
+
+    /** Simulated card that answers immediately */
+    public static LatencyModel none() {
+        LatencyModel model = new LatencyModel();
+        model.readMicros = 0;
+        model.fastReadMicros = 0;
+        model.fastReadPerPageMicros = 0;
+        model.writeMicros = 0;
+        model.authMicros = 0;
+        model.otherMicros = 0;
+        return model;
+    }
+
+    /**
+     * @param command command bytes sent to the card
+     * @return time in microseconds the card takes to answer
+     */
+    public int micros(byte[] command) {
+        switch (command[0]) {
+            case (byte) 0x30:
+                return readMicros;
+            case (byte) 0x3A:
+                int pages = command.length > 2 ? (command[2] & 0xFF) - (command[1] & 0xFF) + 1 : 1;
+                return fastReadMicros + Math.max(0, pages) * fastReadPerPageMicros;
+            case (byte) 0xA2:
+            case (byte) 0xA5:
+                return writeMicros;
+            case (byte) 0x39:
+                return readMicros;
+            case (byte) 0x1A:
+            case (byte) 0xAF:
+            case (byte) 0x1B:
+                // each step of the 3DES authentication, or the single PWD_AUTH
+                return authMicros;
+            default:
+                return otherMicros;
+        }
+    }
+}
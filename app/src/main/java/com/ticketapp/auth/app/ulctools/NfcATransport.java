@@ -0,0 +1,75 @@
+package com.ticketapp.auth.app.ulctools;
+
+import android.nfc.TagLostException;
+import android.nfc.tech.MifareUltralight;
+import android.nfc.tech.NfcA;
+
+import java.io.IOException;
+
+/**
+ * Card transport of a tag discovered by the phone. A tag that left the field is reported as a
+ * {@link CardLostException}, like on the simulated cards.
+ */
+public class NfcATransport implements CardTransport {
+    private final NfcA nfcA;
+
+    public NfcATransport(NfcA nfcA) {
+        this.nfcA = nfcA;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        try {
+            nfcA.connect();
+        } catch (TagLostException e) {
+            throw lost(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        nfcA.close();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return nfcA.isConnected();
+    }
+
+    @Override
+    public byte[] transceive(byte[] data) throws IOException {
+        try {
+            return nfcA.transceive(data);
+        } catch (TagLostException e) {
+            throw lost(e);
+        }
+    }
+
+    private static CardLostException lost(TagLostException e) {
+        CardLostException lost = new CardLostException(e.getMessage());
+        lost.initCause(e);
+        return lost;
+    }
+
+    @Override
+    public void setTimeout(int millis) {
+        nfcA.setTimeout(millis);
+    }
+
+    @Override
+    public int getTimeout() {
+        return nfcA.getTimeout();
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return nfcA.getMaxTransceiveLength();
+    }
+
+    @Override
+    public int getType() {
+        MifareUltralight ultralight = MifareUltralight.get(nfcA.getTag());
+        if (ultralight == null) return MifareUltralight.TYPE_UNKNOWN;
+        return ultralight.getType();
+    }
+}
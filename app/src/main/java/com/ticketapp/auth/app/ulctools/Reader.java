@@ -5,26 +5,45 @@ package com.ticketapp.auth.app.ulctools;
  */
 import android.nfc.tech.MifareUltralight;
 import android.nfc.tech.NfcA;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.ticketapp.auth.R;
 import com.ticketapp.auth.app.main.TicketActivity;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Reader {
 
-    public static String history = "";
-    public static String authKey = TicketActivity.outer.getString(R.string.default_auth_key);
-    public static NfcA nfcA_card;
+    public static final EventLog history = new EventLog(2000);
+    // set by the app to the default key of its resources, then to the key chosen in the list
+    public static String authKey;
     public static boolean safeMode = false;
     public static HashMap<Integer, Integer> pageMap = new HashMap<Integer, Integer>();
 
+    private static final SecureRandom random = new SecureRandom();
+    private static Handler mainHandler; // created with the first toast
+    private static final LinkedHashMap<ByteBuffer, TripleDesEngine> engines =
+            new LinkedHashMap<ByteBuffer, TripleDesEngine>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, TripleDesEngine> eldest) {
+                    return size() > 8;
+                }
+            };
+
+    // the tag of the app, and the tags of threads that bound their own
+    private static final TagContext shared = new TagContext();
+    private static final ThreadLocal<TagContext> bound = new ThreadLocal<TagContext>();
+
     public Reader() {
         super();
         makeMap();
@@ -38,6 +57,86 @@ public class Reader {
         pageMap.put(41, 39);
     }
 
+    /**
+     * Send a command to the current tag.
+     * <p/>
+     * The timeout follows how long the tag took to answer the same command before, see
+     * {@link TransceiveTimeouts}. When the tag does not answer in time, it is selected again and
+     * asked for page 0. If it does not answer that either, it was taken away: the transceive
+     * fails with a {@link CardLostException}, and so does every command until the next tag is set.
+     *
+     * @param command command bytes
+     * @return response bytes
+     * @throws IOException if the tag does not answer or answers with NAK
+     */
+    public static byte[] transceive(byte[] command) throws IOException {
+        TagContext tag = tag();
+        if (tag.tagLost) throw new CardLostException("Tag was lost");
+        int timeout = tag.timeouts.timeoutMillis(command, tag.defaultTimeout);
+        if (timeout != tag.currentTimeout) {
+            tag.card.setTimeout(timeout);
+            tag.currentTimeout = timeout;
+        }
+        long start = System.nanoTime();
+        try {
+            byte[] response = tag.card.transceive(command);
+            tag.timeouts.answered(command, System.nanoTime() - start);
+            return response;
+        } catch (IOException e) {
+            // a NAK comes right away, no answer at all means the tag is slow or gone
+            boolean noAnswer = e instanceof CardLostException || System.nanoTime() - start >= timeout * 1000000L;
+            if (noAnswer) {
+                if (!isPresent(tag)) {
+                    tag.tagLost = true;
+                    tag.timeouts.tagLost();
+                    history.message("\nTag lost\n");
+                    throw new CardLostException("Tag was lost");
+                }
+                tag.timeouts.timedOut(command);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Select the tag again and read page 0, with the timeout of a READ.
+     *
+     * @return true if the tag answered
+     */
+    private static boolean isPresent(TagContext tag) {
+        byte[] cmd_read = new byte[]{(byte) 0x30, (byte) 0x00};
+        if (!tag.connection.reconnect()) return false;
+        try {
+            tag.currentTimeout = tag.timeouts.timeoutMillis(cmd_read, tag.defaultTimeout);
+            tag.card.setTimeout(tag.currentTimeout);
+            return tag.card.transceive(cmd_read).length >= 16;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the current tag was taken away
+     */
+    public static boolean isTagLost() {
+        return tag().tagLost;
+    }
+
+    /**
+     * Get the connects and reconnects of all taps so far on the current tag context, e.g. for
+     * the log
+     */
+    public static CardConnection getConnection() {
+        return tag().connection;
+    }
+
+    /**
+     * Get the adapted timeout of each command on the current tag context, e.g. for the log
+     */
+    public static TransceiveTimeouts getTimeouts() {
+        return tag().timeouts;
+    }
+
     /**
      * Read a single page from card.
      *
@@ -57,18 +156,110 @@ public class Reader {
         byte[] response = new byte[0];
 
         try {
-            response = nfcA_card.transceive(cmd_read);
+            response = transceive(cmd_read);
         } catch (IOException e) {
-            history += "\n\nReading failed - IOException\n";
-            history += "Error when reading page " + page + "\n--------------------------------";
+            history.message("\n\nReading failed - IOException\n");
+            if (history.isLogging(EventLog.Level.MESSAGES))
+                history.message("Error when reading page " + page + "\n--------------------------------");
         }
         return response;
     }
 
+    /**
+     * Read a contiguous range of pages from card.
+     * <p/>
+     * Uses FAST_READ (0x3A) when the tag supports it, otherwise one READ (0x30) per four pages,
+     * since every READ returns 16 bytes. Falls back to reading page by page if the tag does not
+     * return a full response, or if safe mode maps any of the pages elsewhere.
+     *
+     * @param startPage     first page to read
+     * @param numberOfPages how many pages to read
+     * @param target        byte array where the data is stored
+     * @param targetPos     starting position in the target array
+     * @return boolean value of success
+     */
+    public static boolean readPages(int startPage, int numberOfPages, byte[] target, int targetPos) {
+        if (safeMode) {
+            for (int i = startPage; i < startPage + numberOfPages; i++) {
+                if (pageMap.containsKey(i)) return readPagesOneByOne(startPage, numberOfPages, target, targetPos);
+            }
+        }
+        if (numberOfPages > 4 && fastRead(startPage, numberOfPages, target, targetPos)) {
+            return true;
+        }
+        byte[] cmd_read = new byte[]{(byte) 0x30, (byte) 0x00};
+        for (int i = 0; i < numberOfPages; i += 4) {
+            int count = Math.min(4, numberOfPages - i);
+            cmd_read[1] = (byte) (startPage + i);
+            byte[] response;
+            try {
+                response = transceive(cmd_read);
+            } catch (IOException e) {
+                history.message("\n\nReading failed - IOException\n");
+                if (history.isLogging(EventLog.Level.MESSAGES))
+                    history.message("Error when reading page " + (startPage + i) + "\n--------------------------------");
+                return false;
+            }
+            if (response.length < 16) {
+                // not a full READ response, continue with the old page by page loop
+                return readPagesOneByOne(startPage + i, numberOfPages - i, target, targetPos + i * 4);
+            }
+            System.arraycopy(response, 0, target, targetPos + i * 4, count * 4);
+        }
+        return true;
+    }
+
+    /**
+     * Read a range of pages with a single FAST_READ command, split only if the range does not fit
+     * in one transceive. Ultralight C does not implement FAST_READ, so it is never tried there.
+     *
+     * @return false if FAST_READ is not supported or failed, in which case nothing is guaranteed
+     * to be stored in the target array
+     */
+    private static boolean fastRead(int startPage, int numberOfPages, byte[] target, int targetPos) {
+        TagContext tag = tag();
+        if (tag.fastReadSupport == 0) {
+            tag.fastReadSupport = getTagType(tag.card).equals("Ultralight C") ? -1 : 1;
+        }
+        if (tag.fastReadSupport < 0) return false;
+
+        int maxPages = Math.max(1, tag.card.getMaxTransceiveLength() / 4);
+        byte[] cmd_fast_read = new byte[]{(byte) 0x3A, (byte) 0x00, (byte) 0x00};
+        for (int i = 0; i < numberOfPages; i += maxPages) {
+            int count = Math.min(maxPages, numberOfPages - i);
+            cmd_fast_read[1] = (byte) (startPage + i);
+            cmd_fast_read[2] = (byte) (startPage + i + count - 1);
+            byte[] response;
+            try {
+                response = transceive(cmd_fast_read);
+            } catch (IOException e) {
+                response = new byte[0];
+            }
+            if (response.length < count * 4) {
+                // The tag answered with NAK and went back to idle state, wake it up again
+                history.message("\nFAST_READ not supported, falling back to READ\n");
+                tag.fastReadSupport = -1;
+                reconnect();
+                return false;
+            }
+            System.arraycopy(response, 0, target, targetPos + i * 4, count * 4);
+        }
+        return true;
+    }
+
+    private static boolean readPagesOneByOne(int startPage, int numberOfPages, byte[] target, int targetPos) {
+        for (int i = 0; i < numberOfPages; i++) {
+            byte[] data = readPage(startPage + i, false);
+            if (data.length < 4) return false;
+            System.arraycopy(data, 0, target, targetPos + i * 4, 4);
+        }
+        return true;
+    }
+
     /**
      * Read the card memory to a given array with authentication or without authentication.
      * <p/>
-     * Commands and responses are stored into history.
+     * Commands and responses are stored into the history log.
      *
      * @param target  byte array where the data is stored
      * @param auth    boolean value whether to authenticate while reading or not
@@ -84,65 +275,88 @@ public class Reader {
         boolean auth_result = false;
         Arrays.fill(target, (byte) 0x00);
         String type;
-        type = getTagType(nfcA_card);
+        type = getTagType(getCard());
         // If authentication is enabled, do it
         if (auth) {
-            if (display) history += "\nauthentication enabled\n";
+            if (display) history.message("\nauthentication enabled\n");
             // Boolean value: was authentication successful?
             auth_result = authenticate(display);
             if (!auth_result) {
                 Log.d("auth", "authentication ended in IOEx");
-                disconnect();
-                connect();
+                reconnect();
             }
         }
         if (type.equals("Ultralight C")) {
             if (!auth_result) {
-                if (display) history += "\nreading " + type + "\nwithout authentication \n";
-            } else if (display) history += "\nreading " + type + "\nwith authentication\n";
+                if (display) history.message("\nreading " + type + "\nwithout authentication \n");
+            } else if (display) history.message("\nreading " + type + "\nwith authentication\n");
 
         } else {
-            if (display) history += "\nreading " + type + "\n";
+            if (display) history.message("\nreading " + type + "\n");
         }
-        for (int i = 0; i < 44; i++) {
-            // i is actual page on card that is read, a could be mapped to elsewhere
-            // because of safemode
-            int a = i;
-            // If safemode maps a to somewhere else, get the other page
-            if (safeMode && pageMap.containsKey(a)) {
-                a = pageMap.get(a);
+        // Once a four page READ fails, the rest is read page by page like before
+        boolean pageByPage = false;
+        for (int i = 0; i < 44; i += 4) {
+            // i is the first page of the four pages a single READ returns
+            boolean mapped = pageByPage;
+            for (int j = i; j < i + 4; j++) {
+                if (safeMode && pageMap.containsKey(j)) mapped = true;
             }
-            // Setup the read command
-            cmd_read[1] = (byte) a;
-
-            if (display) history += "\n" + Dump.hex(cmd_read) + " >> ";
-
+            int j = i;
             try {
-                // If tag is lost, end reading
-                if (!connect()) return false;
-                // Try to read a page
-                byte[] response = nfcA_card.transceive(cmd_read);
-                byte[] page = new byte[4];
-                if (response.length > 1)
-                    page = new byte[]{response[0], response[1], response[2], response[3]};
-                // Save page data in the target array
-                System.arraycopy(page, 0, target, i * 4, 4);
-
-                if (display) history += "<< " + Dump.hex(page);
+                if (!mapped) {
+                    // Setup the read command
+                    cmd_read[1] = (byte) i;
+                    // Try to read four pages at once
+                    byte[] response = transceive(cmd_read);
+                    if (display) history.command(cmd_read, response);
+                    if (response.length >= 16) {
+                        // Save page data in the target array
+                        System.arraycopy(response, 0, target, i * 4, 16);
+                        continue;
+                    }
+                    pageByPage = true;
+                }
+                for (; j < i + 4; j++) {
+                    // j is actual page on card that is read, a could be mapped to elsewhere
+                    // because of safemode
+                    int a = j;
+                    if (safeMode && pageMap.containsKey(a)) {
+                        a = pageMap.get(a);
+                    }
+                    cmd_read[1] = (byte) a;
+                    byte[] response = transceive(cmd_read);
+                    byte[] page = new byte[4];
+                    if (response.length > 1)
+                        page = new byte[]{response[0], response[1], response[2], response[3]};
+                    // Save page data in the target array
+                    System.arraycopy(page, 0, target, j * 4, 4);
+
+                    if (display) history.command(cmd_read, page);
+                }
 
             } catch (IOException e) {
+                if (isTagLost()) {
+                    history.message("\nTag lost on page " + j + "\n--------------------------------");
+                    return false;
+                }
+                if (!mapped) {
+                    // The four pages may reach into a protected area, retry them one by one
+                    if (!reconnect()) return false;
+                    pageByPage = true;
+                    i -= 4;
+                    continue;
+                }
                 // If the page reading was interrupted because of auth, the rest
-                // of the memory will also be unreadable.
-                disconnect();
-                Toast.makeText(TicketActivity.outer, "Reading ended on page " + i, Toast.LENGTH_SHORT).show();
-                history += "\nreading page " + i + " failed - IOException\n";
-                history += "\n\nReading finished on " + type + "\n--------------------------------";
-                System.out.println("Error when reading page " + 4 * i);
+                // of the memory will also be unreadable. The caller closes the link.
+                toast("Reading ended on page " + j);
+                history.message("\nreading page " + j + " failed - IOException\n");
+                history.message("\n\nReading finished on " + type + "\n--------------------------------");
                 return false;
             }
         }
         if (display) {
-            history += "\n\nReading finished on " + type + "\n--------------------------------";
+            history.message("\n\nReading finished on " + type + "\n--------------------------------");
         }
         return true;
     }
@@ -157,32 +371,26 @@ public class Reader {
         byte[] cmd_erase = new byte[]{(byte) 0xa2, (byte) 0x00,
                 (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00};
         boolean isAuth = false;
-        boolean reAuth = false;
         int page;
         ArrayList<Integer> faults = new ArrayList<Integer>();
-        history += "\nerasing card...\n";
+        history.message("\nerasing card...\n");
         if (auth) {
-            history += "\ntrying to authenticate card before erase...";
+            history.message("\ntrying to authenticate card before erase...");
             isAuth = authenticate(false);
             if (!isAuth) {
-                history += " authentication failed, trying to erase anyway\n";
-            } else history += " authentication OK, proceeding with erase\n";
+                history.message(" authentication failed, trying to erase anyway\n");
+            } else history.message(" authentication OK, proceeding with erase\n");
         }
         for (int i = 4; i < 40; i++) {
             page = i;
             cmd_erase[1] = (byte) i;
             try {
-                connect();
-                if (reAuth && isAuth) {
-                    authenticate(false);
-                    reAuth = false;
-                }
-                nfcA_card.transceive(cmd_erase);
+                transceive(cmd_erase);
             } catch (IOException e) {
-                disconnect();
-                reAuth = true;
-                history += "\nerasing page " + page + " failed - IOException\n";
+                history.message("\nerasing page " + page + " failed - IOException\n");
                 faults.add(page);
+                // the NAK leaves the card idle, select it again for the next page
+                if (reconnect() && isAuth) authenticate(false);
             }
         }
         String msg;
@@ -194,7 +402,7 @@ public class Reader {
             else msg = "Erase partial - page " + faults.get(0) + " could not be erased.";
 
         }
-        history += "\n" + msg + "\n--------------------------------";
+        history.message("\n" + msg + "\n--------------------------------");
 
         return true;
     }
@@ -202,7 +410,7 @@ public class Reader {
     /**
      * Update card data on a defined page.
      * <p/>
-     * Commands and responses are stored into history.
+     * Commands and responses are stored into the history log.
      *
      * @param data byte array where the data is stored
      * @param dst  destination page (0 - 47)
@@ -210,7 +418,7 @@ public class Reader {
      * @return boolean value of success
      */
     public static boolean updatePage(byte[] data, int dst, boolean auth) {
-        history += "\nwriting...\n";
+        history.message("\nwriting...\n");
         int count = 0;
         byte[] cmd_ulwrite = new byte[]{(byte) 0xa2, (byte) 0x00,
                 (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00};
@@ -219,7 +427,7 @@ public class Reader {
                 authenticate(false);
             }
             if (safeMode && pageMap.containsKey(dst)) {
-                history += "\nSafe mode on, write to page " + dst + "\nmapped to " + pageMap.get(dst) + "\n";
+                history.message("\nSafe mode on, write to page " + dst + "\nmapped to " + pageMap.get(dst) + "\n");
                 dst = pageMap.get(dst);
                 byte[] current = readPage(dst, true);
                 for (int i = 0; i < 4; i++) {
@@ -228,15 +436,13 @@ public class Reader {
             }
             cmd_ulwrite[1] = (byte) dst;
             System.arraycopy(data, 0, cmd_ulwrite, 2, 4);
-            history += "\n" + Dump.hex(cmd_ulwrite) + " >>\n";
-
-            byte[] response = nfcA_card.transceive(cmd_ulwrite);
-            history += "\n" + Dump.hex(response) + " <<\n";
-            history += "\n" + "writing finished\n--------------------------------";
+            byte[] response = transceive(cmd_ulwrite);
+            history.command(cmd_ulwrite, response);
+            history.message("\n" + "writing finished\n--------------------------------");
             return true;
 
         } catch (IOException e) {
-            history += "\n" + "Writing failed: IOException\nTrying to write on protected pages without successful authentication?\n--------------------------------";
+            history.message("\n" + "Writing failed: IOException\nTrying to write on protected pages without successful authentication?\n--------------------------------");
             System.out.println("Write error at " + count);
         } catch (Exception e) {
             Log.d("e", "sumthin went wong");
@@ -270,7 +476,7 @@ public class Reader {
         int lockbyte;
         boolean status;
         if (page >= 4 && page <= 15) {
-            history += "\nSetting lock to page " + page + "\n";
+            history.message("\nSetting lock to page " + page + "\n");
             adr = 2;
             if (page >= 3 && page <= 7) {
                 bit = 1 << page;
@@ -282,16 +488,16 @@ public class Reader {
             lock_data[lockbyte] = (byte) (bit);
             Log.d("Lock", Dump.binary(lock_data[0]) + " " + Dump.binary(lock_data[1]) + " " + Dump.binary(lock_data[2]) + " " + Dump.binary(lock_data[3]));
             Log.d("Lock write", "lock page " + page);
-            history += "to lock bits at page 2 (0x02)\n";
+            history.message("to lock bits at page 2 (0x02)\n");
             status = updatePage(lock_data, adr, false);
             if (status) {
-                history += "\nLocking successful\n--------------------------------\n";
-            } else history += "\nLocking failed\n--------------------------------\n";
+                history.message("\nLocking successful\n--------------------------------\n");
+            } else history.message("\nLocking failed\n--------------------------------\n");
             return status;
         } else if (page >= 16 && page <= 36) {
-            history += "\nSetting lock to pages " + page + "-" + (page + 4) + "\n";
+            history.message("\nSetting lock to pages " + page + "-" + (page + 4) + "\n");
             if (page % 4 != 0) {
-                history += "failed. Invalid parameter: " + page + ", when locking pages 16-39,\ngive the starting page (16,20,24,28,32,36)\n";
+                history.message("failed. Invalid parameter: " + page + ", when locking pages 16-39,\ngive the starting page (16,20,24,28,32,36)\n");
                 return false;
             }
             adr = 40;
@@ -304,11 +510,11 @@ public class Reader {
             lock_data[lockbyte] = (byte) (bit);
             Log.d("Lock", Dump.binary(lock_data[0]) + " " + Dump.binary(lock_data[1]) + " " + Dump.binary(lock_data[2]) + " " + Dump.binary(lock_data[3]));
             Log.d("Lock write", "lock page " + page);
-            history += "to lock bits at page 40 (0x28)\n";
+            history.message("to lock bits at page 40 (0x28)\n");
             status = updatePage(lock_data, adr, false);
             if (status) {
-                history += "\nLocking successful\n--------------------------------\n";
-            } else history += "\nLocking failed\n--------------------------------\n";
+                history.message("\nLocking successful\n--------------------------------\n");
+            } else history.message("\nLocking failed\n--------------------------------\n");
             return status;
         }
 
@@ -323,7 +529,7 @@ public class Reader {
      */
     public static boolean setAuthKey(String newKey) {
         if (newKey.regionMatches(0, "0x", 0, 2) && newKey.length() == 18 || newKey.length() == 16) {
-            history += "\n" + "authentication key changed\n" + "old: " + authKey + "\nnew: " + newKey + "\n--------------------------------";
+            history.message("\n" + "authentication key changed\n" + "old: " + authKey + "\nnew: " + newKey + "\n--------------------------------");
             authKey = newKey;
             return true;
         } else return false;
@@ -362,6 +568,28 @@ public class Reader {
             return r;
     }
 
+    /**
+     * Helper method for getting the prepared 3DES engine of a key. The engines of the last
+     * few keys are kept, so the key is only formatted and scheduled the first time it is used.
+     *
+     * @param input_key byte array containing the authentication key
+     * @return 3DES engine with key K1 K2 K1
+     */
+    private static TripleDesEngine getEngine(byte[] input_key) throws GeneralSecurityException {
+        synchronized (engines) {
+            TripleDesEngine engine = engines.get(ByteBuffer.wrap(input_key));
+            if (engine == null) {
+                byte[] byteKey = getFormattedByteKey(input_key);
+                byte[] key = new byte[24];
+                System.arraycopy(byteKey, 0, key, 0, 16);
+                System.arraycopy(byteKey, 0, key, 16, 8);
+                engine = new TripleDesEngine(key);
+                engines.put(ByteBuffer.wrap(input_key.clone()), engine);
+            }
+            return engine;
+        }
+    }
+
     private static byte[] getFormattedByteKey(byte[] byteKey) {
         byte[] r = new byte[16];
         byte[] k1 = new byte[8];
@@ -379,6 +607,22 @@ public class Reader {
         return r;
     }
 
+    /**
+     * Show a short message. The card may be used from the NFC worker thread, so the toast is
+     * always posted to the main thread.
+     */
+    private static void toast(final String text) {
+        synchronized (Reader.class) {
+            if (mainHandler == null) mainHandler = new Handler(Looper.getMainLooper());
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(TicketActivity.outer, text, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
     /**
      * Test authenticate with the current key.
      */
@@ -386,9 +630,9 @@ public class Reader {
         if (connect()) {
             boolean result = authenticate(true);
             if (result)
-                Toast.makeText(TicketActivity.outer, "Authentication succeeded", Toast.LENGTH_SHORT).show();
+                toast("Authentication succeeded");
             else
-                Toast.makeText(TicketActivity.outer, "Authentication failed", Toast.LENGTH_SHORT).show();
+                toast("Authentication failed");
             disconnect();
             return result;
         } else return false;
@@ -406,7 +650,7 @@ public class Reader {
      * @return boolean value telling if the authentication worked
      */
     public static boolean authenticate(boolean display) {
-        if (display) history += "\nkey: \n" + authKey + "\n";
+        if (display) history.message("\nkey: \n" + authKey + "\n");
         byte[] byteKey = getKey(authKey);
 
         return authenticate(byteKey, display);
@@ -421,44 +665,39 @@ public class Reader {
      */
     public static boolean authenticate(byte[] input_key, boolean display) {
         if (display)
-            history += "\n" + "authenticating with key: (in hex) \n" + Dump.hex(input_key, true) + "\n";
-
-        byte[] byteKey = getFormattedByteKey(input_key);
+            history.bytes("\nauthenticating with key: (in hex) \n", input_key);
 
         byte[] iv1 = {0, 0, 0, 0, 0, 0, 0, 0};
-        byte[] key = new byte[24];
         String str = "";
 
-        System.arraycopy(byteKey, 0, key, 0, 16);
-        System.arraycopy(byteKey, 0, key, 16, 8);
-
         try {
+            TripleDesEngine engine = getEngine(input_key);
+
             // message exchange 1
             byte[] cmd_auth = new byte[]{0x1A, 0x00};
 
             str = "cmd_auth sent";
-            byte[] response1 = nfcA_card.transceive(cmd_auth);
+            byte[] response1 = transceive(cmd_auth);
             if (display)
-                Reader.history += "\n>>\n" + Dump.hex(cmd_auth) + "\n\n" + Dump.hex(response1) + " <<\n\n";
+                history.command(cmd_auth, response1);
 
             byte[] enc_randB = new byte[8];
             System.arraycopy(response1, 1, enc_randB, 0, 8);
-            byte[] randB = TripleDES.decrypt(iv1, key, enc_randB);
+            byte[] randB = engine.decrypt(iv1, enc_randB);
 
-            if (display) Reader.history += "randB:\n" + Dump.hex(randB) + "\n\n";
+            if (display) history.bytes("randB:\n", randB);
 
             byte[] randA = new byte[8];
-            SecureRandom g = new SecureRandom();
-            g.nextBytes(randA);
+            random.nextBytes(randA);
 
-            if (display) Reader.history += "randA:\n" + Dump.hex(randA) + "\n\n";
+            if (display) history.bytes("randA:\n", randA);
 
             byte[] randCon = new byte[16];
             System.arraycopy(randA, 0, randCon, 0, 8);
             System.arraycopy(randB, 1, randCon, 8, 7);
             System.arraycopy(randB, 0, randCon, 15, 1);
 
-            byte[] enc_randCon = TripleDES.encrypt(enc_randB, key, randCon);
+            byte[] enc_randCon = engine.encrypt(enc_randB, randCon);
 
             // prepare concat
             byte[] cmd_con = new byte[17];
@@ -466,14 +705,15 @@ public class Reader {
             System.arraycopy(enc_randCon, 0, cmd_con, 1, 16);
 
             str = "cmd_con sent";
-            byte[] response2 = nfcA_card.transceive(cmd_con);
+            byte[] response2 = transceive(cmd_con);
 
             if (display)
-                Reader.history += "\n>>\n" + Dump.hex(cmd_con) + "\n\n" + Dump.hex(response2) + " <<\n\n";
+                history.command(cmd_con, response2);
 
-            if (response2[0] + response2[1] == 0x00) {
+            // the card answers 0x00 followed by ek(randA'), anything else means a wrong key
+            if (response2.length < 9 || response2[0] != 0x00) {
                 if (display) {
-                    Reader.history += "\nAuthentication failed. Wrong key?\n";
+                    history.message("\nAuthentication failed. Wrong key?\n");
                     //Toast.makeText(MyActivity.outer, "Authentication failed", Toast.LENGTH_SHORT).show();
                 }
                 return false;
@@ -485,7 +725,7 @@ public class Reader {
             byte[] enc_randAp = new byte[8];
             System.arraycopy(response2, 1, enc_randAp, 0, 8);
 
-            byte[] dec_randAp = TripleDES.decrypt(iv3, key, enc_randAp);
+            byte[] dec_randAp = engine.decrypt(iv3, enc_randAp);
             byte[] dec_randA = new byte[8];
             System.arraycopy(dec_randAp, 0, dec_randA, 1, 7);
             dec_randA[0] = dec_randAp[7];
@@ -495,20 +735,25 @@ public class Reader {
                 }
             }
             if (display) {
-                Reader.history += "decrypted randA:\n" + Dump.hex(dec_randA) + "\nmatches randA\n";
+                history.bytes("decrypted randA:\n", dec_randA);
+                history.message("matches randA\n");
             }
             if (display) {
-                Reader.history += "\nAuthentication OK\n--------------------------------\n";
+                history.message("\nAuthentication OK\n--------------------------------\n");
             }
             return true;
 
+        } catch (GeneralSecurityException g) {
+            history.message("\nAuthentication failed. Invalid key\n");
+            Log.d("E", g.toString());
+            return false;
         } catch (IndexOutOfBoundsException i) {
-            Reader.history += "\nAuthentication failed. Wrong key?\n";
+            history.message("\nAuthentication failed. Wrong key?\n");
             //Toast.makeText(MyActivity.outer, "Authentication failed", Toast.LENGTH_SHORT).show();
             Log.d("E", i.toString());
             return false;
         } catch (IOException e) {
-            Reader.history += "\nAuthentication failed. Wrong key?\n";
+            history.message("\nAuthentication failed. Wrong key?\n");
             //Toast.makeText(MyActivity.outer, "Authentication failed", Toast.LENGTH_SHORT).show();
             TicketActivity.autoAuth = false;
             Log.d("Exception", "IOException at " + str);
@@ -519,48 +764,150 @@ public class Reader {
     /**
      * Helper method for getting the type of a card.
      *
-     * @param card NfcA card to check.
+     * @param card card to check.
      * @return String value "unknown type", "Ultralight" or "Ultralight C"
      */
-    private static String getTagType(NfcA card) {
-        int typeID = MifareUltralight.get(card.getTag()).getType();
+    private static String getTagType(CardTransport card) {
+        int typeID = card.getType();
         String type = "";
         Log.d("Type", "" + typeID);
         switch (typeID) {
-            case -1:
+            case MifareUltralight.TYPE_UNKNOWN:
                 type = "unknown type";
                 break;
-            case 1:
+            case MifareUltralight.TYPE_ULTRALIGHT:
                 type = "Ultralight";
                 break;
-            case 2:
+            case MifareUltralight.TYPE_ULTRALIGHT_C:
                 type = "Ultralight C";
                 break;
         }
         return type;
     }
 
-    public static boolean connect() {
-        try {
-            if (!nfcA_card.isConnected()) {
-                nfcA_card.connect();
+    /**
+     * Get the commands of the current card. The family is found out the first time it is needed.
+     *
+     * @return family of the current card
+     */
+    public static CardFamily getFamily() {
+        TagContext tag = tag();
+        if (tag.family == null) tag.family = probeFamily();
+        return tag.family;
+    }
+
+    /**
+     * The phone tells the Ultralight C apart, but reports Ultralight EV1 and NTAG21x as plain
+     * Ultralight. Those answer GET_VERSION with their product and memory size, while the
+     * Ultralight does not know the command and has to be woken up again. NTAG21x is left a
+     * plain Ultralight, see {@link UltralightEV1Family#fromVersion(byte[])}, so the tickets
+     * refuse it when it does not authenticate.
+     */
+    private static CardFamily probeFamily() {
+        String type = getTagType(getCard());
+        if (!type.equals("Ultralight C")) {
+            byte[] cmd_get_version = new byte[]{(byte) 0x60};
+            try {
+                CardFamily ev1 = UltralightEV1Family.fromVersion(transceive(cmd_get_version));
+                if (ev1 != null) {
+                    if (history.isLogging(EventLog.Level.MESSAGES))
+                        history.message("\n" + ev1.getName() + " detected\n");
+                    return ev1;
+                }
+            } catch (IOException e) {
+                reconnect();
             }
-            return true;
-        } catch (IOException i) {
-            i.printStackTrace();
-            //Toast.makeText(MyActivity.outer, "Card not found", Toast.LENGTH_SHORT).show();
-            return false;
         }
+        return new UltralightCFamily(type);
+    }
+
+    /**
+     * Set the tag that is used for all following commands.
+     *
+     * @param nfcA NfcA card that was discovered
+     */
+    public static void setCard(NfcA nfcA) {
+        setCard(new NfcATransport(nfcA));
+    }
+
+    /**
+     * Set the card transport that is used for all following commands, e.g. a simulated card.
+     *
+     * @param transport link to the card
+     */
+    public static void setCard(CardTransport transport) {
+        TagContext tag = tag();
+        tag.card = transport;
+        tag.connection.setTransport(transport);
+        tag.fastReadSupport = 0;
+        tag.family = null;
+        tag.tagLost = false;
+        if (transport != null) tag.defaultTimeout = transport.getTimeout();
+        tag.currentTimeout = tag.defaultTimeout;
+    }
+
+    /**
+     * @return transport of the current tag, or null if there is none
+     */
+    public static CardTransport getCard() {
+        return tag().card;
+    }
+
+    /**
+     * Give the calling thread a tag of its own. Until {@link #unbind()}, the commands of the
+     * thread go to this tag, and the tags of the app and of other threads are not touched.
+     * The log and the key settings stay shared, the timeouts adapt to the tags of the thread.
+     *
+     * @param transport link to the tag of the thread
+     */
+    public static void bind(CardTransport transport) {
+        bound.set(new TagContext());
+        setCard(transport);
+    }
+
+    /**
+     * Let the calling thread use the tag of the app again.
+     */
+    public static void unbind() {
+        bound.remove();
+    }
+
+    private static TagContext tag() {
+        TagContext tag = bound.get();
+        return tag != null ? tag : shared;
+    }
+
+    /**
+     * Open the link to the current tag, once per tap. The link stays open, and the tag
+     * authenticated, until {@link #disconnect()} at the end of the tap.
+     *
+     * @return false if the tag is gone
+     */
+    public static boolean connect() {
+        TagContext tag = tag();
+        if (tag.tagLost) return false;
+        return tag.connection.open();
+    }
+
+    /**
+     * Select the tag again after it answered with NAK and went back to idle state. The
+     * authentication is lost.
+     *
+     * @return false if the tag is gone
+     */
+    public static boolean reconnect() {
+        TagContext tag = tag();
+        if (tag.tagLost) return false;
+        // closing resets the timeout of the tag
+        tag.currentTimeout = tag.defaultTimeout;
+        return tag.connection.reconnect();
     }
 
     public static boolean disconnect() {
-        try {
-            nfcA_card.close();
-            return true;
-        } catch (IOException i) {
-            i.printStackTrace();
-            return false;
-        }
+        TagContext tag = tag();
+        // closing resets the timeout of the tag
+        tag.currentTimeout = tag.defaultTimeout;
+        return tag.connection.close();
     }
 
 }
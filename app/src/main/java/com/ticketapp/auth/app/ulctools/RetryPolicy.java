@@ -0,0 +1,32 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * How much a tap may spend on recovering from transient RF errors.
+ * <p/>
+ * A failed read or write is tried again after the card has been selected again and
+ * authenticated, as long as the tap has retries left, has not used up its time budget for
+ * recovering, and the card is still there. Retrying is much cheaper than asking the passenger
+ * to tap again, which starts over from the UID.
+ */
+public class RetryPolicy {
+    private final int maxRetries;
+    private final long budgetNanos;
+
+    /**
+     * @param maxRetries   recoveries allowed in one tap
+     * @param budgetMillis time one tap may spend on recovering
+     */
+    public RetryPolicy(int maxRetries, int budgetMillis) {
+        this.maxRetries = maxRetries;
+        this.budgetNanos = budgetMillis * 1000000L;
+    }
+
+    /**
+     * @param session session of the current tap, or null if there is none
+     * @return true if the tap may recover once more
+     */
+    public boolean allows(CardSession session) {
+        return session != null && !Reader.isTagLost()
+                && session.getRetries() < maxRetries && session.getRetryNanos() < budgetNanos;
+    }
+}
@@ -0,0 +1,24 @@
+package com.ticketapp.auth.app.ulctools;
+
+/**
+ * Everything the {@link Reader} knows about one tag: its transport and link, the probed
+ * commands, the timeout set on it and the timeouts adapted to its answers.
+ * <p/>
+ * The app talks to one tag at a time through the shared context. A thread that validates
+ * tags of its own, e.g. one of several gate readers in one process, binds a context with
+ * {@link Reader#bind(CardTransport)} and does not see the tags of the other threads.
+ */
+final class TagContext {
+    final CardConnection connection = new CardConnection();
+    // the timeouts adapt to all tags of the context, one after the other
+    final TransceiveTimeouts timeouts = new TransceiveTimeouts();
+    CardTransport card;
+    // FAST_READ support of the tag: 0 = not probed yet, 1 = supported, -1 = not supported
+    int fastReadSupport = 0;
+    // commands of the tag, null if not probed yet
+    CardFamily family;
+    int defaultTimeout = CardSimulator.DEFAULT_TIMEOUT;
+    // timeout set on the tag
+    int currentTimeout = CardSimulator.DEFAULT_TIMEOUT;
+    boolean tagLost = false;
+}
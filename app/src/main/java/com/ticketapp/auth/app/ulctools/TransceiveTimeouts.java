@@ -0,0 +1,112 @@
+package com.ticketapp.auth.app.ulctools;
+
+import java.util.Locale;
+
+/**
+ * Timeout for each card command, adapted to how long the cards took to answer it before.
+ * <p/>
+ * For every command code the smoothed response time and its mean deviation are kept like the
+ * round trip time of TCP, and the timeout is the smoothed time plus four deviations, but at
+ * least {@link #MIN_MILLIS}. FAST_READ is measured per page, since its time grows with the
+ * number of pages. Until a command has been answered a few times, the default timeout of the
+ * card is used. After a command that was not answered in time while the card was still there,
+ * its timeout is doubled until the next answer.
+ */
+public class TransceiveTimeouts {
+    public static final int MIN_MILLIS = 5;
+    private static final int SAMPLES = 4;
+    private static final int MAX_BACKOFF = 64;
+
+    private final long[] smoothed = new long[256];
+    private final long[] deviation = new long[256];
+    private final int[] samples = new int[256];
+    private final int[] backoff = new int[256];
+    private long answered = 0;
+    private long timedOut = 0;
+    private long tagsLost = 0;
+
+    public TransceiveTimeouts() {
+        for (int i = 0; i < backoff.length; i++) backoff[i] = 1;
+    }
+
+    /**
+     * @param command       command bytes about to be sent
+     * @param defaultMillis default timeout of the card, also the upper limit
+     * @return timeout in milliseconds
+     */
+    public synchronized int timeoutMillis(byte[] command, int defaultMillis) {
+        int code = command[0] & 0xFF;
+        if (samples[code] < SAMPLES) return defaultMillis;
+        long micros = (smoothed[code] + 4 * deviation[code]) * units(command) * backoff[code];
+        long millis = (micros + 999) / 1000;
+        return (int) Math.min(defaultMillis, Math.max(MIN_MILLIS, millis));
+    }
+
+    /**
+     * Record the response time of a command that was answered.
+     */
+    public synchronized void answered(byte[] command, long nanos) {
+        int code = command[0] & 0xFF;
+        long micros = nanos / 1000 / units(command);
+        if (samples[code] == 0) {
+            smoothed[code] = micros;
+            deviation[code] = micros / 2;
+        } else {
+            long error = micros - smoothed[code];
+            smoothed[code] += error / 8;
+            deviation[code] += (Math.abs(error) - deviation[code]) / 4;
+        }
+        samples[code]++;
+        backoff[code] = 1;
+        answered++;
+    }
+
+    /**
+     * Record a command that was not answered in time, although the card was still there.
+     */
+    public synchronized void timedOut(byte[] command) {
+        int code = command[0] & 0xFF;
+        backoff[code] = Math.min(MAX_BACKOFF, backoff[code] * 2);
+        timedOut++;
+    }
+
+    /**
+     * Record a card that was gone when a command was not answered.
+     */
+    public synchronized void tagLost() {
+        tagsLost++;
+    }
+
+    public synchronized long getTagsLost() {
+        return tagsLost;
+    }
+
+    public synchronized long getTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return one line per command code seen, with the smoothed time, deviation and the time
+     * allowed before the minimum is applied, per page for FAST_READ
+     */
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-7s %8s %8s %8s %8s\n", "command", "count", "mean us", "dev us", "limit us"));
+        for (int code = 0; code < samples.length; code++) {
+            if (samples[code] == 0) continue;
+            long limit = (smoothed[code] + 4 * deviation[code]) * backoff[code];
+            sb.append(String.format(Locale.US, "0x%02X    %8d %8d %8d %8d\n", code, samples[code],
+                    smoothed[code], deviation[code], limit));
+        }
+        sb.append(String.format(Locale.US, "answered %d, timed out %d, tags lost %d\n", answered, timedOut, tagsLost));
+        return sb.toString();
+    }
+
+    /**
+     * @return pages read by a FAST_READ, 1 for other commands
+     */
+    private static int units(byte[] command) {
+        if (command[0] != (byte) 0x3A || command.length < 3) return 1;
+        return Math.max(1, (command[2] & 0xFF) - (command[1] & 0xFF) + 1);
+    }
+}
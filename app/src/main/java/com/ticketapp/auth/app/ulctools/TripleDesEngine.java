@@ -0,0 +1,122 @@
+package com.ticketapp.auth.app.ulctools;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.DESedeKeySpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * 3DES (DESede/CBC/NoPadding) with the key prepared once.
+ * <p/>
+ * {@link TripleDES} looks up the key factory and the cipher and rebuilds the key on every
+ * call. An engine is created once per key and then only runs the blocks. It either keeps
+ * the JCA ciphers of the key or uses the plain Java {@link DesCipher}, which avoids the
+ * provider lookup and most of the allocation for the two blocks of an authentication.
+ */
+public class TripleDesEngine {
+
+    public enum Backend {JCA, PURE_JAVA}
+
+    /** Backend used by engines created from now on */
+    public static Backend backend = Backend.PURE_JAVA;
+
+    private final DesCipher k1;
+    private final DesCipher k2;
+    private final DesCipher k3;
+    private final SecretKey secretKey;
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+
+    /**
+     * @param key 24-byte 3DES key K1 K2 K3
+     */
+    public TripleDesEngine(byte[] key) throws GeneralSecurityException {
+        this(key, backend);
+    }
+
+    public TripleDesEngine(byte[] key, Backend backend) throws GeneralSecurityException {
+        if (backend == Backend.PURE_JAVA) {
+            k1 = new DesCipher(key, 0);
+            k2 = new DesCipher(key, 8);
+            k3 = new DesCipher(key, 16);
+            secretKey = null;
+            encryptCipher = null;
+            decryptCipher = null;
+        } else {
+            k1 = k2 = k3 = null;
+            secretKey = SecretKeyFactory.getInstance("DESede").generateSecret(new DESedeKeySpec(key));
+            encryptCipher = Cipher.getInstance("DESede/CBC/NoPadding");
+            decryptCipher = Cipher.getInstance("DESede/CBC/NoPadding");
+        }
+    }
+
+    /**
+     * Encrypt whole 8-byte blocks in CBC mode.
+     *
+     * @param iv     initialization vector, 8 bytes
+     * @param in     message, length a multiple of 8
+     * @param out    destination of the encrypted message, may be the same array as in
+     * @param outOff starting position in the destination
+     */
+    public void encrypt(byte[] iv, byte[] in, int inOff, int length, byte[] out, int outOff) {
+        if (k1 == null) {
+            runCipher(encryptCipher, Cipher.ENCRYPT_MODE, iv, in, inOff, length, out, outOff);
+            return;
+        }
+        long chain = DesCipher.toLong(iv, 0);
+        for (int i = 0; i < length; i += 8) {
+            long block = DesCipher.toLong(in, inOff + i) ^ chain;
+            chain = k3.encrypt(k2.decrypt(k1.encrypt(block)));
+            DesCipher.toBytes(chain, out, outOff + i);
+        }
+    }
+
+    /**
+     * Decrypt whole 8-byte blocks in CBC mode.
+     *
+     * @param iv     initialization vector, 8 bytes
+     * @param in     encrypted message, length a multiple of 8
+     * @param out    destination of the decrypted message, may be the same array as in
+     * @param outOff starting position in the destination
+     */
+    public void decrypt(byte[] iv, byte[] in, int inOff, int length, byte[] out, int outOff) {
+        if (k1 == null) {
+            runCipher(decryptCipher, Cipher.DECRYPT_MODE, iv, in, inOff, length, out, outOff);
+            return;
+        }
+        long chain = DesCipher.toLong(iv, 0);
+        for (int i = 0; i < length; i += 8) {
+            long block = DesCipher.toLong(in, inOff + i);
+            long plain = k1.decrypt(k2.encrypt(k3.decrypt(block))) ^ chain;
+            chain = block;
+            DesCipher.toBytes(plain, out, outOff + i);
+        }
+    }
+
+    public byte[] encrypt(byte[] iv, byte[] msg) {
+        byte[] out = new byte[msg.length];
+        encrypt(iv, msg, 0, msg.length, out, 0);
+        return out;
+    }
+
+    public byte[] decrypt(byte[] iv, byte[] msg) {
+        byte[] out = new byte[msg.length];
+        decrypt(iv, msg, 0, msg.length, out, 0);
+        return out;
+    }
+
+    private void runCipher(Cipher cipher, int mode, byte[] iv, byte[] in, int inOff, int length,
+                           byte[] out, int outOff) {
+        synchronized (cipher) {
+            try {
+                cipher.init(mode, secretKey, new IvParameterSpec(iv));
+                cipher.doFinal(in, inOff, length, out, outOff);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.ticketapp.auth.app.ulctools;
+
+import java.util.Arrays;
+
+/**
+ * Ultralight C, and the plain Ultralight: the commands of {@link Reader} as they are.
+ */
+public class UltralightCFamily implements CardFamily {
+    private final String name;
+
+    public UltralightCFamily(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean authenticate(byte[] key) {
+        return Reader.authenticate(key, true);
+    }
+
+    @Override
+    public boolean readPages(int startPage, int numberOfPages, byte[] target, int targetPos) {
+        return Reader.readPages(startPage, numberOfPages, target, targetPos);
+    }
+
+    @Override
+    public boolean writePage(byte[] data, int page) {
+        return Reader.updatePage(data, page, false);
+    }
+
+    @Override
+    public boolean writeKey(byte[] key) {
+        for (int i = 0; i < 4; i++) {
+            if (!Reader.updatePage(Arrays.copyOfRange(key, i * 4, i * 4 + 4), 44 + i, false)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int physicalPage(int page) {
+        return page;
+    }
+}
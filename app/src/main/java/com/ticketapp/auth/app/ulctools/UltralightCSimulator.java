@@ -0,0 +1,233 @@
+package com.ticketapp.auth.app.ulctools;
+
+import android.nfc.tech.MifareUltralight;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * In-memory MIFARE Ultralight C that runs on any JVM.
+ * <p/>
+ * Implements READ, FAST_READ, WRITE, the 3DES mutual authentication (0x1A / 0xAF), read and
+ * write protection with AUTH0 / AUTH1, the 16-bit one-way counter on page 41 and the lock bits
+ * of pages 3 - 39. A real Ultralight C does not know FAST_READ, so it is answered with NAK
+ * unless enabled with {@link #setFastReadSupported(boolean)}.
+ */
+public class UltralightCSimulator extends CardSimulator {
+    public static final byte[] DEFAULT_KEY = "BREAKMEIFYOUCAN!".getBytes();
+
+    private static final int PAGES = 48;
+    private static final int READABLE_PAGES = 44;
+
+    private final SecureRandom random = new SecureRandom();
+    private boolean fastReadSupported = false;
+    private boolean authenticated = false;
+    private byte[] randB;
+    private byte[] encRandB;
+    private TripleDesEngine engine;
+
+    /**
+     * Create a blank card with the default key and no protection.
+     *
+     * @param uid 7-byte serial number of the card
+     */
+    public UltralightCSimulator(byte[] uid) {
+        super(PAGES * 4, uid);
+        memory[42 * 4] = 0x30; // AUTH0 above the memory, nothing protected
+        System.arraycopy(DEFAULT_KEY, 0, memory, 44 * 4, 16);
+    }
+
+    public void setFastReadSupported(boolean fastReadSupported) {
+        this.fastReadSupported = fastReadSupported;
+    }
+
+    @Override
+    public void setPages(int startPage, byte[] data) {
+        super.setPages(startPage, data);
+        if (startPage * 4 + data.length > READABLE_PAGES * 4) engine = null;
+    }
+
+    @Override
+    public int getCounter() {
+        return (memory[41 * 4] & 0xFF) | (memory[41 * 4 + 1] & 0xFF) << 8;
+    }
+
+    @Override
+    public int getType() {
+        return MifareUltralight.TYPE_ULTRALIGHT_C;
+    }
+
+    @Override
+    protected void reset() {
+        authenticated = false;
+        randB = null;
+    }
+
+    @Override
+    protected byte[] answer(byte[] data) throws IOException {
+        switch (data[0]) {
+            case (byte) 0x30:
+                if (data.length != 2) return nak();
+                return read(data[1] & 0xFF);
+            case (byte) 0x3A:
+                if (!fastReadSupported || data.length != 3) return nak();
+                return fastRead(data[1] & 0xFF, data[2] & 0xFF);
+            case (byte) 0xA2:
+                if (data.length != 6) return nak();
+                return write(data[1] & 0xFF, Arrays.copyOfRange(data, 2, 6));
+            case (byte) 0x1A:
+                return authenticateStep1();
+            case (byte) 0xAF:
+                return authenticateStep2(data);
+            default:
+                return nak();
+        }
+    }
+
+    private byte[] read(int page) throws IOException {
+        if (page >= READABLE_PAGES) return nak();
+        byte[] response = new byte[16];
+        for (int i = 0; i < 4; i++) {
+            // the address rolls over to page 0 after the last readable page
+            int p = (page + i) % READABLE_PAGES;
+            if (!readAllowed(p)) return nak();
+            System.arraycopy(memory, p * 4, response, i * 4, 4);
+        }
+        reads++;
+        return response;
+    }
+
+    private byte[] fastRead(int startPage, int endPage) throws IOException {
+        if (endPage < startPage || endPage >= READABLE_PAGES) return nak();
+        for (int p = startPage; p <= endPage; p++) {
+            if (!readAllowed(p)) return nak();
+        }
+        reads++;
+        return Arrays.copyOfRange(memory, startPage * 4, (endPage + 1) * 4);
+    }
+
+    private byte[] write(int page, byte[] data) throws IOException {
+        if (page < 2 || page >= PAGES || !writeAllowed(page) || locked(page)) return nak();
+        int offset = page * 4;
+        switch (page) {
+            case 2:
+                // only the lock bytes can be written, and bits can only be set
+                memory[offset + 2] |= data[2];
+                memory[offset + 3] |= data[3];
+                break;
+            case 3:
+                // one time programmable
+                for (int i = 0; i < 4; i++) memory[offset + i] |= data[i];
+                break;
+            case 40:
+                memory[offset] |= data[0];
+                memory[offset + 1] |= data[1];
+                break;
+            case 41:
+                // one-way counter, the written value is added to it
+                int counter = (memory[offset] & 0xFF) | (memory[offset + 1] & 0xFF) << 8;
+                int increment = (data[0] & 0xFF) | (data[1] & 0xFF) << 8;
+                if (counter + increment > 0xFFFF) return nak();
+                counter += increment;
+                memory[offset] = (byte) counter;
+                memory[offset + 1] = (byte) (counter >> 8);
+                break;
+            default:
+                System.arraycopy(data, 0, memory, offset, 4);
+                if (page >= READABLE_PAGES) engine = null;
+        }
+        writes++;
+        return new byte[]{ACK};
+    }
+
+    private byte[] authenticateStep1() throws IOException {
+        authenticated = false;
+        randB = new byte[8];
+        random.nextBytes(randB);
+        encRandB = engine().encrypt(new byte[8], randB);
+        byte[] response = new byte[9];
+        response[0] = (byte) 0xAF;
+        System.arraycopy(encRandB, 0, response, 1, 8);
+        return response;
+    }
+
+    private byte[] authenticateStep2(byte[] data) throws IOException {
+        if (randB == null || data.length != 17) return nak();
+        byte[] encRandCon = Arrays.copyOfRange(data, 1, 17);
+        byte[] randCon = engine().decrypt(encRandB, encRandCon);
+        // the reader must send randA followed by randB rotated left by one byte
+        for (int i = 0; i < 8; i++) {
+            if (randCon[8 + i] != randB[(i + 1) % 8]) {
+                randB = null;
+                return nak();
+            }
+        }
+        byte[] randAp = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            randAp[i] = randCon[(i + 1) % 8];
+        }
+        byte[] encRandAp = engine().encrypt(Arrays.copyOfRange(encRandCon, 8, 16), randAp);
+        randB = null;
+        authenticated = true;
+        authentications++;
+        byte[] response = new byte[9];
+        response[0] = 0x00;
+        System.arraycopy(encRandAp, 0, response, 1, 8);
+        return response;
+    }
+
+    /**
+     * @return 3DES engine of the key currently stored on the card
+     */
+    private TripleDesEngine engine() throws IOException {
+        if (engine == null) {
+            try {
+                engine = new TripleDesEngine(key());
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * The key is stored on pages 44 - 47 with the bytes of both halves in reversed order.
+     *
+     * @return 24-byte 3DES key K1 K2 K1
+     */
+    private byte[] key() {
+        byte[] key = new byte[24];
+        for (int i = 0; i < 8; i++) {
+            key[i] = memory[44 * 4 + 7 - i];
+            key[8 + i] = memory[44 * 4 + 15 - i];
+            key[16 + i] = key[i];
+        }
+        return key;
+    }
+
+    private int auth0() {
+        return memory[42 * 4] & 0xFF;
+    }
+
+    private boolean readAllowed(int page) {
+        boolean writeOnlyProtection = (memory[43 * 4] & 0x01) == 1;
+        return authenticated || writeOnlyProtection || page < auth0();
+    }
+
+    private boolean writeAllowed(int page) {
+        return authenticated || page < auth0();
+    }
+
+    /**
+     * @return true if the lock bits on page 2 or page 40 make the page read-only
+     */
+    private boolean locked(int page) {
+        if (page >= 3 && page <= 7) return (memory[2 * 4 + 2] & (1 << page)) != 0;
+        if (page >= 8 && page <= 15) return (memory[2 * 4 + 3] & (1 << (page - 8))) != 0;
+        if (page >= 16 && page <= 27) return (memory[40 * 4] & (1 << ((page / 4) - 3))) != 0;
+        if (page >= 28 && page <= 39) return (memory[40 * 4] & (1 << ((page / 4) - 2))) != 0;
+        return false;
+    }
+}
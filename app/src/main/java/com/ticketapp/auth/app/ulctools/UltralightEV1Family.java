@@ -0,0 +1,287 @@
+package com.ticketapp.auth.app.ulctools;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Ultralight EV1: password authentication with a single PWD_AUTH, the counter with READ_CNT
+ * and INCR_CNT, and reads with FAST_READ.
+ * <p/>
+ * The 36 Ultralight C user pages 4 - 39 are stored on the last user pages of the card,
+ * followed by the dynamic lock bytes as page 40, so the ticket pages 31 - 40 are read with
+ * one FAST_READ. Ultralight C pages the card has no room for read as zeros. Page 41 is the
+ * first counter of the card, AUTH0 on page 42 and AUTH1 on page 43 are translated to AUTH0
+ * and the PROT bit of the configuration pages. The key is turned into the 4-byte password
+ * and the 2-byte PACK the card answers PWD_AUTH with, so it can only be written whole with
+ * {@link #writeKey(byte[])}; the default Ultralight C key stands for the factory password.
+ * <p/>
+ * NTAG21x answers GET_VERSION as well, but has no INCR_CNT: its only counter counts the taps
+ * by itself, if enabled. A ride could not be counted on it, so it is not taken for a card of
+ * this family.
+ */
+public class UltralightEV1Family implements CardFamily {
+    // factory key of the Ultralight C
+    private static final byte[] defaultKey = "BREAKMEIFYOUCAN!".getBytes();
+    private static final byte[] factoryPassword = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x00, 0x00};
+
+    private static final int PROT = 0x80;
+
+    private final String name;
+    private final int lastUserPage;
+    private final int lockPage;
+    private final int configPage;
+    private final int counter;
+
+    /**
+     * @param lastUserPage last page of the user memory
+     * @param lockPage     page of the dynamic lock bytes, or -1 if the card has none
+     * @param configPage   page of CFG0, followed by CFG1, PWD and PACK
+     * @param counter      counter used for page 41
+     */
+    UltralightEV1Family(String name, int lastUserPage, int lockPage, int configPage, int counter) {
+        this.name = name;
+        this.lastUserPage = lastUserPage;
+        this.lockPage = lockPage;
+        this.configPage = configPage;
+        this.counter = counter;
+    }
+
+    /**
+     * @param version response to GET_VERSION
+     * @return the family of the card, or null if the card is not known or, like NTAG21x, can
+     * not count a ride
+     */
+    public static UltralightEV1Family fromVersion(byte[] version) {
+        if (version.length < 8 || version[1] != 0x04) return null; // NXP
+        int size = version[6] & 0xFF;
+        if (version[2] == 0x03) {
+            if (size == 0x0B) return new UltralightEV1Family("Ultralight EV1 MF0UL11", 15, -1, 16, 0);
+            if (size == 0x0E) return new UltralightEV1Family("Ultralight EV1 MF0UL21", 35, 36, 37, 0);
+        }
+        return null;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean authenticate(byte[] key) {
+        byte[] password = password(key);
+        byte[] cmd_pwd_auth = new byte[]{(byte) 0x1B, password[0], password[1], password[2], password[3]};
+        try {
+            byte[] response = Reader.transceive(cmd_pwd_auth);
+            Reader.history.command(cmd_pwd_auth, response);
+            // the PACK proves that the card knows the password too
+            if (response.length < 2 || response[0] != password[4] || response[1] != password[5]) {
+                Reader.history.message("\nAuthentication failed. Wrong PACK\n");
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Reader.history.message("\nAuthentication failed. Wrong password?\n");
+            return false;
+        }
+    }
+
+    /**
+     * @param key 16-byte Ultralight C key
+     * @return password in bytes 0 - 3 and PACK in bytes 4 - 5
+     */
+    static byte[] password(byte[] key) {
+        if (Arrays.equals(key, defaultKey)) return factoryPassword.clone();
+        try {
+            // the password is sent in the clear, so it must not give away the key
+            return Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(key), 6);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean readPages(int startPage, int numberOfPages, byte[] target, int targetPos) {
+        byte[] configuration = null; // CFG0 and CFG1, read once
+        int i = 0;
+        while (i < numberOfPages) {
+            int page = startPage + i;
+            int pos = targetPos + i * 4;
+            if (page == 41) {
+                if (!readCounter(target, pos)) return false;
+                i++;
+            } else if (page == 42 || page == 43) {
+                if (configuration == null) {
+                    configuration = new byte[8];
+                    if (!fastRead(configPage, 2, configuration, 0)) return false;
+                }
+                authConfiguration(page, configuration, target, pos);
+                i++;
+            } else if (page > 43) {
+                return false;
+            } else if (physicalPage(page) < 0) {
+                Arrays.fill(target, pos, pos + 4, (byte) 0);
+                i++;
+            } else {
+                // the pages that follow each other on the card too are read at once, with the
+                // configuration if it comes next and is needed as well
+                int physical = physicalPage(page);
+                int count = 1;
+                while (i + count < numberOfPages && physicalPage(page + count) == physical + count) count++;
+                boolean withConfiguration = configuration == null && physical + count == configPage
+                        && startPage + numberOfPages > 42;
+                byte[] data = new byte[(withConfiguration ? count + 2 : count) * 4];
+                if (!fastRead(physical, data.length / 4, data, 0)) return false;
+                System.arraycopy(data, 0, target, pos, count * 4);
+                if (withConfiguration) configuration = Arrays.copyOfRange(data, count * 4, data.length);
+                i += count;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean writePage(byte[] data, int page) {
+        if (page == 41) return incrementCounter(data);
+        if (page == 42 || page == 43) return writeAuthConfiguration(page, data);
+        int physical = physicalPage(page);
+        if (physical < 0 || page == 40 || page >= 44) {
+            // the lock bits of the Ultralight C do not translate to the dynamic lock bits, and
+        // a page of the key does not make a password
+            if (Reader.history.isLogging(EventLog.Level.MESSAGES))
+                Reader.history.message("\n" + name + ": page " + page + " can not be written\n");
+            return false;
+        }
+        return write(physical, data);
+    }
+
+    @Override
+    public int physicalPage(int page) {
+        if (page < 4) return page;
+        if (page <= 39) {
+            int physical = page - 39 + lastUserPage;
+            return physical >= 4 ? physical : -1;
+        }
+        if (page == 40) return lockPage;
+        return -1;
+    }
+
+    /**
+     * @return Ultralight C page the protection starts from, for AUTH0 of the card
+     */
+    private int logicalAuth0(int physical) {
+        if (physical < 4) return physical;
+        if (physical <= lastUserPage) return Math.max(4, physical + 39 - lastUserPage);
+        if (physical == lockPage) return 40;
+        if (physical < configPage + 4) return 42;
+        return 0x30; // nothing protected
+    }
+
+    /**
+     * @return AUTH0 of the card, for the Ultralight C page the protection starts from
+     */
+    private int physicalAuth0(int page) {
+        if (page < 4) return page;
+        if (page <= 40) {
+            int physical = physicalPage(page);
+            if (physical >= 0) return physical;
+            return page == 40 ? configPage : 4;
+        }
+        if (page < 44) return configPage;
+        return 0xFF; // nothing protected
+    }
+
+    private boolean readCounter(byte[] target, int targetPos) {
+        byte[] cmd_read_cnt = new byte[]{(byte) 0x39, (byte) counter};
+        try {
+            byte[] response = Reader.transceive(cmd_read_cnt);
+            if (response.length < 3) return false;
+            // 24 bits in little endian, like the 16 bits of the Ultralight C counter
+            System.arraycopy(response, 0, target, targetPos, 3);
+            target[targetPos + 3] = 0;
+            return true;
+        } catch (IOException e) {
+            Reader.history.message("\n\nReading the counter failed - IOException\n");
+            return false;
+        }
+    }
+
+    private boolean incrementCounter(byte[] data) {
+        byte[] cmd_incr_cnt = new byte[]{(byte) 0xA5, (byte) counter, data[0], data[1], data[2], 0x00};
+        return send(cmd_incr_cnt);
+    }
+
+    /**
+     * Translate CFG0 and CFG1 to AUTH0 or AUTH1 of the Ultralight C.
+     */
+    private void authConfiguration(int page, byte[] configuration, byte[] target, int targetPos) {
+        Arrays.fill(target, targetPos, targetPos + 4, (byte) 0);
+        if (page == 42) {
+            target[targetPos] = (byte) logicalAuth0(configuration[3] & 0xFF);
+        } else {
+            // AUTH1 bit 0 is set for write protection only, PROT for read and write protection
+            target[targetPos] = (byte) ((configuration[4] & PROT) != 0 ? 0x00 : 0x01);
+        }
+    }
+
+    private boolean writeAuthConfiguration(int page, byte[] data) {
+        byte[] configuration = new byte[8];
+        if (!fastRead(configPage, 2, configuration, 0)) return false;
+        if (page == 42) {
+            configuration[3] = (byte) physicalAuth0(data[0] & 0xFF);
+            return write(configPage, configuration);
+        }
+        if ((data[0] & 0x01) == 0) configuration[4] |= PROT;
+        else configuration[4] &= ~PROT;
+        return write(configPage + 1, Arrays.copyOfRange(configuration, 4, 8));
+    }
+
+    /**
+     * The password and PACK are derived from the whole key. PACK is written after PWD, a card
+     * that lost the second write can not answer PWD_AUTH with the PACK of either key.
+     */
+    @Override
+    public boolean writeKey(byte[] key) {
+        byte[] password = password(key);
+        return write(configPage + 2, password)
+                && write(configPage + 3, new byte[]{password[4], password[5], 0x00, 0x00});
+    }
+
+    private boolean fastRead(int startPage, int numberOfPages, byte[] target, int targetPos) {
+        int maxPages = Math.max(1, Reader.getCard().getMaxTransceiveLength() / 4);
+        byte[] cmd_fast_read = new byte[]{(byte) 0x3A, (byte) 0x00, (byte) 0x00};
+        for (int i = 0; i < numberOfPages; i += maxPages) {
+            int count = Math.min(maxPages, numberOfPages - i);
+            cmd_fast_read[1] = (byte) (startPage + i);
+            cmd_fast_read[2] = (byte) (startPage + i + count - 1);
+            try {
+                byte[] response = Reader.transceive(cmd_fast_read);
+                if (response.length < count * 4) return false;
+                System.arraycopy(response, 0, target, targetPos + i * 4, count * 4);
+            } catch (IOException e) {
+                Reader.history.message("\n\nReading failed - IOException\n");
+                if (Reader.history.isLogging(EventLog.Level.MESSAGES))
+                    Reader.history.message("Error when reading page " + (startPage + i) + "\n--------------------------------");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean write(int physical, byte[] data) {
+        byte[] cmd_write = new byte[]{(byte) 0xA2, (byte) physical, data[0], data[1], data[2], data[3]};
+        return send(cmd_write);
+    }
+
+    private boolean send(byte[] cmd) {
+        try {
+            byte[] response = Reader.transceive(cmd);
+            Reader.history.command(cmd, response);
+            return true;
+        } catch (IOException e) {
+            Reader.history.message("\nWriting failed: IOException\n--------------------------------");
+            return false;
+        }
+    }
+}
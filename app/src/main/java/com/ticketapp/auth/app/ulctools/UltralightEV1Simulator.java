@@ -0,0 +1,202 @@
+package com.ticketapp.auth.app.ulctools;
+
+import android.nfc.tech.MifareUltralight;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * In-memory MIFARE Ultralight EV1 with 128 bytes of user memory (MF0UL21).
+ * <p/>
+ * Implements GET_VERSION, READ, FAST_READ, WRITE, PWD_AUTH, READ_CNT and INCR_CNT, and read
+ * and write protection with AUTH0 and the PROT bit. The pages are
+ * <pre>
+ *  0 - 3    UID, lock bytes, OTP
+ *  4 - 35   user memory
+ *  36       dynamic lock bytes
+ *  37       CFG0, AUTH0 in byte 3
+ *  38       CFG1, ACCESS in byte 0
+ *  39       PWD, reads as zeros
+ *  40       PACK in bytes 0 - 1
+ * </pre>
+ * The three 24-bit counters follow the pages in the memory image, as if they were pages
+ * 41 - 43, so {@link #getMemory()} and {@link #setPages(int, byte[])} cover them too.
+ */
+public class UltralightEV1Simulator extends CardSimulator {
+    public static final byte[] VERSION = {0x00, 0x04, 0x03, 0x01, 0x01, 0x00, 0x0E, 0x03};
+
+    private static final int PAGES = 41;
+    private static final int LOCK = 36;
+    private static final int CFG0 = 37;
+    private static final int CFG1 = 38;
+    private static final int PWD = 39;
+    private static final int PACK = 40;
+    private static final int COUNTERS = 3;
+    private static final int PROT = 0x80;
+
+    private boolean authenticated = false;
+
+    /**
+     * Create a blank card with the factory password FFFFFFFFh, PACK 0000h and no protection.
+     *
+     * @param uid 7-byte serial number of the card
+     */
+    public UltralightEV1Simulator(byte[] uid) {
+        super((PAGES + COUNTERS) * 4, uid);
+        memory[CFG0 * 4 + 3] = (byte) 0xFF; // AUTH0 above the memory, nothing protected
+        Arrays.fill(memory, PWD * 4, PWD * 4 + 4, (byte) 0xFF);
+    }
+
+    @Override
+    public int getCounter() {
+        int offset = PAGES * 4;
+        return (memory[offset] & 0xFF) | (memory[offset + 1] & 0xFF) << 8 | (memory[offset + 2] & 0xFF) << 16;
+    }
+
+    @Override
+    public int getType() {
+        // the phone only knows Ultralight and Ultralight C
+        return MifareUltralight.TYPE_ULTRALIGHT;
+    }
+
+    @Override
+    protected void reset() {
+        authenticated = false;
+    }
+
+    @Override
+    protected byte[] answer(byte[] data) throws IOException {
+        switch (data[0]) {
+            case (byte) 0x60:
+                if (data.length != 1) return nak();
+                return VERSION.clone();
+            case (byte) 0x30:
+                if (data.length != 2) return nak();
+                return read(data[1] & 0xFF);
+            case (byte) 0x3A:
+                if (data.length != 3) return nak();
+                return fastRead(data[1] & 0xFF, data[2] & 0xFF);
+            case (byte) 0xA2:
+                if (data.length != 6) return nak();
+                return write(data[1] & 0xFF, Arrays.copyOfRange(data, 2, 6));
+            case (byte) 0x1B:
+                if (data.length != 5) return nak();
+                return passwordAuthenticate(Arrays.copyOfRange(data, 1, 5));
+            case (byte) 0x39:
+                if (data.length != 2) return nak();
+                return readCounter(data[1] & 0xFF);
+            case (byte) 0xA5:
+                if (data.length != 6) return nak();
+                return incrementCounter(data[1] & 0xFF, data);
+            default:
+                return nak();
+        }
+    }
+
+    private byte[] read(int page) throws IOException {
+        if (page >= PAGES) return nak();
+        byte[] response = new byte[16];
+        for (int i = 0; i < 4; i++) {
+            // the address rolls over to page 0 after the last page
+            int p = (page + i) % PAGES;
+            if (!readAllowed(p)) return nak();
+            copyPage(p, response, i * 4);
+        }
+        reads++;
+        return response;
+    }
+
+    private byte[] fastRead(int startPage, int endPage) throws IOException {
+        if (endPage < startPage || endPage >= PAGES) return nak();
+        byte[] response = new byte[(endPage - startPage + 1) * 4];
+        for (int p = startPage; p <= endPage; p++) {
+            if (!readAllowed(p)) return nak();
+            copyPage(p, response, (p - startPage) * 4);
+        }
+        reads++;
+        return response;
+    }
+
+    private void copyPage(int page, byte[] target, int targetPos) {
+        // the password and PACK can not be read back
+        if (page == PWD || page == PACK) return;
+        System.arraycopy(memory, page * 4, target, targetPos, 4);
+    }
+
+    private byte[] write(int page, byte[] data) throws IOException {
+        if (page < 2 || page >= PAGES || !writeAllowed(page) || locked(page)) return nak();
+        int offset = page * 4;
+        switch (page) {
+            case 2:
+                // only the lock bytes can be written, and bits can only be set
+                memory[offset + 2] |= data[2];
+                memory[offset + 3] |= data[3];
+                break;
+            case 3:
+                // one time programmable
+                for (int i = 0; i < 4; i++) memory[offset + i] |= data[i];
+                break;
+            case LOCK:
+                for (int i = 0; i < 3; i++) memory[offset + i] |= data[i];
+                break;
+            default:
+                System.arraycopy(data, 0, memory, offset, 4);
+        }
+        writes++;
+        return new byte[]{ACK};
+    }
+
+    private byte[] passwordAuthenticate(byte[] password) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            if (password[i] != memory[PWD * 4 + i]) return nak();
+        }
+        authenticated = true;
+        authentications++;
+        return Arrays.copyOfRange(memory, PACK * 4, PACK * 4 + 2);
+    }
+
+    private byte[] readCounter(int counter) throws IOException {
+        if (counter >= COUNTERS) return nak();
+        int offset = (PAGES + counter) * 4;
+        return Arrays.copyOfRange(memory, offset, offset + 3);
+    }
+
+    private byte[] incrementCounter(int counter, byte[] data) throws IOException {
+        if (counter >= COUNTERS) return nak();
+        int offset = (PAGES + counter) * 4;
+        int value = (memory[offset] & 0xFF) | (memory[offset + 1] & 0xFF) << 8 | (memory[offset + 2] & 0xFF) << 16;
+        int increment = (data[2] & 0xFF) | (data[3] & 0xFF) << 8 | (data[4] & 0xFF) << 16;
+        if (value + increment > 0xFFFFFF) return nak();
+        value += increment;
+        memory[offset] = (byte) value;
+        memory[offset + 1] = (byte) (value >> 8);
+        memory[offset + 2] = (byte) (value >> 16);
+        writes++;
+        return new byte[]{ACK};
+    }
+
+    private int auth0() {
+        return memory[CFG0 * 4 + 3] & 0xFF;
+    }
+
+    private boolean readAllowed(int page) {
+        boolean readProtection = (memory[CFG1 * 4] & PROT) != 0;
+        return authenticated || !readProtection || page < auth0();
+    }
+
+    private boolean writeAllowed(int page) {
+        return authenticated || page < auth0();
+    }
+
+    /**
+     * @return true if the lock bits on page 2 or the dynamic lock bytes make the page read-only
+     */
+    private boolean locked(int page) {
+        if (page >= 3 && page <= 7) return (memory[2 * 4 + 2] & (1 << page)) != 0;
+        if (page >= 8 && page <= 15) return (memory[2 * 4 + 3] & (1 << (page - 8))) != 0;
+        // each dynamic lock bit locks two pages from page 16 on
+        if (page >= 16 && page < 32) return (memory[LOCK * 4] & (1 << ((page - 16) / 2))) != 0;
+        if (page >= 32 && page < LOCK) return (memory[LOCK * 4 + 1] & (1 << ((page - 32) / 2))) != 0;
+        return false;
+    }
+}
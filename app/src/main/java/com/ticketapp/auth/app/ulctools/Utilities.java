@@ -7,16 +7,32 @@ package com.ticketapp.auth.app.ulctools;
 
 import android.util.Log;
 
+import java.util.Arrays;
+
 /**
  * Compatibility class to make Desktop versions of Ticket class methods compatible with the Android application.
+ * <p/>
+ * Reads and writes that fail are tried again from the failed page after selecting and
+ * authenticating the card again, as far as the {@link RetryPolicy} allows.
  */
 public class Utilities {
+    private static final int COUNTER_PAGE = 41;
+    private static final int KEY_PAGE = 44;
+
     Commands ul;
+    private RetryPolicy retryPolicy = new RetryPolicy(2, 300);
+    // key of the last successful authentication, and the session it belongs to
+    private byte[] key;
+    private CardSession keySession;
 
 
     public Utilities(Commands ul) {
         this.ul = ul;
     }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
     /**
      * Try to erase card content from page 4 to page 39.
      *
@@ -49,21 +65,32 @@ public class Utilities {
      * @return boolean value of success
      */
     public boolean readPages(int startPage, int numberOfPages, byte[] destination, int destinationStartByte) {
-        // We always read and write one 4-byte page at a time.
+        // A READ returns four pages at once, so the whole range is read with one command
+        // per four pages, or with a single FAST_READ when the tag supports it.
+        if (ul.readBinary(startPage, numberOfPages, destination, destinationStartByte)) {
+            return true;
+        }
+        // Fall back to reading one 4-byte page at a time.
         // The address is the number 0...39 of the 4-byte page.
         for (int i = 0; i < numberOfPages; i++) {
-            boolean status = ul.readBinary(startPage + i, destination,
-                    destinationStartByte + i * 4);
-            if (!status) {
-                return false;
+            int position = destinationStartByte + i * 4;
+            if (ul.readBinary(startPage + i, destination, position)) continue;
+            // the pages before are done, read the rest once the card is back
+            boolean status = false;
+            while (!status && recover()) {
+                status = ul.readBinary(startPage + i, numberOfPages - i, destination, position);
             }
+            return status;
         }
         return true;
 
     }
 
     /**
-     * Write input byte array on card
+     * Write input byte array on card.
+     * <p/>
+     * Pages whose content is already known to be equal to the data are skipped, see
+     * {@link Commands#setWriteElision(boolean)}.
      *
      * @param srcBuffer     byte array
      * @param srcPos        starting point of data to write
@@ -72,12 +99,28 @@ public class Utilities {
      * @return boolean value of success
      */
     public boolean writePages(byte[] srcBuffer, int srcPos, int startPage, int numberOfPages) {
+        if (startPage == KEY_PAGE && numberOfPages == 4) return writeKey(srcBuffer, srcPos);
         boolean status;
         // We always read and write one 4-byte page at a time.
         // The address is the number 0...39 of the 4-byte page.
         for (int i = 0; i < numberOfPages; i++) {
-            status = ul.writeBinary(startPage + i, srcBuffer, srcPos + 4
-                    * i);
+            int page = startPage + i;
+            int position = srcPos + 4 * i;
+            // a write to the counter adds to it, so a retry has to know whether it was done
+            int counter = page == COUNTER_PAGE ? readCounter() : -1;
+            status = ul.writeBinary(page, srcBuffer, position);
+            if (!status && page == COUNTER_PAGE && counter < 0) return false;
+            while (!status && recover()) {
+                if (page == COUNTER_PAGE) {
+                    // the card may have done the write and only the answer was lost
+                    int now = readCounter();
+                    if (now == counter + littleEndian(srcBuffer, position)) status = true;
+                    else if (now == counter) status = ul.writeBinary(page, srcBuffer, position);
+                    else return false;
+                } else {
+                    status = ul.writeBinary(page, srcBuffer, position);
+                }
+            }
             if (!status) {
                 return false;
             }
@@ -86,13 +129,77 @@ public class Utilities {
     }
 
     /**
-     * Authenticate card with given key in stored in byte array
+     * Write a new 16-byte key to pages 44 - 47. The key is written as a whole, see
+     * {@link CardFamily#writeKey(byte[])}, and retried as a whole after an error.
+     *
+     * @param srcBuffer byte array that contains the key
+     * @param srcPos    starting position of the key on input array
+     * @return boolean value of success
+     */
+    public boolean writeKey(byte[] srcBuffer, int srcPos) {
+        boolean status = ul.writeKey(srcBuffer, srcPos);
+        while (!status && recover()) {
+            status = ul.writeKey(srcBuffer, srcPos);
+        }
+        if (status && keySession == ul.getSession()) {
+            // the card is authenticated with the new key from now on
+            key = Arrays.copyOfRange(srcBuffer, srcPos, srcPos + 16);
+        }
+        return status;
+    }
+
+    /**
+     * @return value of the counter, -1 if it can not be read
+     */
+    private int readCounter() {
+        byte[] counter = new byte[4];
+        if (!ul.readBinary(COUNTER_PAGE, counter, 0)) return -1;
+        return littleEndian(counter, 0);
+    }
+
+    private static int littleEndian(byte[] b, int p) {
+        return (b[p] & 0xFF) | (b[p + 1] & 0xFF) << 8 | (b[p + 2] & 0xFF) << 16 | (b[p + 3] & 0x7F) << 24;
+    }
+
+    /**
+     * Select the card again and authenticate with the key of the current tap, after a read or
+     * write failed.
+     *
+     * @return false if the retry policy does not allow it, or the card could not be selected
+     * and authenticated
+     */
+    private boolean recover() {
+        CardSession session = ul.getSession();
+        if (!retryPolicy.allows(session)) return false;
+        long start = System.nanoTime();
+        Reader.history.message("\nRetrying after an error\n");
+        boolean status = reconnect() && (key == null || keySession != session || Reader.getFamily().authenticate(key));
+        session.retried(System.nanoTime() - start);
+        return status;
+    }
+
+    /**
+     * Authenticate card with given key in stored in byte array. Cards without 3DES
+     * authentication use a password derived from the key, see {@link CardFamily}.
      *
      * @param key byte array that contains the key
      * @return boolean value of success
      */
     public boolean authenticate(byte[] key) {
-        return Reader.authenticate(key, true);
+        boolean status = Reader.getFamily().authenticate(key);
+        this.key = status ? key.clone() : null;
+        keySession = ul.getSession();
+        return status;
+    }
+
+    /**
+     * Reactivate the card. A failed authentication leaves the card in idle state, where it
+     * does not answer until it is selected again.
+     *
+     * @return boolean value of success
+     */
+    public boolean reconnect() {
+        return Reader.reconnect();
     }
 
     /**
@@ -0,0 +1,446 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.Utilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Highest counter and counter state seen on each card, to spot cloned or rolled back cards.
+ * <p/>
+ * The counter of a card only goes up, and the counter state on page 33 is set to the counter
+ * when tickets are issued, so it never goes down either. A card that shows a lower counter
+ * or counter state than this validator has seen before is a copy of an older image of the
+ * card, or a second card answering with the same UID. The card is flagged, the ticket
+ * checks still decide the tap.
+ * <p/>
+ * The UID pages are packed into a long and kept in an open addressing table of parallel
+ * arrays, so a lookup is a few array reads without boxing, whatever the number of cards.
+ * A background thread keeps the slow work away from the taps: it grows the table before it
+ * fills up, and writes it to a file once a minute when it changed, which is loaded from
+ * there on start; a validator that is killed forgets at most the last minute. Both copy the
+ * table a few slots at a time, and since a tap only ever raises the values of a card, a tap
+ * that comes in between is merged into the new table or caught by the next save.
+ */
+public class CounterIndex {
+
+    public enum Verdict {
+        /** card not seen before */
+        NEW,
+        OK,
+        /** the counter is lower than seen before */
+        COUNTER_ROLLED_BACK,
+        /** the counter state is lower than seen before, the tickets are from an older issue */
+        STATE_ROLLED_BACK,
+        /** the counter state is above the counter, the tickets were issued on another card */
+        STATE_AHEAD;
+
+        public boolean isSuspect() {
+            return this == COUNTER_ROLLED_BACK || this == STATE_ROLLED_BACK || this == STATE_AHEAD;
+        }
+    }
+
+    // time between the saves of a changed table, in milliseconds
+    static final long SAVE_MILLIS = 60 * 1000;
+    private static final int MAGIC = 0x434e5431; // "CNT1"
+    private static final int MIN_CAPACITY = 1024;
+    // slots copied under the lock at a time when the table is grown or saved
+    private static final int CHUNK = 256;
+
+    /**
+     * Parallel arrays of the cards, slot i is free if keys[i] == 0.
+     */
+    private static final class Table {
+        final long[] keys;
+        final int[] counters;
+        final int[] states;
+        final int[] lastSeen;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            counters = new int[capacity];
+            states = new int[capacity];
+            lastSeen = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        /**
+         * @return slot of the key, or the free slot where it goes
+         */
+        int slot(long key) {
+            // spread the bits, the UID bytes of one manufacturer share their first bytes
+            long h = key * 0x9E3779B97F4A7C15L;
+            int slot = (int) (h ^ (h >>> 32)) & mask;
+            while (keys[slot] != 0 && keys[slot] != key) slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        /**
+         * Keep the higher values of a card.
+         *
+         * @return true if the card was not in the table
+         */
+        boolean merge(long key, int counter, int state, int seen) {
+            int slot = slot(key);
+            if (keys[slot] == 0) {
+                keys[slot] = key;
+                counters[slot] = counter;
+                states[slot] = state;
+                lastSeen[slot] = seen;
+                return true;
+            }
+            counters[slot] = Math.max(counters[slot], counter);
+            states[slot] = Math.max(states[slot], state);
+            lastSeen[slot] = Math.max(lastSeen[slot], seen);
+            return false;
+        }
+    }
+
+    private final File file;
+    // the UID packed into 0 is kept apart
+    private Table table;
+    // the larger table being filled by the background thread, or null
+    private Table growing;
+    private int size = 0;
+    private boolean hasZero = false;
+    private int zeroCounter, zeroState, zeroLastSeen;
+    private boolean dirty = false;
+    private boolean growRequested = false;
+    private long suspects = 0;
+    private Thread worker;
+    private final Object saveLock = new Object();
+    // copy of the table written by save(), reused between saves
+    private long[] savedKeys = new long[0];
+    private int[] savedCounters = new int[0], savedStates = new int[0], savedLastSeen = new int[0];
+
+    /**
+     * @param file file the table is kept in, or null to keep it in memory only
+     */
+    public CounterIndex(File file) {
+        this.file = file;
+        table = new Table(MIN_CAPACITY);
+        if (file == null) return;
+        load();
+        startWorker();
+    }
+
+    /**
+     * @param uid pages 0 and 1 of the card
+     * @return the UID packed into the key of the table
+     */
+    public static long key(byte[] uid) {
+        long key = 0;
+        for (int i = 0; i < 8; i++) key = (key << 8) | (uid[i] & 0xFF);
+        return key;
+    }
+
+    /**
+     * Compare a card with what was seen of it before, and remember the higher values.
+     *
+     * @param counter      counter read from the card
+     * @param counterState counter state read from the card
+     * @param now          time in seconds since the epoch
+     */
+    public synchronized Verdict observe(long uid, int counter, int counterState, int now) {
+        dirty = true;
+        if (uid == 0) {
+            if (!hasZero) {
+                hasZero = true;
+                zeroCounter = counter;
+                zeroState = counterState;
+                zeroLastSeen = now;
+                size++;
+                return counterState > counter ? suspect(Verdict.STATE_AHEAD) : Verdict.NEW;
+            }
+            Verdict verdict = verdict(zeroCounter, zeroState, counter, counterState);
+            zeroCounter = Math.max(zeroCounter, counter);
+            zeroState = Math.max(zeroState, counterState);
+            zeroLastSeen = now;
+            return verdict;
+        }
+        if (growing != null) growing.merge(uid, counter, counterState, now);
+        int slot = table.slot(uid);
+        if (table.keys[slot] == 0) {
+            table.keys[slot] = uid;
+            table.counters[slot] = counter;
+            table.states[slot] = counterState;
+            table.lastSeen[slot] = now;
+            size++;
+            if (size * 4 > table.keys.length * 3) {
+                // the background thread fell behind, the probes would get long
+                finishGrowing();
+            } else if (size * 2 > table.keys.length && growing == null && !growRequested) {
+                growRequested = true;
+                if (worker == null) startWorker();
+                notifyAll();
+            }
+            return counterState > counter ? suspect(Verdict.STATE_AHEAD) : Verdict.NEW;
+        }
+        Verdict verdict = verdict(table.counters[slot], table.states[slot], counter, counterState);
+        table.counters[slot] = Math.max(table.counters[slot], counter);
+        table.states[slot] = Math.max(table.states[slot], counterState);
+        table.lastSeen[slot] = now;
+        return verdict;
+    }
+
+    private Verdict verdict(int seenCounter, int seenState, int counter, int counterState) {
+        if (counter < seenCounter) return suspect(Verdict.COUNTER_ROLLED_BACK);
+        if (counterState < seenState) return suspect(Verdict.STATE_ROLLED_BACK);
+        // the counter state is set to the counter when tickets are issued, and the counter
+        // only goes up from there
+        if (counterState > counter) return suspect(Verdict.STATE_AHEAD);
+        return Verdict.OK;
+    }
+
+    private Verdict suspect(Verdict verdict) {
+        suspects++;
+        return verdict;
+    }
+
+    /**
+     * @return highest counter seen on the card, or -1 if not seen
+     */
+    public synchronized int getCounter(long uid) {
+        if (uid == 0) return hasZero ? zeroCounter : -1;
+        int slot = table.slot(uid);
+        return table.keys[slot] == 0 ? -1 : table.counters[slot];
+    }
+
+    /**
+     * @return time the card was last seen in seconds since the epoch, or 0 if not seen
+     */
+    public synchronized int getLastSeen(long uid) {
+        if (uid == 0) return hasZero ? zeroLastSeen : 0;
+        int slot = table.slot(uid);
+        return table.keys[slot] == 0 ? 0 : table.lastSeen[slot];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** @return slots of the table, it is grown when half of them are taken */
+    public synchronized int capacity() {
+        return table.keys.length;
+    }
+
+    /** @return taps on which a card was flagged */
+    public synchronized long getSuspects() {
+        return suspects;
+    }
+
+    /**
+     * Move the cards to a table twice the size. The new table is allocated without the lock
+     * and filled a chunk at a time; the taps meanwhile go to both tables.
+     */
+    void grow() {
+        int capacity;
+        synchronized (this) {
+            growRequested = false;
+            if (growing != null || size * 2 <= table.keys.length) return;
+            capacity = table.keys.length * 2;
+        }
+        Table next = new Table(capacity);
+        Table old;
+        synchronized (this) {
+            if (growing != null || table.keys.length * 2 != capacity) return;
+            growing = next;
+            old = table;
+        }
+        for (int from = 0; from < old.keys.length; from += CHUNK) {
+            synchronized (this) {
+                // finished by a tap that could not wait
+                if (growing != next) return;
+                copy(old, next, from, Math.min(old.keys.length, from + CHUNK));
+            }
+        }
+        synchronized (this) {
+            if (growing != next) return;
+            table = next;
+            growing = null;
+        }
+    }
+
+    /**
+     * Grow the table right away, on the thread of the tap. Only if the background thread did
+     * not keep up.
+     */
+    private void finishGrowing() {
+        if (growing == null) growing = new Table(table.keys.length * 2);
+        copy(table, growing, 0, table.keys.length);
+        table = growing;
+        growing = null;
+    }
+
+    private static void copy(Table from, Table to, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (from.keys[i] != 0) to.merge(from.keys[i], from.counters[i], from.states[i], from.lastSeen[i]);
+        }
+    }
+
+    /**
+     * Write the table if it changed since it was last written. The table is copied a chunk at
+     * a time under the lock and written outside of it, taps go on meanwhile. A tap between
+     * two chunks only raises values, so the file holds values the cards really had, and the
+     * tap is written with the next save.
+     */
+    public void save() {
+        // one save at a time, the copy of the table is reused
+        synchronized (saveLock) {
+            Table source;
+            boolean zero;
+            int zeroCounter, zeroState, zeroLastSeen;
+            synchronized (this) {
+                if (!dirty || file == null) return;
+                dirty = false;
+                source = table;
+                zero = hasZero;
+                zeroCounter = this.zeroCounter;
+                zeroState = this.zeroState;
+                zeroLastSeen = this.zeroLastSeen;
+            }
+            int capacity = source.keys.length;
+            if (savedKeys.length != capacity) {
+                savedKeys = new long[capacity];
+                savedCounters = new int[capacity];
+                savedStates = new int[capacity];
+                savedLastSeen = new int[capacity];
+            }
+            for (int from = 0; from < capacity; from += CHUNK) {
+                int length = Math.min(CHUNK, capacity - from);
+                synchronized (this) {
+                    // grown by a tap meanwhile, the new cards go with the next save
+                    if (table != source) dirty = true;
+                    System.arraycopy(source.keys, from, savedKeys, from, length);
+                    System.arraycopy(source.counters, from, savedCounters, from, length);
+                    System.arraycopy(source.states, from, savedStates, from, length);
+                    System.arraycopy(source.lastSeen, from, savedLastSeen, from, length);
+                }
+            }
+            if (!write(zero, zeroCounter, zeroState, zeroLastSeen)) {
+                synchronized (this) {
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the copy of the table made by save() to the file.
+     */
+    private boolean write(boolean zero, int zeroCounter, int zeroState, int zeroLastSeen) {
+        int entries = 0;
+        for (long key : savedKeys) {
+            if (key != 0) entries++;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeBoolean(zero);
+                out.writeInt(zeroCounter);
+                out.writeInt(zeroState);
+                out.writeInt(zeroLastSeen);
+                out.writeInt(entries);
+                for (int i = 0; i < savedKeys.length; i++) {
+                    if (savedKeys[i] == 0) continue;
+                    out.writeLong(savedKeys[i]);
+                    out.writeInt(savedCounters[i]);
+                    out.writeInt(savedStates[i]);
+                    out.writeInt(savedLastSeen[i]);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) Utilities.log("Can not replace " + file, true);
+            return true;
+        } catch (IOException e) {
+            Utilities.log("Can not save counter index: " + e.toString(), true);
+            return false;
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    Utilities.log("Unknown counter index " + file, true);
+                    return;
+                }
+                if (in.readBoolean()) {
+                    hasZero = true;
+                    size++;
+                }
+                zeroCounter = in.readInt();
+                zeroState = in.readInt();
+                zeroLastSeen = in.readInt();
+                int entries = in.readInt();
+                int capacity = MIN_CAPACITY;
+                while (capacity < 2 * (entries + 1)) capacity *= 2;
+                table = new Table(capacity);
+                for (int i = 0; i < entries; i++) {
+                    long key = in.readLong();
+                    int counter = in.readInt();
+                    int state = in.readInt();
+                    int seen = in.readInt();
+                    if (table.merge(key, counter, state, seen)) size++;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            Utilities.log("Counter index truncated, " + size + " cards loaded", true);
+        } catch (IOException e) {
+            Utilities.log("Can not load counter index: " + e.toString(), true);
+        }
+    }
+
+    private void startWorker() {
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "counter-index");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Grow the table when a tap asks for it, and save it every {@link #SAVE_MILLIS}.
+     */
+    private void work() {
+        long nextSave = System.currentTimeMillis() + SAVE_MILLIS;
+        while (true) {
+            boolean grow;
+            synchronized (this) {
+                try {
+                    long wait = nextSave - System.currentTimeMillis();
+                    while (!growRequested && wait > 0) {
+                        wait(wait);
+                        wait = nextSave - System.currentTimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                grow = growRequested;
+            }
+            if (grow) grow();
+            if (System.currentTimeMillis() >= nextSave) {
+                save();
+                nextSave = System.currentTimeMillis() + SAVE_MILLIS;
+            }
+        }
+    }
+}
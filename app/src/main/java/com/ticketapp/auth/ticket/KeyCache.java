@@ -0,0 +1,85 @@
+package com.ticketapp.auth.ticket;
+
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of the diversified keys of recently seen cards.
+ * <p/>
+ * Deriving the keys of a card costs two SHA-256 digests plus setting up the HMAC, and the same
+ * cards are tapped again and again, so the authentication key and a ready {@link TicketMac}
+ * are kept per UID. The least recently used card is dropped when the cache is full.
+ */
+public class KeyCache {
+
+    /** Diversified keys of one card */
+    public static class Entry {
+        public final byte[] authKey;
+        public final TicketMac mac;
+
+        Entry(byte[] authKey, TicketMac mac) {
+            this.authKey = authKey;
+            this.mac = mac;
+        }
+    }
+
+    private final byte[] authMasterKey;
+    private final byte[] hmacMasterKey;
+    private final LinkedHashMap<String, Entry> entries;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param authMasterKey master key the authentication keys are derived from
+     * @param hmacMasterKey master key the HMAC keys are derived from
+     * @param capacity      maximum number of cards kept
+     */
+    public KeyCache(byte[] authMasterKey, byte[] hmacMasterKey, final int capacity) {
+        this.authMasterKey = authMasterKey;
+        this.hmacMasterKey = hmacMasterKey;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the keys of a card, deriving them only if the card is not in the cache.
+     *
+     * @param uid Base64 encoded UID of the card
+     * @return authentication key and initialised MAC of the card
+     */
+    public synchronized Entry get(String uid) throws GeneralSecurityException {
+        Entry entry = entries.get(uid);
+        if (entry != null) {
+            hits++;
+            return entry;
+        }
+        misses++;
+        byte[] authKey = Ticket.generateDiversifiedKey(new String(authMasterKey), uid);
+        TicketMac mac = new TicketMac();
+        mac.setKey(Ticket.generateDiversifiedKey(new String(hmacMasterKey), uid));
+        entry = new Entry(authKey, mac);
+        entries.put(uid, entry);
+        return entry;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return share of lookups served from the cache, 0 if there were none
+     */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
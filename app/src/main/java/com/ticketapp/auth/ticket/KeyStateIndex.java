@@ -0,0 +1,183 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.Utilities;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Which key each known card authenticates with, kept across restarts.
+ * <p/>
+ * A failed authentication costs two transceives and leaves the card in idle state, so the
+ * key the card is known to have is tried first. Every change is queued as a line "uid,state"
+ * and a background thread appends the queued lines to a file, so a tap never waits for the
+ * file. The last line of a card wins when the file is loaded again, and the file is rewritten
+ * by the same thread when it holds many more lines than cards.
+ * <p/>
+ * At most {@link #MAX_CARDS} cards are kept, the one seen longest ago is dropped first. A
+ * dropped card only costs one failed authentication the next time it is seen.
+ */
+public class KeyStateIndex {
+
+    public enum KeyState {
+        /** card still has the factory key */
+        DEFAULT,
+        /** card has been changed to its diversified key */
+        DIVERSIFIED
+    }
+
+    static final int MAX_CARDS = 100000;
+    // time the writer waits for more changes before it appends them, in milliseconds
+    static final long WRITE_MILLIS = 1000;
+
+    // in access order, so the eldest entry is the card seen longest ago
+    private final Map<String, KeyState> states = new LinkedHashMap<String, KeyState>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, KeyState> eldest) {
+            return size() > MAX_CARDS;
+        }
+    };
+    private final List<String> pending = new ArrayList<String>();
+    private final File file;
+    // lines in the file, guarded by the file itself
+    private int lines = 0;
+
+    /**
+     * @param file file the states are kept in, or null to keep them in memory only
+     */
+    public KeyStateIndex(File file) {
+        this.file = file;
+        if (file == null) return;
+        load();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "key-state-write");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @param uid Base64 encoded UID of the card
+     * @return key the card last authenticated with, or null if the card is not known
+     */
+    public synchronized KeyState get(String uid) {
+        return states.get(uid);
+    }
+
+    /**
+     * Remember the key a card authenticated with. Only changes are queued for the file.
+     */
+    public synchronized void put(String uid, KeyState state) {
+        if (states.put(uid, state) == state) return;
+        if (file == null) return;
+        pending.add(uid + "," + state.name());
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return states.size();
+    }
+
+    /**
+     * Append the queued changes to the file now, e.g. before the app is paused. The file is
+     * rewritten with one line per card if it holds many more lines than cards.
+     */
+    public void flush() {
+        if (file == null) return;
+        synchronized (file) {
+            List<String> changes;
+            int cards;
+            synchronized (this) {
+                if (pending.isEmpty()) return;
+                changes = new ArrayList<String>(pending);
+                pending.clear();
+                cards = states.size();
+            }
+            try {
+                Writer writer = new FileWriter(file, true);
+                try {
+                    for (String line : changes) writer.write(line + "\n");
+                } finally {
+                    writer.close();
+                }
+                lines += changes.size();
+            } catch (IOException e) {
+                Utilities.log("Can not write key states: " + e.toString(), true);
+            }
+            if (lines > 2 * cards + 64) compact();
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comma = line.lastIndexOf(',');
+                if (comma <= 0) continue;
+                try {
+                    states.put(line.substring(0, comma), KeyState.valueOf(line.substring(comma + 1)));
+                    lines++;
+                } catch (IllegalArgumentException e) {
+                    // unknown state, e.g. a truncated last line
+                }
+            }
+            reader.close();
+        } catch (IOException e) {
+            Utilities.log("Can not read key states: " + e.toString(), true);
+        }
+        if (lines > 2 * states.size() + 64) compact();
+    }
+
+    /**
+     * Rewrite the file with one line per card. The states are copied under the lock and
+     * written outside of it.
+     */
+    private void compact() {
+        List<String> snapshot = new ArrayList<String>();
+        synchronized (this) {
+            for (Map.Entry<String, KeyState> entry : states.entrySet()) {
+                snapshot.add(entry.getKey() + "," + entry.getValue().name());
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Writer writer = new FileWriter(tmp, false);
+            try {
+                for (String line : snapshot) writer.write(line + "\n");
+            } finally {
+                writer.close();
+            }
+            if (tmp.renameTo(file)) lines = snapshot.size();
+        } catch (IOException e) {
+            Utilities.log("Can not compact key states: " + e.toString(), true);
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            try {
+                synchronized (this) {
+                    while (pending.isEmpty()) wait();
+                }
+                // let the changes of the next taps join the same append
+                Thread.sleep(WRITE_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            flush();
+        }
+    }
+}
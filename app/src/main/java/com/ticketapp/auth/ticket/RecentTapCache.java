@@ -0,0 +1,73 @@
+package com.ticketapp.auth.ticket;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cards validated on this device in the last few seconds.
+ * <p/>
+ * A card that is tapped again right after a successful validation can be turned away as soon
+ * as its UID is read, without authenticating and reading the ticket. The card itself still
+ * records the last use, so a re-tap on another validator is caught there as before.
+ */
+public class RecentTapCache {
+
+    private final long windowNanos;
+    private final LinkedHashMap<String, Long> taps;
+    private long hits = 0;
+
+    /**
+     * @param windowMillis how long a validation counts as recent
+     * @param capacity     maximum number of cards kept, the oldest validation is dropped first
+     */
+    public RecentTapCache(long windowMillis, final int capacity) {
+        this.windowNanos = windowMillis * 1000000L;
+        this.taps = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Remember that the card was validated now.
+     *
+     * @param uid Base64 encoded UID of the card
+     */
+    public synchronized void record(String uid) {
+        taps.remove(uid);
+        taps.put(uid, System.nanoTime());
+    }
+
+    /**
+     * @param uid Base64 encoded UID of the card
+     * @return true if the card was validated within the window
+     */
+    public synchronized boolean isRecent(String uid) {
+        Long time = taps.get(uid);
+        if (time == null) return false;
+        if (System.nanoTime() - time >= windowNanos) {
+            taps.remove(uid);
+            return false;
+        }
+        hits++;
+        return true;
+    }
+
+    /**
+     * Forget the card, e.g. because new tickets were issued on it.
+     */
+    public synchronized void forget(String uid) {
+        taps.remove(uid);
+    }
+
+    public synchronized void clear() {
+        taps.clear();
+    }
+
+    /** @return re-taps turned away by the cache */
+    public synchronized long getHits() {
+        return hits;
+    }
+}
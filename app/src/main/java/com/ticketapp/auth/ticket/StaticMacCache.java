@@ -0,0 +1,79 @@
+package com.ticketapp.auth.ticket;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Static ticket data whose MAC has already been verified, per card.
+ * <p/>
+ * The static data only changes when tickets are issued, so a card is usually validated many
+ * times with the same pages 31 - 36. For each card the cache keeps these bytes, MAC included,
+ * as they were when the MAC matched. If the card shows exactly the same bytes again, the MAC
+ * does not need to be computed; any difference, e.g. in the counter state or the ticket count,
+ * is a miss. The least recently used card is dropped when the cache is full.
+ */
+public class StaticMacCache {
+
+    private static final int LENGTH = TicketLayout.STATIC_MAC + 4;
+
+    private final LinkedHashMap<String, byte[]> entries;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param capacity maximum number of cards kept
+     */
+    public StaticMacCache(final int capacity) {
+        this.entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param uid    Base64 encoded UID of the card
+     * @param pages  ticket pages read from the card
+     * @param offset position of page 31 in the pages
+     * @return true if the static data and its MAC were verified before for this card
+     */
+    public synchronized boolean isVerified(String uid, byte[] pages, int offset) {
+        byte[] verified = entries.get(uid);
+        if (verified != null && equal(verified, pages, offset)) {
+            hits++;
+            return true;
+        }
+        misses++;
+        return false;
+    }
+
+    /**
+     * Remember static data whose MAC matched, or was just computed for it.
+     */
+    public synchronized void verified(String uid, byte[] pages, int offset) {
+        byte[] copy = entries.get(uid);
+        if (copy == null) copy = new byte[LENGTH];
+        System.arraycopy(pages, offset, copy, 0, LENGTH);
+        entries.put(uid, copy);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private static boolean equal(byte[] verified, byte[] pages, int offset) {
+        for (int i = 0; i < LENGTH; i++) {
+            if (verified[i] != pages[offset + i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,75 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.LatencyHistogram;
+
+import java.util.Locale;
+
+/**
+ * Where the time of the taps goes: one {@link LatencyHistogram} per phase of
+ * {@link Ticket#issue} and {@link Ticket#use}.
+ * <p/>
+ * Together with the card command counts of the session this tells whether a slow tap waits
+ * for the radio, computes keys and MACs, or repeats authentication.
+ */
+public class TapTimings {
+
+    public enum Phase {
+        /** reading pages 0 - 1 */
+        UID_READ,
+        /** diversified keys, from the cache or derived */
+        KEY_DERIVATION,
+        /** authentication with our key, the default key and a key update if needed */
+        AUTHENTICATION,
+        /** reading the ticket pages */
+        PAGE_READ,
+        /** checking the static and dynamic MACs */
+        MAC_VERIFY,
+        /** each call writing pages to the card */
+        WRITE,
+        /** the whole issue operation */
+        ISSUE_TOTAL,
+        /** the whole use operation */
+        USE_TOTAL
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Phase.values().length];
+
+    public TapTimings() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public LatencyHistogram get(Phase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    /**
+     * Record the time since a {@link System#nanoTime()} reading.
+     *
+     * @return the current {@link System#nanoTime()}, the start of the next phase
+     */
+    public long record(Phase phase, long startNanos) {
+        return histograms[phase.ordinal()].recordSince(startNanos);
+    }
+
+    public void clear() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.clear();
+        }
+    }
+
+    /**
+     * @return table with one line per phase, times in microseconds
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-15s %6s %8s %8s %8s %8s %8s\n",
+                "phase", "count", "mean", "p50", "p90", "p99", "max"));
+        for (Phase phase : Phase.values()) {
+            sb.append(String.format(Locale.US, "%-15s ", phase.name().toLowerCase(Locale.US)))
+                    .append(get(phase).summary()).append("\n");
+        }
+        return sb.toString();
+    }
+}
@@ -1,17 +1,15 @@
 package com.ticketapp.auth.ticket;
 
-import com.ticketapp.auth.R;
-import com.ticketapp.auth.app.main.TicketActivity;
+import com.ticketapp.auth.app.ulctools.CardSession;
 import com.ticketapp.auth.app.ulctools.Commands;
 import com.ticketapp.auth.app.ulctools.Utilities;
+import com.ticketapp.auth.ticket.KeyStateIndex.KeyState;
+import com.ticketapp.auth.ticket.TicketResult.Outcome;
 
 import java.io.IOException;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Date;
@@ -20,34 +18,50 @@ import java.util.Date;
  * Complete the implementation of this class. Most of the code are already implemented. You
  * will need to change the keys, design and implement functions to issue and validate tickets. Keep
  * you code readable and write clarifying comments when necessary.
+ * <p/>
+ * A ticket owns the MAC, the card commands and the result of its taps, so tickets on different
+ * threads validate at the same time, each with a tag bound by {@link
+ * com.ticketapp.auth.app.ulctools.Reader#bind}. The keys, the caches of keys, verified MACs,
+ * key states and the timings come from the {@link TicketContext} of the ticket, and are shared
+ * and synchronized with the other tickets of that context. One ticket serves one tap at a time.
  */
 public class Ticket {
 
-    /** Default keys are stored in res/values/secrets.xml **/
-    private static final byte[] defaultAuthenticationKey = TicketActivity.outer.getString(R.string.default_auth_key).getBytes();
-    private static final byte[] ourAuthenticationKey = TicketActivity.outer.getString(R.string.default_auth_key_our).getBytes();
-    private static final byte[] ourHMACKey = TicketActivity.outer.getString(R.string.default_hmac_key_our).getBytes();
+    /** Keys of the context, the app has them from res/values/secrets.xml **/
+    private final byte[] defaultAuthenticationKey;
+    private final byte[] ourAuthenticationKey;
     private static String ApplicationTag = "BpAl";
-    private static String ApplicationVersion = "v1.0";
+    static final String ApplicationVersion = "v2.0";
+
+    private static final int appTag = TicketLayout.text(ApplicationTag);
+    private static final int appVersion = TicketLayout.text(ApplicationVersion);
+    private static final int previousVersion = TicketLayout.V1; // converted to the current version on the next tap
+
+    private TicketMac macAlgorithm; // For computing HMAC over ticket data, as needed
+    private final KeyCache keyCache;
+    private final TapTimings timings;
+    private final TicketMetrics metrics;
+    private final CounterIndex counterIndex;
+    private final ValidationJournal journal;
+    private final StaticMacCache staticMacs;
+    private final KeyStateIndex keyStates;
+    private final RecentTapCache recentTaps;
+    private final Utilities utils;
+    private final Commands ul;
+    private final byte[] message = new byte[TicketLayout.SIZE]; // pages 31 - 41 of the current card
+    private final TicketLayout layout = new TicketLayout();
 
-    private static TicketMac macAlgorithm; // For computing HMAC over ticket data, as needed
-    private static Utilities utils;
-    private static Commands ul;
-
-    private final Boolean isValid = false;
-    private final int remainingUses = 0;
-    private final int expiryTime = 0;
     private final Boolean demoMode = true;
-    private final int waitingSecondsBetweenTwoTicketIssues = 5; // time in seconds to wait before 2nd use
-    private final int MaxLimitOfTicketNumber = 50; // maximum number of allowed tickets
+    static final int waitingSecondsBetweenTwoTicketIssues = 5; // time in seconds to wait before 2nd use
+    static final int MaxLimitOfTicketNumber = 50; // maximum number of allowed tickets
     private final int MaxLimitOfValidDays = 90; // maximum number of days allowed for validity
     private static Boolean formatCard = false; /// !!! WARNING !!! This variable is set true only during development, to format card. Set it false in production
-    private static String infoToShow = "Tap NFC card"; // Use this to show messages
-    DateFormat dateFormatter = new SimpleDateFormat("MM/dd/yyyy hh:mm");
+    private TicketResult result = TicketResult.of(Outcome.NONE); // outcome of the last tap, rendered by the UI
+    private byte[] tapUid; // pages 0 and 1 of the card of the current tap, null until read
+    private int tapCounter; // counter of the card of the current tap, -1 until read
 
 
     private static final byte[] counterIncrementBy1 = {1,0,0,0};
-    private static final byte[] empty4Bytes = {0,0,0,0};
 
     /*
         AUTH0: (byte 0  of page 2Ah or 42d)
@@ -59,57 +73,91 @@ public class Ticket {
     private static final byte auth1Byte = Byte.parseByte("00000000", 2);
 
 
-    /** Create a new ticket */
-    public Ticket() throws GeneralSecurityException {
+    /**
+     * Create a new ticket
+     *
+     * @param context keys and shared state of the validator
+     */
+    public Ticket(TicketContext context) throws GeneralSecurityException {
+        defaultAuthenticationKey = context.defaultAuthenticationKey;
+        ourAuthenticationKey = context.ourAuthenticationKey;
+        keyCache = context.getKeyCache();
+        timings = context.getTimings();
+        metrics = context.getMetrics();
+        counterIndex = context.getCounterIndex();
+        journal = context.getJournal();
+        staticMacs = context.getStaticMacs();
+        keyStates = context.getKeyStates();
+        recentTaps = context.getRecentTaps();
+
         // Set HMAC key for the ticket
         macAlgorithm = new TicketMac();
-        macAlgorithm.setKey(ourHMACKey);
+        macAlgorithm.setKey(context.ourHMACKey);
 
         ul = new Commands();
         utils = new Utilities(ul);
     }
 
-    /** After validation, get ticket status: was it valid or not? */
-    public boolean isValid() {
-        return isValid;
+    /** After validation/issuing, get the outcome, the tickets left and their expiry time */
+    public TicketResult getResult() {
+        return result;
     }
 
-    /** After validation, get the number of remaining uses */
-    public int getRemainingUses() {
-        return remainingUses;
+    /** After validation/issuing, get the pages read and written during the tap */
+    public CardSession getSession() {
+        return ul.getSession();
     }
 
-    /** After validation, get the expiry time */
-    public int getExpiryTime() {
-        return expiryTime;
-    }
 
-    /** After validation/issuing, get information */
-    public static String getInfoToShow() {
-        return infoToShow;
+    public boolean authenticateKeys(byte[] password){
+        return authenticateKeys(null, password, KeyState.DIVERSIFIED);
     }
 
-
-    public boolean authenticateKeys(byte[] password){
-        // first, try to authenticate with our key
-        boolean res = utils.authenticate(password);
-        if (res) return true;
-        // if authenticating with our key fails, authenticate with default key
-        res = utils.authenticate(defaultAuthenticationKey);
-        if (!res) {
-            // if authenticating with default key also fails, then abort
-            Utilities.log("Authentication failed", true);
-            return false;
-        }
-        // if authenticating with default key works, change the authentication key to ours
-        res = utils.writePages(password, 0, 44, 4);
-        if (res) {
-            Utilities.log("Keys updated", false);
-            return true;
-        } else {
+    /**
+     * Authenticate with our key or the default key, starting with the key the card is known
+     * to have. If the card still has the default key, it is changed to ours.
+     *
+     * @param uid      card whose key state is looked up and remembered, or null
+     * @param password diversified key of the card
+     * @param expected key to try first if the card has not been seen before
+     */
+    private boolean authenticateKeys(String uid, byte[] password, KeyState expected){
+        KeyState known = uid == null ? null : keyStates.get(uid);
+        if (known == null) known = expected;
+
+        if (known == KeyState.DIVERSIFIED) {
+            // first, try to authenticate with our key
+            if (utils.authenticate(password)) return keyAuthenticated(uid, KeyState.DIVERSIFIED);
+            // the failed attempt leaves the card idle
+            utils.reconnect();
+            metrics.authFallback();
+        }
+        // authenticate with default key
+        if (utils.authenticate(defaultAuthenticationKey)) {
+            // if authenticating with default key works, change the authentication key to ours
+            if (utils.writeKey(password, 0)) {
+                Utilities.log("Keys updated", false);
+                metrics.keyUpdated();
+                return keyAuthenticated(uid, KeyState.DIVERSIFIED);
+            }
             Utilities.log("Failed to update keys", true);
+            keyAuthenticated(uid, KeyState.DEFAULT);
             return false;
         }
+        if (known == KeyState.DEFAULT) {
+            // the card was keyed since, e.g. on another device
+            utils.reconnect();
+            metrics.authFallback();
+            if (utils.authenticate(password)) return keyAuthenticated(uid, KeyState.DIVERSIFIED);
+        }
+        // if authenticating with both keys fails, then abort
+        Utilities.log("Authentication failed", true);
+        return false;
+    }
+
+    private boolean keyAuthenticated(String uid, KeyState state) {
+        if (uid != null) keyStates.put(uid, state);
+        return true;
     }
 
 
@@ -118,17 +166,21 @@ public class Ticket {
      * Can also be used when the card format functionality is added to the card later.
      */
     private void formatCard(byte[] password){
+        // read the pages first, so that pages which are already blank are not written again
+        byte[] current = new byte[14*4];
         boolean res = authenticateKeys(password)
+                && utils.readPages(26, 14, current, 0)
                 && utils.writePages(new byte[64], 0, 26, 14);
         if (!res){
             res = authenticateKeys(ourAuthenticationKey)
-                    && utils.writePages(password, 0, 44, 4)
+                    && utils.writeKey(password, 0)
+                    && utils.readPages(26, 14, current, 0)
                     && utils.writePages(new byte[64], 0, 26, 14);
         }
         if (res) {
-            infoToShow = "Formatted the card";
+            result = TicketResult.of(Outcome.FORMATTED);
         } else {
-            infoToShow = "Fail to format card";
+            result = TicketResult.of(Outcome.FORMAT_FAILED);
         }
     }
 
@@ -138,7 +190,7 @@ public class Ticket {
         if (res){
             authConfiguration[0] = auth0Byte;
             authConfiguration[5] = auth1Byte;
-            res = utils.writePages(authConfiguration, 0, 42, 2);
+            res = writePages(authConfiguration, 0, 42, 2);
             return res;
         }else {
             return false;
@@ -148,25 +200,58 @@ public class Ticket {
 
     /**
      * Issue new tickets
+     *
+     * @throws IllegalArgumentException if the number of days or uses does not fit on the card
      */
     public boolean issue(int daysValid, int uses) throws GeneralSecurityException, IOException {
+        if (!TicketLayout.fitsCompact(daysValid) || !TicketLayout.fitsCompact(uses)) {
+            throw new IllegalArgumentException("Can not issue " + uses + " tickets for " + daysValid + " days");
+        }
+        long start = System.nanoTime();
+        result = TicketResult.of(Outcome.NONE);
+        tapUid = null;
+        tapCounter = -1;
+        try {
+            return issueTickets(daysValid, uses);
+        } finally {
+            timings.record(TapTimings.Phase.ISSUE_TOTAL, start);
+            // issuing does not change the counter, the new tickets are counted from it
+            journal.append(TicketMetrics.Operation.ISSUE, tapUid, tapCounter, tapCounter, result);
+            metrics.tap(TicketMetrics.Operation.ISSUE, result, ul.getSession().getRetries());
+            if (result.getOutcome() == Outcome.ISSUED || result.getOutcome() == Outcome.TICKETS_ADDED) {
+                metrics.issued(uses);
+                // the tickets are counted from the current counter
+                counterIndex.observe(CounterIndex.key(tapUid), tapCounter, tapCounter, (int) (System.currentTimeMillis() / 1000));
+            }
+        }
+    }
+
+    private boolean issueTickets(int daysValid, int uses) throws GeneralSecurityException, IOException {
 
         boolean res;
+        ul.beginSession();
 
         // read app tag
         byte[] uidBytes = new byte[8];
         String uid  = "";
+        long t = System.nanoTime();
         res = utils.readPages(0, 2, uidBytes, 0);
-        if (res) uid = new String(Base64.getEncoder().encode(uidBytes));
-        else {
-            infoToShow = "Failed to read UID";
+        t = timings.record(TapTimings.Phase.UID_READ, t);
+        if (res) {
+            uid = new String(Base64.getEncoder().encode(uidBytes));
+            tapUid = uidBytes;
+        } else {
+            result = TicketResult.of(Outcome.UID_READ_FAILED);
             return false;
         }
+        // after new tickets, the next tap is a first use again
+        recentTaps.forget(uid);
 
-        // key diversification
-        byte[] cardAuthPassword = generateDiversifiedKey(new String(ourAuthenticationKey), uid);
-        byte[] macPassword = generateDiversifiedKey(new String(ourHMACKey), uid);
-        macAlgorithm.setKey( macPassword );
+        // key diversification, derived only the first time the card is seen
+        KeyCache.Entry keys = keyCache.get(uid);
+        byte[] cardAuthPassword = keys.authKey;
+        macAlgorithm = keys.mac;
+        t = timings.record(TapTimings.Phase.KEY_DERIVATION, t);
 
         // only for development purpose. To format the card.
         if (formatCard){
@@ -175,121 +260,122 @@ public class Ticket {
         }
 
         // Authenticate
-        if (!authenticateKeys(cardAuthPassword)){
-            infoToShow = "Authentication failed";
+        // cards that are not known yet are mostly blank ones, with the default key
+        boolean authenticated = authenticateKeys(uid, cardAuthPassword, KeyState.DEFAULT);
+        t = timings.record(TapTimings.Phase.AUTHENTICATION, t);
+        if (!authenticated){
+            result = TicketResult.of(Outcome.AUTHENTICATION_FAILED);
             return false;
         }
         setAuthConfigurations();
 
         // step 1: read from page 31 to 41  [31:39 user memory, 40: lock bytes, 41: counter]
-        byte[] message = new byte[11*4];
-        res = utils.readPages(31, 11, message, 0);
-        if (res) infoToShow = "Read memory. Processing data. ";
-        else {
-            infoToShow = "Failed to read the memory";
+        byte[] message = this.message;
+        t = System.nanoTime();
+        res = utils.readPages(TicketLayout.FIRST_PAGE, TicketLayout.PAGES, message, 0);
+        t = timings.record(TapTimings.Phase.PAGE_READ, t);
+        if (!res) {
+            result = TicketResult.of(Outcome.READ_FAILED);
             return false;
         }
-        // convert the read bytes to meaningful data for processing
-        String appTag = bytesToStr( Arrays.copyOfRange(message, 0, 4) );
-        String version = bytesToStr( Arrays.copyOfRange(message, 4, 8) );
-        byte[] counterStateBytes = Arrays.copyOfRange(message, 8, 12);
-        Integer counterState = bytesToInt( counterStateBytes );
-        int ticketCount = bytesToInt( Arrays.copyOfRange(message, 12, 16) );
-        int validFor = bytesToInt( Arrays.copyOfRange(message, 16, 20) );
-        byte[] mac = Arrays.copyOfRange(message, 20, 24); // first 4 byte
-        Date firstUse = bytesToDate( Arrays.copyOfRange(message, 24, 28) );
-        byte[] counterBytes = Arrays.copyOfRange(message, 40, 44);
-        reverseByteArray(counterBytes);
-        Integer counter = bytesToInt( counterBytes );
+        // the fields are decoded straight from the read pages, following the version on the card
+        TicketLayout ticket = layout.wrap(message, 0);
+        int counterState = ticket.getCounterState();
+        int ticketCount = ticket.getTicketCount();
+        int validFor = ticket.getValidFor();
+        int firstUse = ticket.getFirstUse();
+        int counter = ticket.getCounter();
+        tapCounter = counter;
 
         // few variable to track the process
         boolean issueNewTicket = false;
         boolean checkMac = true;
 
         // step 2: check app tag
-        if ( appTag.isEmpty()){
+        if (ticket.isBlank()){
             issueNewTicket = true;
             checkMac = false;
-        }else if ( !appTag.equals(ApplicationTag)){
-            infoToShow = "Invalid App tag";
+        }else if (ticket.getTag() != appTag){
+            result = TicketResult.of(Outcome.INVALID_TAG);
             return false;
         }
 
-        // step 3: check the version
-        if ( !issueNewTicket && !version.equals(ApplicationVersion)){
-            infoToShow = "Invalid version. This app supports card formatted with app version " + ApplicationVersion;
+        // step 3: check the version, cards of the previous version are converted
+        if ( !issueNewTicket && ticket.getVersion() != appVersion && ticket.getVersion() != previousVersion){
+            result = TicketResult.of(Outcome.INVALID_VERSION);
             return false;
         }
 
-        byte[] staticData = Arrays.copyOfRange(message, 0, 20);
         byte[] staticDataMac;
 
         // step 4.2 if not blank and MAC unmatches: abort
         if (checkMac){
-            boolean emptyMac = true;
-            for (byte b : mac) {
-                if (b != 0) { // if at least one of the bytes in the mac is non-zero, then it's not empty.
-                    emptyMac = false;
-                    break;
-                }
-            }
-            if (emptyMac){
-                infoToShow = "Empty MAC";
+            // if all the bytes of the mac are zero, it is empty
+            if (ticket.getStaticMac() == 0){
+                result = TicketResult.of(Outcome.EMPTY_STATIC_MAC);
                 return false;
             }
-            byte[] computedMac = Arrays.copyOfRange( macAlgorithm.generateMac(staticData), 0, 4);
-            if (!Arrays.equals(mac, computedMac)){
-                infoToShow = "Wrong MAC";
-                return false;
+            // the same static data was verified on an earlier tap
+            if (!staticMacs.isVerified(uid, message, 0)){
+                t = System.nanoTime();
+                byte[] computedMac = macAlgorithm.generateMac(message, 0, TicketLayout.STATIC_DATA_LENGTH);
+                timings.record(TapTimings.Phase.MAC_VERIFY, t);
+                if (!ticket.staticMacMatches(computedMac)){
+                    result = TicketResult.of(Outcome.INVALID_STATIC_MAC);
+                    return false;
+                }
+                staticMacs.verified(uid, message, 0);
             }
         }
 
+        checkCounters(uid, uidBytes, counter, counterState);
+
         // step 4.3 if not blank and MAC matches: check ticket is expired or not
         long validityDurationInSec =  (demoMode ? 60L : 86400L) * validFor; // changing days to seconds
         int previousRemainingTickets = Math.max(0, counterState + ticketCount - counter);
-        if(previousRemainingTickets > MaxLimitOfTicketNumber){
+        if(previousRemainingTickets > MaxLimitOfTicketNumber || !TicketLayout.fitsCompact(previousRemainingTickets + uses)){
             // checking the safe limit
-            infoToShow = "This card has more than 50 tickets already. Cannot issue any more tickets.";
+            result = TicketResult.of(Outcome.TOO_MANY_TICKETS);
             return false;
         }
-        boolean hasNonExpiredPreviousTickets = firstUse == null; // if there is no first use at all for previously issued tickets
+        boolean hasNonExpiredPreviousTickets = firstUse <= 0; // if there is no first use at all for previously issued tickets
         if (!issueNewTicket && !hasNonExpiredPreviousTickets){
             // if at least one of the previously issued tickets is used, there may be some non-expired tickets.
             hasNonExpiredPreviousTickets = ( previousRemainingTickets > 0 )
-                    && new Date(firstUse.getTime() + validityDurationInSec * 1000).after(new Date()); // expiry time is after current time
+                    && firstUse * 1000L + validityDurationInSec * 1000 > System.currentTimeMillis(); // expiry time is after current time
         }
+        int now = (int) (System.currentTimeMillis() / 1000);
         if (!issueNewTicket && hasNonExpiredPreviousTickets){
             // step 4.3.1 if not expired: add ticket and increase validity time for
-            // a. increase the ticket count
-            ticketCount += uses;
-            System.arraycopy(toBytes(ticketCount), 0, message, 12, 4);
-            // b. increase the validity for
+            // a. the version comes first, it decides where the other fields go
+            ticket.setVersion(appVersion);
+            // b. count the tickets from the current counter, so the ticket count stays small
+            ticket.setCounterState(counter);
+            ticket.setTicketCount(previousRemainingTickets + uses);
+            // c. increase the validity for
             validFor = Math.min(MaxLimitOfValidDays, daysValid+validFor);
-            System.arraycopy(toBytes(validFor), 0, message, 16, 4);
+            ticket.setValidFor(validFor);
+            ticket.setIssued(now);
 
-            //c. update the static data, and recompute the mac
-            staticData = Arrays.copyOfRange(message, 0, 20);
-            staticDataMac = Arrays.copyOfRange( macAlgorithm.generateMac(staticData), 0, 4);
-            System.arraycopy(staticDataMac, 0, message, 20, 4);
+            // d. update the static data, and recompute the mac
+            staticDataMac = macAlgorithm.generateMac(message, 0, TicketLayout.STATIC_DATA_LENGTH);
+            ticket.setStaticMac(staticDataMac);
 
-            // d. clear first use
-            System.arraycopy( empty4Bytes , 0, message, 24, 4); // clear first use
+            // e. clear first use
+            ticket.setFirstUse(0);
 
-            // e. push.
+            // f. push.
             /*
-            P34 (12-16) ticketcount, P35 (16-20) validFor, P36 (20-24) static mac, P37 (24-28) first use
-            we just write these pages only and ignore update of other page.
-            So, While writing in card:
-                start page = 34
-                page count = 4
+            P32 version, P33 counter state, P34 ticket count and valid for, P35 issue time,
+            P36 static mac, P37 first use. Pages that did not change are not written.
              */
-            byte[] toWrite = Arrays.copyOfRange(message, 12,28);
-            res = utils.writePages(toWrite, 0, 34, 4); // updated data
+            res = writePages(message, TicketLayout.VERSION, TicketLayout.page(TicketLayout.VERSION), 6); // updated data
             if (!res){
-                infoToShow = "Failed to update tickets.";
+                result = TicketResult.of(Outcome.WRITE_FAILED);
                 return false;
             }
-            infoToShow = uses + " tickets added over "+ previousRemainingTickets +" non-expired tickets.";
+            staticMacs.verified(uid, message, 0);
+            result = TicketResult.of(Outcome.TICKETS_ADDED, previousRemainingTickets + uses, 0);
             return true;
         }
 
@@ -297,29 +383,29 @@ public class Ticket {
         System.out.println("Issuing new tickets because previous tickets expired.");
 
         // a. update the static data
-        System.arraycopy( ApplicationTag.getBytes() , 0, message, 0, 4); // APP TAG
-        System.arraycopy( ApplicationVersion.getBytes() , 0, message, 4, 4); // APP Version
-        System.arraycopy( counterBytes, 0, message, 8, 4); // copying card counter to counter state of static memory
-        System.arraycopy( toBytes(uses), 0, message, 12, 4); // ticket count
-        System.arraycopy( toBytes(daysValid), 0, message, 16, 4); // valid for
+        ticket.setTag(appTag); // APP TAG
+        ticket.setVersion(appVersion); // APP Version
+        ticket.setCounterState(counter); // copying card counter to counter state of static memory
+        ticket.setTicketCount(uses); // ticket count
+        ticket.setValidFor(daysValid); // valid for
+        ticket.setIssued(now); // issue time
 
         // update static data, recompute mac and add mac
-        staticData = Arrays.copyOfRange(message, 0, 20);
-        staticDataMac = Arrays.copyOfRange( macAlgorithm.generateMac(staticData), 0, 4);
-        System.arraycopy(staticDataMac, 0, message, 20, 4);
+        staticDataMac = macAlgorithm.generateMac(message, 0, TicketLayout.STATIC_DATA_LENGTH);
+        ticket.setStaticMac(staticDataMac);
 
-        // b. update the dynamic data
-        System.arraycopy( empty4Bytes , 0, message, 24, 4); // clear first use
-        System.arraycopy( empty4Bytes , 0, message, 28, 4); // clear last use
-        byte[] dynamicData = Arrays.copyOfRange(message, 24, 28); // only the first use is dynamic data
-        byte[] newDynamicMac = Arrays.copyOfRange(macAlgorithm.generateMac(dynamicData), 0, 4);
-        System.arraycopy( newDynamicMac , 0, message, 32, 4); // dynamic mac
+        // b. clear the dynamic data, the first use has its MAC next to it when it is set
+        ticket.setFirstUse(0); // clear first use
+        ticket.setLastUse(0); // clear last use
 
         // d. write all the data
-        res = utils.writePages(message, 0, 31, 9); // exclude the last 2 page for lock and counter
-        if (res) infoToShow = uses + " new tickets issued.";
-        else infoToShow = "Failed to issue tickets.";
-        return true;
+        res = writePages(message, 0, TicketLayout.FIRST_PAGE, 8); // exclude the unused page 39, lock and counter
+        if (res) {
+            result = TicketResult.of(Outcome.ISSUED, uses, 0);
+            staticMacs.verified(uid, message, 0);
+        }
+        else result = TicketResult.of(Outcome.WRITE_FAILED);
+        return res;
     }
 
 
@@ -327,195 +413,262 @@ public class Ticket {
      * Use ticket once
      */
     public boolean use() throws GeneralSecurityException {
+        long start = System.nanoTime();
+        result = TicketResult.of(Outcome.NONE);
+        tapUid = null;
+        tapCounter = -1;
+        try {
+            return useTicket();
+        } finally {
+            timings.record(TapTimings.Phase.USE_TOTAL, start);
+            int counterAfter = tapCounter >= 0 && result.isValid() ? tapCounter + 1 : tapCounter;
+            journal.append(TicketMetrics.Operation.USE, tapUid, tapCounter, counterAfter, result);
+            metrics.tap(TicketMetrics.Operation.USE, result, ul.getSession().getRetries());
+        }
+    }
+
+    private boolean useTicket() throws GeneralSecurityException {
         boolean res;
+        ul.beginSession();
 
         // read app tag
         byte[] uidBytes = new byte[8];
         String uid  = "";
+        long t = System.nanoTime();
         res = utils.readPages(0, 2, uidBytes, 0);
+        t = timings.record(TapTimings.Phase.UID_READ, t);
         if (res) {
             uid = new String(Base64.getEncoder().encode(uidBytes));
+            tapUid = uidBytes;
             if (uid.isEmpty()){
-                infoToShow = "Empty UID";
+                result = TicketResult.of(Outcome.EMPTY_UID);
                 return false;
             }
         } else {
-            infoToShow = "Failed to read UID";
+            result = TicketResult.of(Outcome.UID_READ_FAILED);
+            return false;
+        }
+
+        // a card validated here a moment ago is turned away before authenticating
+        if (recentTaps.isRecent(uid)){
+            result = TicketResult.of(Outcome.TOO_SOON);
             return false;
         }
 
-        // key diversification
-        byte[] cardAuthPassword = generateDiversifiedKey(new String(ourAuthenticationKey), uid);
-        byte[] macPassword = generateDiversifiedKey(new String(ourHMACKey), uid);
-        macAlgorithm.setKey( macPassword );
+        // key diversification, derived only the first time the card is seen
+        KeyCache.Entry keys = keyCache.get(uid);
+        byte[] cardAuthPassword = keys.authKey;
+        macAlgorithm = keys.mac;
+        t = timings.record(TapTimings.Phase.KEY_DERIVATION, t);
 
         // Authenticate
-        if (!authenticateKeys(cardAuthPassword)){
-            infoToShow = "Authentication failed";
+        boolean authenticated = authenticateKeys(uid, cardAuthPassword, KeyState.DIVERSIFIED);
+        t = timings.record(TapTimings.Phase.AUTHENTICATION, t);
+        if (!authenticated){
+            result = TicketResult.of(Outcome.AUTHENTICATION_FAILED);
             return false;
         }
 
         // step 1: read from page 31 to 41
-        byte[] message = new byte[11*4];
-        res = utils.readPages(31, 11, message, 0);
+        byte[] message = this.message;
+        res = utils.readPages(TicketLayout.FIRST_PAGE, TicketLayout.PAGES, message, 0);
+        timings.record(TapTimings.Phase.PAGE_READ, t);
         if (!res) {
-            infoToShow = "Failed to read";
+            result = TicketResult.of(Outcome.READ_FAILED);
             return false;
         }
 
-        // starting from page 31
-        String appTag = bytesToStr( Arrays.copyOfRange(message, 0, 4) );
-        String version = bytesToStr( Arrays.copyOfRange(message, 4, 8) );
-        Integer counterState = bytesToInt( Arrays.copyOfRange(message, 8, 12) );
-        Integer ticketCount = bytesToInt( Arrays.copyOfRange(message, 12, 16) );
-        Integer validFor = bytesToInt( Arrays.copyOfRange(message, 16, 20) );
-        byte[] staticDataMac = Arrays.copyOfRange(message, 20, 24); // first 4 byte
-        Date firstUse = bytesToDate( Arrays.copyOfRange(message, 24, 28) );
-        Date lastUse = bytesToDate( Arrays.copyOfRange(message, 28, 32) );
-        byte[] dynamicDataMac = Arrays.copyOfRange(message, 32, 36);
-        byte[] counterBytes = Arrays.copyOfRange(message, 40, 44);
-        reverseByteArray(counterBytes);
-        Integer counter = bytesToInt( counterBytes );
+        // starting from page 31, the fields are decoded straight from the read pages
+        TicketLayout ticket = layout.wrap(message, 0);
+        int counterState = ticket.getCounterState();
+        int ticketCount = ticket.getTicketCount();
+        int validFor = ticket.getValidFor();
+        int firstUse = ticket.getFirstUse();
+        int lastUse = ticket.getLastUse();
+        int counter = ticket.getCounter();
+        tapCounter = counter;
 
         // step 2: check app tag
-        if ( appTag.isEmpty() || !appTag.equals(ApplicationTag)){
-            infoToShow = "Invalid App tag";
+        if (ticket.isBlank() || ticket.getTag() != appTag){
+            result = TicketResult.of(Outcome.INVALID_TAG);
             return false;
         }
 
-        // step 3: check the version
-        if ( version.isEmpty() || !version.equals(ApplicationVersion)){
-            infoToShow = "Invalid version. App only supports version "+ApplicationVersion;
+        // step 3: check the version, cards of the previous version are converted below
+        boolean previous = ticket.getVersion() == previousVersion;
+        if (ticket.getVersion() != appVersion && !previous){
+            result = TicketResult.of(Outcome.INVALID_VERSION);
             return false;
         }
 
-        // check static MAC
-        boolean emptyMac = true;
-        for (byte b : staticDataMac) {
-            if (b != 0) {
-                emptyMac = false; // if at least one byte is non-zero, the mac is non-empty
-                break;
-            }
-        }
-        if (emptyMac){
-            infoToShow = "Failed to validate.\nEmpty MAC for static data.";
+        // check static MAC, if all its bytes are zero it is empty
+        if (ticket.getStaticMac() == 0){
+            result = TicketResult.of(Outcome.EMPTY_STATIC_MAC);
             return false;
         }
-        byte[] staticData = Arrays.copyOfRange(message, 0, 20);
-        byte[] computedStaticMac = Arrays.copyOfRange( macAlgorithm.generateMac(staticData), 0, 4);
-        if (!Arrays.equals(staticDataMac, computedStaticMac)){
-            infoToShow = "Failed to validate.\nInvalid MAC for static data.";
-            return false;
+        // the static data only changes with new tickets, a card shows the same bytes on most taps
+        if (!staticMacs.isVerified(uid, message, 0)){
+            t = System.nanoTime();
+            byte[] computedStaticMac = macAlgorithm.generateMac(message, 0, TicketLayout.STATIC_DATA_LENGTH);
+            timings.record(TapTimings.Phase.MAC_VERIFY, t);
+            if (!ticket.staticMacMatches(computedStaticMac)){
+                result = TicketResult.of(Outcome.INVALID_STATIC_MAC);
+                return false;
+            }
+            staticMacs.verified(uid, message, 0);
         }
 
         // check dynamic MAC
-        byte[] dynamicData = Arrays.copyOfRange(message, 24, 28);
-
-        if (firstUse != null){
-            emptyMac = true;
-            for (byte b : dynamicDataMac) {
-                if (b != 0) {
-                    emptyMac = false; // if at least one byte is non-zero, the mac is non-empty
-                    break;
-                }
+        boolean repairFirstUseMac = false;
+        if (firstUse > 0 && previous){
+            if (ticket.getDynamicMac() == 0){
+                result = TicketResult.of(Outcome.EMPTY_DYNAMIC_MAC);
+                return false;
             }
-            if (emptyMac){
-                infoToShow = "Failed to validate.\nEmpty MAC for dynamic data.";
+            t = System.nanoTime();
+            byte[] computedDynamicMac = macAlgorithm.generateMac(message, TicketLayout.FIRST_USE, TicketLayout.DYNAMIC_DATA_LENGTH);
+            timings.record(TapTimings.Phase.MAC_VERIFY, t);
+            if (!ticket.dynamicMacMatches(computedDynamicMac)){
+                result = TicketResult.of(Outcome.INVALID_DYNAMIC_MAC);
                 return false;
             }
-            byte[] computedDynamicMac = Arrays.copyOfRange( macAlgorithm.generateMac(dynamicData), 0, 4);
-            if (!Arrays.equals(dynamicDataMac, computedDynamicMac)){
-                infoToShow = "Failed to validate.\nInvalid MAC for dynamic data.";
+        } else if (firstUse > 0){
+            if (ticket.getFirstUseMac() == 0){
+                result = TicketResult.of(Outcome.EMPTY_DYNAMIC_MAC);
                 return false;
             }
+            t = System.nanoTime();
+            byte[] computedFirstUseMac = macAlgorithm.generateMac(message, TicketLayout.FIRST_USE_DATA, TicketLayout.FIRST_USE_DATA_LENGTH);
+            timings.record(TapTimings.Phase.MAC_VERIFY, t);
+            if (!ticket.firstUseMacMatches(computedFirstUseMac)){
+                // a conversion that lost the card after pages 32 - 36 left the v1.0 MAC of the
+                // first use on page 39, it is replaced on this tap
+                byte[] computedDynamicMac = macAlgorithm.generateMac(message, TicketLayout.FIRST_USE, TicketLayout.DYNAMIC_DATA_LENGTH);
+                if (!ticket.dynamicMacMatches(computedDynamicMac)){
+                    result = TicketResult.of(Outcome.INVALID_DYNAMIC_MAC);
+                    return false;
+                }
+                repairFirstUseMac = true;
+            }
         }
 
+        checkCounters(uid, uidBytes, counter, counterState);
+
         // step 6: check the number of tickets remaining using the CNTR and  counter in static data. If no tickets, abort.
         int remainingTickets = Math.max(0, counterState + ticketCount - counter);
         if ( remainingTickets <= 0){
-            infoToShow = "No tickets";
+            result = TicketResult.of(Outcome.NO_TICKETS, 0, 0);
             return false;
         }
 
         // step 7: check the time. if expired, abort. or, if it is first use, first_use = now
-        // step 7.1: in case of first use, add first_use and last_use fields and increase CNTR
+        // step 7.1: in case of first use, add first_use and increase CNTR
         // step 7.2: check the last_time used, if within 1 minute, validate but dont increase CNTR
         long validityDurationInMillis = 1000L * (demoMode ? 60L : 86400L) * validFor;
         long currentDateInMillis = System.currentTimeMillis();
+        int now = (int) (currentDateInMillis / 1000);
 
-        if (firstUse != null && new Date(firstUse.getTime() + validityDurationInMillis).before(new Date()) ){
-            infoToShow = "Tickets expired.";
+        if (firstUse > 0 && firstUse * 1000L + validityDurationInMillis < currentDateInMillis){
+            result = TicketResult.of(Outcome.EXPIRED, remainingTickets, firstUse + validityDurationInMillis / 1000);
             return false;
+        }
 
-        }else if (counterState.equals(counter) || firstUse == null){ // means the first use
-
-            firstUse = new Date(currentDateInMillis);
-            System.arraycopy( toBytes(firstUse), 0, message, 24, 4); // first use
-            dynamicData = Arrays.copyOfRange(message, 24, 28);
-            byte[] newDynamicMac = Arrays.copyOfRange(macAlgorithm.generateMac(dynamicData), 0, 4);
-
-            res = // write firstUse, dynamic mac, and increment counter. 3 WRITE commands only!!
-                utils.writePages( Arrays.copyOfRange(message, 24,28), 0, 37,1 ) // first use
-                && utils.writePages(newDynamicMac, 0, 39, 1) // dynamic mac
-                && utils.writePages(counterIncrementBy1, 0, 41, 1); // increment counter
-
-            // if res is false: either during updating firstUse and lastUse dates, or during counter update
-            if (!res){
-                infoToShow = "Failed to validate ticket.";
+        boolean firstValidation = counterState == counter || firstUse <= 0;
+        if (!firstValidation){
+            // the last tap is the later of the first and the last use. A double tap is turned
+            // away before anything is written, also on a card that is still to be converted
+            int lastTap = Math.max(firstUse, lastUse);
+            if ( lastTap > 0 && (currentDateInMillis - lastTap * 1000L)/1000 < waitingSecondsBetweenTwoTicketIssues){
+                result = TicketResult.of(Outcome.TOO_SOON);
                 return false;
             }
-            infoToShow = "Ticket validated (1st use).\n" +
-                    (remainingTickets-1) + " tickets remaining.\n" +
-                    "Expires on: " + dateFormatter.format( new Date( currentDateInMillis + validityDurationInMillis ) );
-
-        }else { // not the first use
-
-            if ( lastUse != null && (currentDateInMillis- lastUse.getTime())/1000 < waitingSecondsBetweenTwoTicketIssues){
-                infoToShow = "Ticket validated less than " + waitingSecondsBetweenTwoTicketIssues + " seconds ago";
+        }
+        if (firstValidation){
+            firstUse = now;
+            ticket.setFirstUse(firstUse);
+        }
+        if (previous){
+            // convert the card to the current version, if its numbers fit the 16-bit fields
+            if (!TicketLayout.fitsCompact(ticketCount) || !TicketLayout.fitsCompact(validFor)){
+                result = TicketResult.of(Outcome.INVALID_VERSION);
                 return false;
             }
+            ticket.setVersion(appVersion);
+            ticket.setTicketCount(ticketCount);
+            ticket.setValidFor(validFor);
+            ticket.setIssued(now);
+            ticket.setStaticMac(macAlgorithm.generateMac(message, 0, TicketLayout.STATIC_DATA_LENGTH));
+        }
+        if (previous || firstValidation || repairFirstUseMac){
+            ticket.setFirstUseMac(macAlgorithm.generateMac(message, TicketLayout.FIRST_USE_DATA, TicketLayout.FIRST_USE_DATA_LENGTH));
+            // the MAC goes before the first use, a card taken away in between is still unused.
+            // A card taken away after the conversion still has the v1.0 MAC, see above
+            res = (!previous || writePages(message, TicketLayout.VERSION, TicketLayout.page(TicketLayout.VERSION), 5)) // P32 - P36
+                    && writePages(message, TicketLayout.FIRST_USE_MAC, TicketLayout.page(TicketLayout.FIRST_USE_MAC), 1)
+                    && (!firstValidation || writePages(message, TicketLayout.FIRST_USE, TicketLayout.page(TicketLayout.FIRST_USE), 1));
+            if (!res){
+                result = TicketResult.of(Outcome.WRITE_FAILED);
+                return false;
+            }
+            if (previous) staticMacs.verified(uid, message, 0);
+        }
 
-            // increase the counter. If it succeeds, show the validated information. 1 WRITE command only !!
-            res = utils.writePages(counterIncrementBy1, 0, 41, 1);
+        if (firstValidation){ // means the first use
+            // the first use and its MAC are written, increment the counter. 1 WRITE command only!!
+            res = writePages(counterIncrementBy1, 0, TicketLayout.page(TicketLayout.COUNTER), 1);
+
+            // if res is false, the counter update failed; the next tap is a first use again
             if (!res){
-                infoToShow = "Failed to validate ticket.";
+                result = TicketResult.of(Outcome.WRITE_FAILED);
                 return false;
             }
-            infoToShow = "Ticket validated. \n"+ (remainingTickets-1) + " tickets remaining." +
-                        "\nExpires on: " + dateFormatter.format( new Date( firstUse.getTime() + validityDurationInMillis ) );
+            result = TicketResult.of(Outcome.VALIDATED_FIRST_USE, remainingTickets - 1, now + validityDurationInMillis / 1000);
+            counterIndex.observe(CounterIndex.key(uidBytes), counter + 1, counterState, now);
+            // the first use is also the last use, page 38 is not written
+            recentTaps.record(uid);
+            return true;
+        }
+
+        // not the first use: increase the counter. If it succeeds, show the validated information. 1 WRITE command only !!
+        res = writePages(counterIncrementBy1, 0, TicketLayout.page(TicketLayout.COUNTER), 1);
+        if (!res){
+            result = TicketResult.of(Outcome.WRITE_FAILED);
+            return false;
         }
+        result = TicketResult.of(Outcome.VALIDATED, remainingTickets - 1, firstUse + validityDurationInMillis / 1000);
+        counterIndex.observe(CounterIndex.key(uidBytes), counter + 1, counterState, now);
 
          /*
-                 In the end: whether it's first use or not
-                 try to update last use as well, we ignore the response, because it's not critical even if it fails because it is only used to
+                 In the end: try to update last use as well, we ignore the response, because it's not critical even if it fails because it is only used to
                  prevent two successive quick tap. it serves no security purpose.
          */
-        lastUse = new Date(currentDateInMillis);
-        utils.writePages( toBytes(lastUse), 0, 38,1);
+        ticket.setLastUse(now);
+        writePages(message, TicketLayout.LAST_USE, TicketLayout.page(TicketLayout.LAST_USE), 1);
+        recentTaps.record(uid);
         return true;
     }
 
-    private static Date bytesToDate(byte[] b){
-        try {
-            int bInt;
-            if (b.length == 4){
-                byte[] b8 = new byte[8];
-                System.arraycopy(b, 0, b8, 4, 4);
-                bInt = bytesToInt(b8);
-            }else bInt = bytesToInt(b);
-            if (bInt <= 0) return null;
-            return new Date(bInt*1000L);
-        }catch (Exception ex){
-            return null;
+    /**
+     * Compare the counters of the card with the highest ones seen here before. A card that
+     * goes back is flagged for the operators, the checks of the ticket still decide the tap.
+     */
+    private void checkCounters(String uid, byte[] uidBytes, int counter, int counterState) {
+        CounterIndex.Verdict verdict = counterIndex.observe(CounterIndex.key(uidBytes), counter, counterState,
+                (int) (System.currentTimeMillis() / 1000));
+        if (verdict.isSuspect()) {
+            metrics.cloneSuspect();
+            Utilities.log("Possible clone of " + uid + ": " + verdict, true);
         }
     }
 
-    private static Integer bytesToInt(byte[] b){
-        try {
-            return new BigInteger( b ).intValue();
-        }catch (Exception ex){
-            return 0;
-        }
+    /**
+     * Write pages to the card, counting the time as a write of the tap
+     */
+    private boolean writePages(byte[] data, int offset, int page, int count) {
+        long start = System.nanoTime();
+        boolean res = utils.writePages(data, offset, page, count);
+        timings.record(TapTimings.Phase.WRITE, start);
+        return res;
     }
 
     public static void reverseByteArray(byte[] array) {
@@ -534,18 +687,6 @@ public class Ticket {
         }
     }
 
-    private static String bytesToStr(byte [] b) {
-        String s = new String(b);
-        char[] charArray = s.toCharArray();
-        for(char c:charArray) {
-            if(c=='.') continue;
-            if (!Character.isLetterOrDigit(c))
-                return "";
-        }
-        return s;
-    }
-
-
     public byte[] toBytes(Date d) {
         long l = d.getTime() / 1000; // converting to seconds
         ByteBuffer buffer = ByteBuffer.allocate(8);
@@ -553,13 +694,7 @@ public class Ticket {
         return Arrays.copyOfRange(buffer.array(), 4, buffer.array().length); // only the last 4 bytes
     }
 
-    private static byte[] toBytes(int i) {
-        ByteBuffer buffer = ByteBuffer.allocate(4);
-        buffer.putInt(i);
-        return buffer.array();
-    }
-
-    private static byte[] generateDiversifiedKey(String masterKey, String uid){
+    static byte[] generateDiversifiedKey(String masterKey, String uid){
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-256");
             byte[] hash = digest.digest((masterKey+uid).getBytes());
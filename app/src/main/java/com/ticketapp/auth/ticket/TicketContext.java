@@ -0,0 +1,114 @@
+package com.ticketapp.auth.ticket;
+
+import android.content.Context;
+
+import com.ticketapp.auth.R;
+
+import java.io.File;
+
+/**
+ * The keys and the state shared by all tickets of one validator: the caches, the counters
+ * and timings of the taps, and the files the key states, the card counters and the journal
+ * are kept in.
+ * <p/>
+ * Every {@link Ticket} is given its context, so tickets of different contexts do not share
+ * anything. The app has one context for the whole process, see {@link #forApp(Context)};
+ * tests and benchmarks make their own, with files in a directory of their own or in memory
+ * only.
+ */
+public class TicketContext {
+
+    private static TicketContext app;
+
+    final byte[] defaultAuthenticationKey;
+    final byte[] ourAuthenticationKey;
+    final byte[] ourHMACKey;
+
+    private final KeyCache keyCache;
+    private final StaticMacCache staticMacs = new StaticMacCache(256);
+    private final RecentTapCache recentTaps = new RecentTapCache(Ticket.waitingSecondsBetweenTwoTicketIssues * 1000L, 64);
+    private final TapTimings timings = new TapTimings();
+    private final TicketMetrics metrics = new TicketMetrics();
+    private final KeyStateIndex keyStates;
+    private final CounterIndex counterIndex;
+    private final ValidationJournal journal;
+
+    /**
+     * @param defaultAuthenticationKey factory key of blank cards
+     * @param ourAuthenticationKey     master key the card keys are derived from
+     * @param ourHMACKey               master key the MAC keys of the cards are derived from
+     * @param dir                      directory of the files, or null to keep everything in
+     *                                 memory and keep no journal
+     */
+    public TicketContext(byte[] defaultAuthenticationKey, byte[] ourAuthenticationKey, byte[] ourHMACKey, File dir) {
+        this.defaultAuthenticationKey = defaultAuthenticationKey.clone();
+        this.ourAuthenticationKey = ourAuthenticationKey.clone();
+        this.ourHMACKey = ourHMACKey.clone();
+        keyCache = new KeyCache(this.ourAuthenticationKey, this.ourHMACKey, 256);
+        keyStates = new KeyStateIndex(dir == null ? null : new File(dir, "key_states.txt"));
+        counterIndex = new CounterIndex(dir == null ? null : new File(dir, "counter_index.bin"));
+        journal = new ValidationJournal(dir == null ? null : new File(dir, "journal"), 4096, 16);
+    }
+
+    /**
+     * The context of the app, created the first time it is needed. The keys are stored in
+     * res/values/secrets.xml, the files in the files directory of the app.
+     */
+    public static synchronized TicketContext forApp(Context context) {
+        if (app == null) {
+            app = new TicketContext(context.getString(R.string.default_auth_key).getBytes(),
+                    context.getString(R.string.default_auth_key_our).getBytes(),
+                    context.getString(R.string.default_hmac_key_our).getBytes(),
+                    context.getFilesDir());
+        }
+        return app;
+    }
+
+    /**
+     * @return a new context with the same keys that keeps everything in memory, e.g. for a
+     * benchmark that must not leave its cards in the files of the app
+     */
+    public TicketContext inMemory() {
+        return new TicketContext(defaultAuthenticationKey, ourAuthenticationKey, ourHMACKey, null);
+    }
+
+    /** Get the cache of diversified card keys, e.g. for its hit rate */
+    public KeyCache getKeyCache() {
+        return keyCache;
+    }
+
+    /** Get the static data whose MAC was verified, e.g. for its hit rate */
+    public StaticMacCache getStaticMacs() {
+        return staticMacs;
+    }
+
+    /** Get the cards validated in the last seconds */
+    public RecentTapCache getRecentTaps() {
+        return recentTaps;
+    }
+
+    /** Get the time spent in each phase of the taps so far */
+    public TapTimings getTimings() {
+        return timings;
+    }
+
+    /** Get the counts of the tap outcomes so far, for the metrics snapshot */
+    public TicketMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Get the key each known card authenticates with */
+    public KeyStateIndex getKeyStates() {
+        return keyStates;
+    }
+
+    /** Get the highest counters seen on each card */
+    public CounterIndex getCounterIndex() {
+        return counterIndex;
+    }
+
+    /** Get the record of all taps */
+    public ValidationJournal getJournal() {
+        return journal;
+    }
+}
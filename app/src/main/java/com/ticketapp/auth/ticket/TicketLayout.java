@@ -0,0 +1,333 @@
+package com.ticketapp.auth.ticket;
+
+import java.util.Date;
+
+/**
+ * Memory layout of a ticket, as a view over the raw bytes of pages 31 - 41.
+ * <p/>
+ * The view does not copy anything: the getters decode the fields straight from the page
+ * buffer and the setters encode into it, so the same buffer can be read from the card,
+ * changed and written back. One instance can be reused for any number of buffers with
+ * {@link #wrap(byte[], int)}.
+ * <pre>
+ * page  offset  v1.0                              v2.0
+ *  31     0     app tag                           app tag
+ *  32     4     version                           version
+ *  33     8     counter state                     counter state
+ *  34    12     ticket count                      ticket count (16 bits), valid for (16 bits)
+ *  35    16     valid for                         issue time
+ *  36    20     static MAC over offsets 0 - 19    static MAC over offsets 0 - 19
+ *  37    24     first use                         first use
+ *  38    28     last use                          last use
+ *  39    32     dynamic MAC over the first use    first use MAC over offsets 8 - 27
+ *  40    36     lock bytes                        lock bytes
+ *  41    40     counter                           counter
+ * </pre>
+ * The tag and version are 4 ASCII characters. The counter state is the value of the card
+ * counter when the tickets were issued, the ticket count the number of tickets issued since.
+ * The tickets are valid for a number of days (minutes in demo mode) after the first use.
+ * Times are seconds since the epoch, 0 if not set. The counter is the 16-bit one-way counter
+ * of the card in little endian, other numbers are big endian.
+ * <p/>
+ * In v2.0 the first use MAC on page 39 is bound to the static data as well as to the first
+ * use, so the first use of one issue can not be copied to another. The first validation
+ * writes the MAC before the first use: a card taken away in between still reads as unused.
+ * A first validation is therefore two page writes plus the counter increment, not a single
+ * write: the first use alone would not be bound to the tickets it starts.
+ * A v1.0 card is converted by writing pages 32 - 36 before page 39; a card taken away in
+ * between has the v1.0 MAC of the first use on page 39, which is accepted and replaced on
+ * the next tap.
+ * The fields follow the version stored in the buffer, so the version has to be set before
+ * the other fields when a ticket is converted. The 16-bit fields of v2.0 refuse values that
+ * do not fit, see {@link #fitsCompact(int)}.
+ */
+public class TicketLayout {
+
+    public static final int FIRST_PAGE = 31;
+    public static final int PAGES = 11;
+    public static final int SIZE = PAGES * 4;
+
+    public static final int TAG = 0;
+    public static final int VERSION = 4;
+    public static final int COUNTER_STATE = 8;
+    public static final int TICKET_COUNT = 12;
+    public static final int VALID_FOR = 16;
+    public static final int ISSUED = 16;
+    public static final int STATIC_MAC = 20;
+    public static final int FIRST_USE = 24;
+    public static final int LAST_USE = 28;
+    public static final int DYNAMIC_MAC = 32;
+    public static final int FIRST_USE_MAC = 32;
+    public static final int LOCK = 36;
+    public static final int COUNTER = 40;
+
+    /** Largest ticket count and validity the v2.0 layout can store */
+    public static final int MAX_COMPACT = 0xFFFF;
+
+    public static final int V1 = text("v1.0");
+    public static final int V2 = text("v2.0");
+
+    /** The static MAC is computed over the fields before it */
+    public static final int STATIC_DATA_LENGTH = STATIC_MAC;
+    /** The v1.0 dynamic MAC is computed over the first use */
+    public static final int DYNAMIC_DATA_LENGTH = 4;
+    /**
+     * The v2.0 first use MAC is computed over the counter state, ticket count, validity,
+     * issue time, static MAC and first use, which are stored in sequence
+     */
+    public static final int FIRST_USE_DATA = COUNTER_STATE;
+    public static final int FIRST_USE_DATA_LENGTH = FIRST_USE + 4 - COUNTER_STATE;
+
+    private byte[] buffer;
+    private int offset;
+
+    /**
+     * Point the view to a buffer holding pages 31 - 41.
+     *
+     * @param offset position of page 31 in the buffer
+     * @return this view
+     */
+    public TicketLayout wrap(byte[] buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * @param field byte offset of a field
+     * @return page the field is stored on
+     */
+    public static int page(int field) {
+        return FIRST_PAGE + field / 4;
+    }
+
+    /**
+     * @return true if the value can be stored in a 16-bit field of the v2.0 layout
+     */
+    public static boolean fitsCompact(int value) {
+        return value >= 0 && value <= MAX_COMPACT;
+    }
+
+    /**
+     * @return the 4 characters of a tag or version packed into an int, as stored on the card
+     */
+    public static int text(String s) {
+        return (s.charAt(0) & 0xFF) << 24 | (s.charAt(1) & 0xFF) << 16
+                | (s.charAt(2) & 0xFF) << 8 | (s.charAt(3) & 0xFF);
+    }
+
+    /**
+     * @return true if the app tag is not made of letters, digits and dots, e.g. on a blank card
+     */
+    public boolean isBlank() {
+        for (int i = 0; i < 4; i++) {
+            byte b = buffer[offset + TAG + i];
+            boolean letterOrDigit = (b >= '0' && b <= '9') || (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z');
+            if (!letterOrDigit && b != '.') return true;
+        }
+        return false;
+    }
+
+    public int getTag() {
+        return getInt(TAG);
+    }
+
+    public void setTag(int tag) {
+        setInt(TAG, tag);
+    }
+
+    public int getVersion() {
+        return getInt(VERSION);
+    }
+
+    public void setVersion(int version) {
+        setInt(VERSION, version);
+    }
+
+    /**
+     * @return true if the ticket uses the compact v2.0 layout
+     */
+    public boolean isCompact() {
+        return getInt(VERSION) == V2;
+    }
+
+    public int getCounterState() {
+        return getInt(COUNTER_STATE);
+    }
+
+    public void setCounterState(int counterState) {
+        setInt(COUNTER_STATE, counterState);
+    }
+
+    public int getTicketCount() {
+        return isCompact() ? getShort(TICKET_COUNT) : getInt(TICKET_COUNT);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the ticket uses the v2.0 layout and the count does
+     *                                  not fit in 16 bits
+     */
+    public void setTicketCount(int ticketCount) {
+        if (isCompact()) setShort(TICKET_COUNT, ticketCount);
+        else setInt(TICKET_COUNT, ticketCount);
+    }
+
+    public int getValidFor() {
+        return isCompact() ? getShort(TICKET_COUNT + 2) : getInt(VALID_FOR);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the ticket uses the v2.0 layout and the validity does
+     *                                  not fit in 16 bits
+     */
+    public void setValidFor(int validFor) {
+        if (isCompact()) setShort(TICKET_COUNT + 2, validFor);
+        else setInt(VALID_FOR, validFor);
+    }
+
+    /** @return v2.0: seconds since the epoch when the tickets were issued or topped up */
+    public int getIssued() {
+        return getInt(ISSUED);
+    }
+
+    public void setIssued(int seconds) {
+        setInt(ISSUED, seconds);
+    }
+
+    public int getStaticMac() {
+        return getInt(STATIC_MAC);
+    }
+
+    /**
+     * @param mac MAC of the static data, only the first 4 bytes are stored
+     */
+    public void setStaticMac(byte[] mac) {
+        System.arraycopy(mac, 0, buffer, offset + STATIC_MAC, 4);
+    }
+
+    public boolean staticMacMatches(byte[] mac) {
+        return getInt(STATIC_MAC) == toInt(mac, 0);
+    }
+
+    /** @return seconds since the epoch, 0 or less if not used */
+    public int getFirstUse() {
+        return getInt(FIRST_USE);
+    }
+
+    /**
+     * @param seconds seconds since the epoch, 0 to clear
+     */
+    public void setFirstUse(int seconds) {
+        setInt(FIRST_USE, seconds);
+    }
+
+    public int getFirstUseMac() {
+        return getInt(FIRST_USE_MAC);
+    }
+
+    /**
+     * @param mac v2.0: MAC of the first use data, only the first 4 bytes are stored
+     */
+    public void setFirstUseMac(byte[] mac) {
+        System.arraycopy(mac, 0, buffer, offset + FIRST_USE_MAC, 4);
+    }
+
+    public boolean firstUseMacMatches(byte[] mac) {
+        return getInt(FIRST_USE_MAC) == toInt(mac, 0);
+    }
+
+    /** @return seconds since the epoch, 0 or less if not used */
+    public int getLastUse() {
+        return getInt(LAST_USE);
+    }
+
+    public void setLastUse(int seconds) {
+        setInt(LAST_USE, seconds);
+    }
+
+    public int getDynamicMac() {
+        return getInt(DYNAMIC_MAC);
+    }
+
+    /**
+     * @param mac MAC of the dynamic data, only the first 4 bytes are stored
+     */
+    public void setDynamicMac(byte[] mac) {
+        System.arraycopy(mac, 0, buffer, offset + DYNAMIC_MAC, 4);
+    }
+
+    public boolean dynamicMacMatches(byte[] mac) {
+        return getInt(DYNAMIC_MAC) == toInt(mac, 0);
+    }
+
+    /** @return value of the one-way counter of the card */
+    public int getCounter() {
+        int p = offset + COUNTER;
+        return (buffer[p] & 0xFF) | (buffer[p + 1] & 0xFF) << 8
+                | (buffer[p + 2] & 0xFF) << 16 | (buffer[p + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * @return the fields as text, one per line
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("tag:           ").append(isBlank() ? "-" : textOf(TAG)).append("\n");
+        sb.append("version:       ").append(isBlank() ? "-" : textOf(VERSION)).append("\n");
+        sb.append("counter state: ").append(getCounterState()).append("\n");
+        sb.append("ticket count:  ").append(getTicketCount()).append("\n");
+        sb.append("valid for:     ").append(getValidFor()).append("\n");
+        if (isCompact()) sb.append("issued:        ").append(time(getIssued())).append("\n");
+        sb.append("static MAC:    ").append(String.format("%08X", getStaticMac())).append("\n");
+        sb.append("first use:     ").append(time(getFirstUse())).append("\n");
+        sb.append("last use:      ").append(time(getLastUse())).append("\n");
+        if (isCompact()) {
+            sb.append("first use MAC: ").append(String.format("%08X", getFirstUseMac())).append("\n");
+        } else {
+            sb.append("dynamic MAC:   ").append(String.format("%08X", getDynamicMac())).append("\n");
+        }
+        sb.append("counter:       ").append(getCounter()).append("\n");
+        return sb.toString();
+    }
+
+    private static String time(int seconds) {
+        return seconds > 0 ? new Date(seconds * 1000L).toString() : "-";
+    }
+
+    private String textOf(int field) {
+        StringBuilder sb = new StringBuilder(4);
+        for (int i = 0; i < 4; i++) {
+            byte b = buffer[offset + field + i];
+            sb.append(b >= 0x20 && b < 0x7F ? (char) b : '.');
+        }
+        return sb.toString();
+    }
+
+    private int getShort(int field) {
+        int p = offset + field;
+        return (buffer[p] & 0xFF) << 8 | (buffer[p + 1] & 0xFF);
+    }
+
+    private void setShort(int field, int value) {
+        if (!fitsCompact(value)) throw new IllegalArgumentException(value + " does not fit in 16 bits");
+        int p = offset + field;
+        buffer[p] = (byte) (value >>> 8);
+        buffer[p + 1] = (byte) value;
+    }
+
+    private int getInt(int field) {
+        return toInt(buffer, offset + field);
+    }
+
+    private void setInt(int field, int value) {
+        int p = offset + field;
+        buffer[p] = (byte) (value >>> 24);
+        buffer[p + 1] = (byte) (value >>> 16);
+        buffer[p + 2] = (byte) (value >>> 8);
+        buffer[p + 3] = (byte) value;
+    }
+
+    private static int toInt(byte[] b, int p) {
+        return (b[p] & 0xFF) << 24 | (b[p + 1] & 0xFF) << 16 | (b[p + 2] & 0xFF) << 8 | (b[p + 3] & 0xFF);
+    }
+}
@@ -5,8 +5,12 @@ import java.security.GeneralSecurityException;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * HMAC-SHA1 with the key set once. The cached MAC of a card may be used by several
+ * validations at a time, so computing a MAC is synchronized.
+ */
 public class TicketMac {
-    private static SecretKeySpec hmacKey;
+    private SecretKeySpec hmacKey;
     private Mac mac;
     private boolean isKeySet = false;
 
@@ -15,7 +19,7 @@ public class TicketMac {
         hmacKey = null;
     }
 
-    public void setKey(byte[] key) throws GeneralSecurityException {
+    public synchronized void setKey(byte[] key) throws GeneralSecurityException {
         hmacKey = new SecretKeySpec(key, "HmacSHA1");
         mac = Mac.getInstance("HmacSHA1");
         mac.init(hmacKey);
@@ -23,10 +27,18 @@ public class TicketMac {
         isKeySet = true;
     }
 
-    public byte[] generateMac(byte[] data) {
+    public synchronized byte[] generateMac(byte[] data) {
         if(!isKeySet)
             return null;
         mac.reset();
         return mac.doFinal(data);
     }
+
+    public synchronized byte[] generateMac(byte[] data, int offset, int length) {
+        if(!isKeySet)
+            return null;
+        mac.reset();
+        mac.update(data, offset, length);
+        return mac.doFinal();
+    }
 }
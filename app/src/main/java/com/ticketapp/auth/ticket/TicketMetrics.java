@@ -0,0 +1,145 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.ticket.TicketResult.Outcome;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of all taps since the app started, for operations rather than for debugging.
+ * <p/>
+ * Every issue and use is counted by its {@link Outcome}, which gives the failure mix: a bad
+ * tag, a bad version, a MAC mismatch, expired tickets, no tickets, a double tap or an RF
+ * error (reading or writing failed). On top of that the tickets issued, the authentications
+ * that fell back to another key, the key updates and the retries after RF errors are counted.
+ * The counters are atomic, so gates on several threads count without locking.
+ * {@link #snapshot(long, long)} writes them in the Prometheus text format.
+ */
+public class TicketMetrics {
+
+    public enum Operation {ISSUE, USE}
+
+    private static final int OUTCOMES = Outcome.values().length;
+
+    private final AtomicLongArray taps = new AtomicLongArray(Operation.values().length * OUTCOMES);
+    private final AtomicLong ticketsIssued = new AtomicLong();
+    private final AtomicLong authFallbacks = new AtomicLong();
+    private final AtomicLong keyUpdates = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong cloneSuspects = new AtomicLong();
+    private final long startMillis = System.currentTimeMillis();
+
+    /**
+     * Count a tap.
+     *
+     * @param retries times the card was selected again during the tap
+     */
+    public void tap(Operation operation, TicketResult result, int retries) {
+        taps.incrementAndGet(operation.ordinal() * OUTCOMES + result.getOutcome().ordinal());
+        if (retries > 0) this.retries.addAndGet(retries);
+    }
+
+    /**
+     * Count tickets written to a card, new or added to ones that had not expired.
+     */
+    public void issued(int tickets) {
+        ticketsIssued.addAndGet(tickets);
+    }
+
+    /**
+     * Count an authentication that had to try another key than the one expected.
+     */
+    public void authFallback() {
+        authFallbacks.incrementAndGet();
+    }
+
+    /**
+     * Count a card whose default key was changed to ours.
+     */
+    public void keyUpdated() {
+        keyUpdates.incrementAndGet();
+    }
+
+    /**
+     * Count a card whose counter or counter state went back, see {@link CounterIndex}.
+     */
+    public void cloneSuspect() {
+        cloneSuspects.incrementAndGet();
+    }
+
+    public long getTaps(Operation operation, Outcome outcome) {
+        return taps.get(operation.ordinal() * OUTCOMES + outcome.ordinal());
+    }
+
+    /** @return taps of the operation, whatever their outcome */
+    public long getTaps(Operation operation) {
+        long sum = 0;
+        for (int i = 0; i < OUTCOMES; i++) sum += taps.get(operation.ordinal() * OUTCOMES + i);
+        return sum;
+    }
+
+    public long getTicketsIssued() {
+        return ticketsIssued.get();
+    }
+
+    public long getAuthFallbacks() {
+        return authFallbacks.get();
+    }
+
+    public long getKeyUpdates() {
+        return keyUpdates.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getCloneSuspects() {
+        return cloneSuspects.get();
+    }
+
+    /**
+     * @param tagsLost  tags that were taken away during a command, from the Reader
+     * @param timeouts  commands that were not answered in time, from the Reader
+     * @return the counters in the Prometheus text exposition format
+     */
+    public String snapshot(long tagsLost, long timeouts) {
+        StringBuilder sb = new StringBuilder();
+        header(sb, "ticket_taps_total", "counter", "Taps by operation and outcome.");
+        for (Operation operation : Operation.values()) {
+            for (Outcome outcome : Outcome.values()) {
+                long count = getTaps(operation, outcome);
+                if (count == 0) continue;
+                sb.append("ticket_taps_total{operation=\"").append(name(operation))
+                        .append("\",outcome=\"").append(name(outcome))
+                        .append("\",success=\"").append(outcome.success).append("\"} ")
+                        .append(count).append('\n');
+            }
+        }
+        counter(sb, "ticket_tickets_issued_total", "Tickets written to cards, new and added.", getTicketsIssued());
+        counter(sb, "ticket_auth_fallbacks_total", "Authentications that had to try another key.", getAuthFallbacks());
+        counter(sb, "ticket_key_updates_total", "Cards whose default key was changed.", getKeyUpdates());
+        counter(sb, "ticket_retries_total", "Reads and writes retried after an RF error.", getRetries());
+        counter(sb, "ticket_clone_suspects_total", "Taps of cards whose counter went back.", getCloneSuspects());
+        counter(sb, "reader_tags_lost_total", "Tags taken away during a command.", tagsLost);
+        counter(sb, "reader_timeouts_total", "Commands not answered in time by a tag still present.", timeouts);
+        header(sb, "ticket_start_time_seconds", "gauge", "Time the counters started, for rates.");
+        sb.append("ticket_start_time_seconds ").append(startMillis / 1000).append('\n');
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, "counter", help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String name(Enum<?> value) {
+        return value.name().toLowerCase(Locale.US);
+    }
+}
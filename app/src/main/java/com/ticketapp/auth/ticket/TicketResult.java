@@ -0,0 +1,120 @@
+package com.ticketapp.auth.ticket;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+/**
+ * Outcome of one issue or use, with the tickets left on the card and when they expire.
+ * <p/>
+ * The tap only picks the outcome and fills in the numbers; the text for the user is made by
+ * {@link #render(DateFormat)} when it is shown. Outcomes that carry no numbers are shared
+ * instances, so a refused tap allocates nothing for its result.
+ */
+public final class TicketResult {
+
+    public enum Outcome {
+        /** nothing was tapped yet */
+        NONE(false, "Tap NFC card"),
+        /** first use: the validity started with this tap */
+        VALIDATED_FIRST_USE(true, "Ticket validated (1st use)."),
+        VALIDATED(true, "Ticket validated."),
+        ISSUED(true, "New tickets issued."),
+        /** tickets were added to ones that had not expired yet */
+        TICKETS_ADDED(true, "Tickets added."),
+        FORMATTED(true, "Formatted the card"),
+        UID_READ_FAILED(false, "Failed to read UID"),
+        EMPTY_UID(false, "Empty UID"),
+        /** the card was validated a moment ago, on this device or according to the card */
+        TOO_SOON(false, "Ticket validated less than " + Ticket.waitingSecondsBetweenTwoTicketIssues + " seconds ago"),
+        AUTHENTICATION_FAILED(false, "Authentication failed"),
+        READ_FAILED(false, "Failed to read the memory"),
+        INVALID_TAG(false, "Invalid App tag"),
+        INVALID_VERSION(false, "Invalid version. This app supports cards formatted with app version " + Ticket.ApplicationVersion),
+        EMPTY_STATIC_MAC(false, "Failed to validate.\nEmpty MAC for static data."),
+        INVALID_STATIC_MAC(false, "Failed to validate.\nInvalid MAC for static data."),
+        EMPTY_DYNAMIC_MAC(false, "Failed to validate.\nEmpty MAC for dynamic data."),
+        INVALID_DYNAMIC_MAC(false, "Failed to validate.\nInvalid MAC for dynamic data."),
+        TOO_MANY_TICKETS(false, "This card has more than " + Ticket.MaxLimitOfTicketNumber + " tickets already. Cannot issue any more tickets."),
+        NO_TICKETS(false, "No tickets"),
+        EXPIRED(false, "Tickets expired."),
+        WRITE_FAILED(false, "Failed to write the card."),
+        FORMAT_FAILED(false, "Fail to format card");
+
+        /** true if the card was issued or validated */
+        public final boolean success;
+        final String text;
+
+        Outcome(boolean success, String text) {
+            this.success = success;
+            this.text = text;
+        }
+    }
+
+    private static final TicketResult[] plain = new TicketResult[Outcome.values().length];
+
+    static {
+        for (Outcome outcome : Outcome.values()) {
+            plain[outcome.ordinal()] = new TicketResult(outcome, -1, 0);
+        }
+    }
+
+    private final Outcome outcome;
+    private final int remaining;
+    private final long expiry;
+
+    private TicketResult(Outcome outcome, int remaining, long expiry) {
+        this.outcome = outcome;
+        this.remaining = remaining;
+        this.expiry = expiry;
+    }
+
+    /**
+     * @return result with no numbers
+     */
+    public static TicketResult of(Outcome outcome) {
+        return plain[outcome.ordinal()];
+    }
+
+    /**
+     * @param remaining tickets left on the card
+     * @param expiry    expiry time in seconds since the epoch, 0 if the validity has not started
+     */
+    public static TicketResult of(Outcome outcome, int remaining, long expiry) {
+        return new TicketResult(outcome, remaining, expiry);
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    /** @return true if the card was issued or validated */
+    public boolean isValid() {
+        return outcome.success;
+    }
+
+    /** @return tickets left on the card, or -1 if not known */
+    public int getRemaining() {
+        return remaining;
+    }
+
+    /** @return expiry time in seconds since the epoch, or 0 if not known or not started */
+    public long getExpiry() {
+        return expiry;
+    }
+
+    /**
+     * @param dateFormat format of the expiry time
+     * @return the message to show to the user
+     */
+    public String render(DateFormat dateFormat) {
+        StringBuilder sb = new StringBuilder(outcome.text);
+        if (remaining >= 0) sb.append("\n").append(remaining).append(" tickets remaining.");
+        if (expiry > 0) sb.append("\nExpires on: ").append(dateFormat.format(new Date(expiry * 1000)));
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return outcome + " remaining=" + remaining + " expiry=" + expiry;
+    }
+}
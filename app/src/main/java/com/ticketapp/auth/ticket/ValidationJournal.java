@@ -0,0 +1,349 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.Dump;
+import com.ticketapp.auth.app.ulctools.Utilities;
+import com.ticketapp.auth.ticket.TicketMetrics.Operation;
+import com.ticketapp.auth.ticket.TicketResult.Outcome;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only record of every issue and use, kept across restarts for auditing.
+ * <p/>
+ * Each tap is one record of {@link #RECORD_SIZE} bytes: the UID pages, the time, the card
+ * counter before and after the tap, the operation, the outcome, the tickets left and a CRC32
+ * of the rest. The records go into segment files of a fixed size that are created full length
+ * and mapped into memory, so appending is a copy into the page cache and never grows a file.
+ * A background thread forces the segment to storage once {@link #GROUP_RECORDS} records are
+ * waiting or {@link #COMMIT_MILLIS} have passed, which commits a group of taps with one sync
+ * and keeps it off the gate path. The same thread maps the next segment ahead of time, so the
+ * tap that fills a segment only switches to the next one and leaves the sync of the full one
+ * to the thread as well; only the newest segments are kept.
+ * <p/>
+ * After a crash the last segment is scanned up to the first record whose CRC does not match,
+ * which is the end of the journal: the rest of the segment is still zero or holds a record
+ * that was only partly written.
+ */
+public class ValidationJournal {
+    public static final int RECORD_SIZE = 32;
+    // records waiting for a sync that wake the commit thread early
+    static final int GROUP_RECORDS = 32;
+    // longest time a record waits for its sync
+    static final long COMMIT_MILLIS = 500;
+
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".bin";
+    private static final int CRC_OFFSET = RECORD_SIZE - 4;
+
+    private final File dir;
+    private final int segmentRecords;
+    private final int keepSegments;
+    private final byte[] record = new byte[RECORD_SIZE];
+    private final ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+    private final CRC32 crc = new CRC32();
+
+    private int segment = -1;
+    private MappedByteBuffer mapped; // null if the journal could not be opened
+    private MappedByteBuffer next; // the following segment, mapped ahead by the commit thread
+    private MappedByteBuffer full; // the previous segment, until it is synced
+    private int fullPending = 0;
+    private int pending = 0;
+    private long appended = 0;
+    private long commits = 0;
+
+    /**
+     * @param dir            directory of the segment files, created if needed, or null to
+     *                       keep no journal
+     * @param segmentRecords records per segment file
+     * @param keepSegments   segment files kept, the oldest is deleted when a new one starts
+     */
+    public ValidationJournal(File dir, int segmentRecords, int keepSegments) {
+        this.dir = dir;
+        this.segmentRecords = segmentRecords;
+        this.keepSegments = keepSegments;
+        if (dir == null) return;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Utilities.log("Can not create journal directory " + dir, true);
+            return;
+        }
+        recover();
+        Thread committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitLoop();
+            }
+        }, "journal-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Add the record of a tap. Returns as soon as the record is in memory, it is synced to
+     * storage with the next group.
+     *
+     * @param uid            pages 0 and 1 of the card, or null if they could not be read
+     * @param counterBefore  card counter when the tap started, or -1 if not read
+     * @param counterAfter   card counter when the tap ended, or -1 if not known
+     */
+    public synchronized void append(Operation operation, byte[] uid, int counterBefore, int counterAfter,
+                                    TicketResult result) {
+        if (mapped == null) return;
+        if (mapped.remaining() < RECORD_SIZE && !switchSegment()) return;
+
+        Arrays.fill(record, (byte) 0);
+        recordBuffer.clear();
+        if (uid != null) recordBuffer.put(uid, 0, Math.min(8, uid.length));
+        recordBuffer.position(8);
+        recordBuffer.putLong(System.currentTimeMillis());
+        recordBuffer.putInt(counterBefore);
+        recordBuffer.putInt(counterAfter);
+        recordBuffer.put((byte) operation.ordinal());
+        recordBuffer.put((byte) result.getOutcome().ordinal());
+        recordBuffer.putShort((short) result.getRemaining());
+        crc.reset();
+        crc.update(record, 0, CRC_OFFSET);
+        recordBuffer.putInt((int) crc.getValue());
+
+        mapped.put(record);
+        appended++;
+        if (++pending >= GROUP_RECORDS) notifyAll();
+    }
+
+    /**
+     * Sync the records appended so far, e.g. before the app goes to the background.
+     */
+    public void flush() {
+        MappedByteBuffer fullToSync;
+        MappedByteBuffer toSync;
+        int synced;
+        int current;
+        synchronized (this) {
+            fullToSync = full;
+            toSync = pending > 0 ? mapped : null;
+            synced = (fullPending > 0 ? 1 : 0) + (pending > 0 ? 1 : 0);
+            full = null;
+            fullPending = 0;
+            pending = 0;
+            current = segment;
+        }
+        // the syncs do not touch the positions, appends go on meanwhile
+        if (fullToSync != null) {
+            fullToSync.force();
+            File old = segmentFile(current - keepSegments);
+            if (old.exists() && !old.delete()) Utilities.log("Can not delete " + old, true);
+        }
+        if (toSync != null) toSync.force();
+        synchronized (this) {
+            commits += synced;
+        }
+    }
+
+    public synchronized long getAppended() {
+        return appended;
+    }
+
+    /** @return syncs that committed at least one record */
+    public synchronized long getCommits() {
+        return commits;
+    }
+
+    /** @return the segment files, oldest first */
+    public synchronized ArrayList<File> getSegments() {
+        ArrayList<File> files = new ArrayList<File>();
+        for (int i = Math.max(0, segment - keepSegments + 1); i <= segment; i++) {
+            File file = segmentFile(i);
+            if (file.exists()) files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * @return the records of a segment file as text, one line per tap
+     */
+    public static String toText(File segmentFile) throws IOException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        StringBuilder sb = new StringBuilder();
+        RandomAccessFile file = new RandomAccessFile(segmentFile, "r");
+        try {
+            byte[] data = new byte[(int) file.length()];
+            file.readFully(data);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            CRC32 crc = new CRC32();
+            for (int pos = 0; pos + RECORD_SIZE <= data.length; pos += RECORD_SIZE) {
+                if (!valid(data, pos, crc)) break;
+                buffer.position(pos + 8);
+                long time = buffer.getLong();
+                int before = buffer.getInt();
+                int after = buffer.getInt();
+                int operation = buffer.get();
+                int outcome = buffer.get();
+                int remaining = buffer.getShort();
+                sb.append(dateFormat.format(new Date(time))).append(' ')
+                        .append(Dump.hex(Arrays.copyOfRange(data, pos, pos + 8), false)).append(' ')
+                        .append(Operation.values()[operation]).append(' ')
+                        .append(Outcome.values()[outcome]).append(" counter ")
+                        .append(before).append(" -> ").append(after).append(" remaining ")
+                        .append(remaining).append('\n');
+            }
+        } finally {
+            file.close();
+        }
+        return sb.toString();
+    }
+
+    private static boolean valid(byte[] data, int pos, CRC32 crc) {
+        crc.reset();
+        crc.update(data, pos, CRC_OFFSET);
+        return ByteBuffer.wrap(data, pos + CRC_OFFSET, 4).getInt() == (int) crc.getValue();
+    }
+
+    private File segmentFile(int number) {
+        return new File(dir, String.format(Locale.US, "%s%06d%s", PREFIX, number, SUFFIX));
+    }
+
+    /**
+     * Continue the newest segment with records after its last complete record.
+     */
+    private void recover() {
+        String[] names = dir.list();
+        int last = -1;
+        if (names != null) {
+            for (String name : names) {
+                if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) continue;
+                try {
+                    last = Math.max(last, Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        if (last < 0) {
+            open(0);
+            return;
+        }
+        if (!open(last)) return;
+        byte[] data = new byte[RECORD_SIZE];
+        mapped.get(data);
+        mapped.position(0);
+        // the newest file may be the empty segment mapped ahead of time
+        if (!valid(data, 0, crc) && last > 0 && segmentFile(last - 1).exists() && !open(last - 1)) return;
+        while (mapped.remaining() >= RECORD_SIZE) {
+            int pos = mapped.position();
+            mapped.get(data);
+            if (!valid(data, 0, crc)) {
+                mapped.position(pos);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Start appending to a segment file.
+     */
+    private boolean open(int number) {
+        mapped = map(number);
+        if (mapped == null) return false;
+        segment = number;
+        return true;
+    }
+
+    /**
+     * Map a segment file, created full length if it does not exist yet.
+     *
+     * @return the mapped file, or null if it can not be opened
+     */
+    private MappedByteBuffer map(int number) {
+        try {
+            RandomAccessFile file = new RandomAccessFile(segmentFile(number), "rw");
+            try {
+                long size = (long) segmentRecords * RECORD_SIZE;
+                if (file.length() < size) file.setLength(size);
+                // the mapping stays valid after the file is closed
+                return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            Utilities.log("Can not open journal segment: " + e.toString(), true);
+            return null;
+        }
+    }
+
+    /**
+     * Continue in the next segment. The full one is synced and the old ones are deleted by the
+     * commit thread, which is woken up to do so and to map the segment after this one.
+     */
+    private boolean switchSegment() {
+        MappedByteBuffer following = next;
+        // the commit thread did not get to map it yet
+        if (following == null) following = map(segment + 1);
+        if (following == null) {
+            mapped = null;
+            return false;
+        }
+        if (full != null) {
+            // the commit thread is behind by a whole segment, the older one has to be synced now
+            full.force();
+            if (fullPending > 0) commits++;
+            File old = segmentFile(segment - keepSegments);
+            if (old.exists() && !old.delete()) Utilities.log("Can not delete " + old, true);
+        }
+        full = mapped;
+        fullPending = pending;
+        pending = 0;
+        mapped = following;
+        next = null;
+        segment++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Map the segment after the current one, outside the lock of the appends.
+     */
+    private void prepareNext() {
+        int number;
+        synchronized (this) {
+            if (next != null || mapped == null) return;
+            number = segment + 1;
+        }
+        MappedByteBuffer buffer = map(number);
+        boolean deleted;
+        synchronized (this) {
+            if (next == null && segment + 1 == number) {
+                next = buffer;
+                return;
+            }
+            // the appends went past it meanwhile, it may have been deleted already
+            deleted = number <= segment - keepSegments;
+        }
+        File stale = segmentFile(number);
+        if (deleted && stale.exists() && !stale.delete()) Utilities.log("Can not delete " + stale, true);
+    }
+
+    private void commitLoop() {
+        prepareNext();
+        while (true) {
+            synchronized (this) {
+                try {
+                    if (pending < GROUP_RECORDS && full == null) wait(COMMIT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            flush();
+            prepareNext();
+        }
+    }
+}
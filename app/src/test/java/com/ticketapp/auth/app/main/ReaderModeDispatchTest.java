@@ -0,0 +1,83 @@
+package com.ticketapp.auth.app.main;
+
+import android.nfc.NfcAdapter;
+import android.nfc.Tag;
+import android.os.Bundle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class ReaderModeDispatchTest {
+
+    private TicketActivity activity;
+    private NfcAdapter adapter;
+    private ReaderModeDispatch dispatch;
+
+    @Before
+    public void setUp() {
+        // the activity is not created, the dispatch only hands it the tags
+        activity = spy(Robolectric.buildActivity(TicketActivity.class).get());
+        adapter = mock(NfcAdapter.class);
+        dispatch = new ReaderModeDispatch(activity);
+    }
+
+    @Test
+    public void enablePollsNfcAWithoutTheNdefCheck() {
+        dispatch.enable(adapter);
+        ArgumentCaptor<Bundle> extras = ArgumentCaptor.forClass(Bundle.class);
+        verify(adapter).enableReaderMode(same(activity), same(dispatch),
+                eq(NfcAdapter.FLAG_READER_NFC_A | NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK), extras.capture());
+        assertEquals(ReaderModeDispatch.PRESENCE_CHECK_DELAY,
+                extras.getValue().getInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY));
+    }
+
+    @Test
+    public void disableStopsReaderMode() {
+        dispatch.disable(adapter);
+        verify(adapter).disableReaderMode(activity);
+    }
+
+    @Test
+    public void tagIsHandedToTheActivityOnTheBinderThread() throws InterruptedException {
+        final Tag tag = mock(Tag.class);
+        final Thread[] calledOn = new Thread[1];
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                calledOn[0] = Thread.currentThread();
+                return null;
+            }
+        }).when(activity).tagDiscovered(any(Tag.class));
+
+        // the platform calls back on a binder thread, the jobs must not wait for the main one
+        Thread binder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch.onTagDiscovered(tag);
+            }
+        });
+        binder.start();
+        binder.join();
+        verify(activity).tagDiscovered(tag);
+        assertSame(binder, calledOn[0]);
+    }
+}
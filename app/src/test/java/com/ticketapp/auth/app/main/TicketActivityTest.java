@@ -0,0 +1,158 @@
+package com.ticketapp.auth.app.main;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.IntentFilter;
+import android.nfc.NfcAdapter;
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.notNull;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Switching the activity between reader mode and the foreground dispatch, with a mock NFC
+ * adapter.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = TicketActivityTest.ShadowDefaultNfcAdapter.class)
+public class TicketActivityTest {
+
+    private NfcAdapter adapter;
+    private ActivityController<TicketActivity> controller;
+    private TicketActivity activity;
+
+    /** Gives the activity the mock adapter of the test */
+    @Implements(NfcAdapter.class)
+    public static class ShadowDefaultNfcAdapter {
+        static NfcAdapter adapter;
+
+        @Implementation
+        protected static NfcAdapter getDefaultAdapter(Context context) {
+            return adapter;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        adapter = mock(NfcAdapter.class);
+        when(adapter.isEnabled()).thenReturn(true);
+        ShadowDefaultNfcAdapter.adapter = adapter;
+        TicketActivity.readerMode = true;
+        controller = Robolectric.buildActivity(TicketActivity.class).create().start();
+        activity = controller.get();
+    }
+
+    @After
+    public void tearDown() {
+        // back to the default, the foreground dispatch
+        TicketActivity.readerMode = false;
+    }
+
+    @Test
+    public void readerModeIsEnabledOnResume() {
+        controller.resume();
+        verify(adapter).enableReaderMode(same(activity), any(ReaderModeDispatch.class), anyInt(), any(Bundle.class));
+        verifyForegroundDispatchNotEnabled();
+    }
+
+    @Test
+    public void foregroundDispatchIsEnabledOnResumeWithoutReaderMode() {
+        TicketActivity.readerMode = false;
+        controller.resume();
+        verify(adapter).enableForegroundDispatch(same(activity), notNull(PendingIntent.class),
+                notNull(IntentFilter[].class), notNull(String[][].class));
+        verifyReaderModeNotEnabled();
+    }
+
+    @Test
+    public void pauseDisablesReaderMode() {
+        controller.resume().pause();
+        verify(adapter).disableReaderMode(activity);
+        verify(adapter, never()).disableForegroundDispatch(any(Activity.class));
+    }
+
+    @Test
+    public void pauseDisablesTheForegroundDispatch() {
+        TicketActivity.readerMode = false;
+        controller.resume().pause();
+        verify(adapter).disableForegroundDispatch(activity);
+        verify(adapter, never()).disableReaderMode(any(Activity.class));
+    }
+
+    @Test
+    public void switchingWhileResumedReplacesTheDispatch() {
+        controller.resume();
+        activity.setReaderMode(false);
+        assertFalse(TicketActivity.readerMode);
+        activity.setReaderMode(true);
+        assertTrue(TicketActivity.readerMode);
+
+        InOrder order = inOrder(adapter);
+        order.verify(adapter).enableReaderMode(same(activity), any(ReaderModeDispatch.class), anyInt(), any(Bundle.class));
+        order.verify(adapter).disableReaderMode(activity);
+        order.verify(adapter).enableForegroundDispatch(same(activity), any(PendingIntent.class),
+                any(IntentFilter[].class), any(String[][].class));
+        order.verify(adapter).disableForegroundDispatch(activity);
+        order.verify(adapter).enableReaderMode(same(activity), any(ReaderModeDispatch.class), anyInt(), any(Bundle.class));
+    }
+
+    @Test
+    public void switchingBeforeResumeOnlyChangesTheSetting() {
+        clearInvocations(adapter);
+        activity.setReaderMode(false);
+        assertFalse(TicketActivity.readerMode);
+        verifyZeroInteractions(adapter);
+
+        controller.resume();
+        verify(adapter).enableForegroundDispatch(same(activity), any(PendingIntent.class),
+                any(IntentFilter[].class), any(String[][].class));
+        verifyReaderModeNotEnabled();
+    }
+
+    @Test
+    public void switchingWhilePausedTakesEffectOnResume() {
+        controller.resume().pause();
+        clearInvocations(adapter);
+        activity.setReaderMode(false);
+        verifyZeroInteractions(adapter);
+
+        controller.resume();
+        verify(adapter).enableForegroundDispatch(same(activity), any(PendingIntent.class),
+                any(IntentFilter[].class), any(String[][].class));
+        verifyReaderModeNotEnabled();
+    }
+
+    private void verifyReaderModeNotEnabled() {
+        verify(adapter, never()).enableReaderMode(any(Activity.class), any(NfcAdapter.ReaderCallback.class),
+                anyInt(), any(Bundle.class));
+    }
+
+    private void verifyForegroundDispatchNotEnabled() {
+        verify(adapter, never()).enableForegroundDispatch(any(Activity.class), any(PendingIntent.class),
+                any(IntentFilter[].class), any(String[][].class));
+    }
+}
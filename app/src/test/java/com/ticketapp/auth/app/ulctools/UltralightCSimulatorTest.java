@@ -0,0 +1,275 @@
+package com.ticketapp.auth.app.ulctools;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The simulated Ultralight C, driven with raw commands like a phone would send them.
+ */
+public class UltralightCSimulatorTest {
+    private static final byte[] UID = {0x04, 0x12, 0x34, 0x56, 0x78, (byte) 0x9A, (byte) 0xBC};
+
+    private UltralightCSimulator card;
+
+    @Before
+    public void setUp() throws IOException {
+        card = new UltralightCSimulator(UID);
+        card.setLatencyModel(LatencyModel.none());
+        card.connect();
+    }
+
+    @Test
+    public void readReturnsFourPages() throws IOException {
+        card.setPages(4, bytes(16, 1));
+        assertArrayEquals(bytes(16, 1), card.transceive(read(4)));
+    }
+
+    @Test
+    public void readRollsOverToPageZeroAfterPage43() throws IOException {
+        byte[] response = card.transceive(read(42));
+        byte[] memory = card.getMemory();
+        assertArrayEquals(Arrays.copyOfRange(memory, 42 * 4, 44 * 4), Arrays.copyOfRange(response, 0, 8));
+        assertArrayEquals(Arrays.copyOfRange(memory, 0, 8), Arrays.copyOfRange(response, 8, 16));
+    }
+
+    @Test
+    public void keyPagesCanNotBeRead() throws IOException {
+        assertNak(read(44));
+    }
+
+    @Test
+    public void fastReadIsRefusedUnlessEnabled() throws IOException {
+        assertNak(new byte[]{0x3A, 4, 7});
+        card.connect();
+        card.setFastReadSupported(true);
+        assertEquals(16, card.transceive(new byte[]{0x3A, 4, 7}).length);
+    }
+
+    @Test
+    public void writeChangesOnePage() throws IOException {
+        assertArrayEquals(new byte[]{0x0A}, card.transceive(write(4, 1, 2, 3, 4)));
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, page(4));
+        assertArrayEquals(new byte[4], page(5));
+    }
+
+    @Test
+    public void otpPageIsOred() throws IOException {
+        card.transceive(write(3, 0x01, 0x00, 0x10, 0x00));
+        card.transceive(write(3, 0x02, 0x00, 0x00, 0x00));
+        assertArrayEquals(new byte[]{0x03, 0x00, 0x10, 0x00}, page(3));
+    }
+
+    @Test
+    public void lockBitsAreOredAndLockThePages() throws IOException {
+        byte[] serial = Arrays.copyOfRange(page(2), 0, 2);
+        // lock page 4 with byte 2 bit 4, then try to clear it again
+        card.transceive(write(2, 0x55, 0x55, 0x10, 0x00));
+        card.transceive(write(2, 0x00, 0x00, 0x00, 0x00));
+        byte[] lock = page(2);
+        assertArrayEquals(serial, Arrays.copyOfRange(lock, 0, 2));
+        assertEquals(0x10, lock[2]);
+        assertNak(write(4, 1, 1, 1, 1));
+        card.connect();
+        card.transceive(write(5, 1, 1, 1, 1));
+    }
+
+    @Test
+    public void dynamicLockBitsLockFourPages() throws IOException {
+        // page 40 byte 0 bit 2 locks pages 20 - 23
+        card.transceive(write(40, 0x04, 0x00, 0x00, 0x00));
+        assertNak(write(23, 1, 1, 1, 1));
+        card.connect();
+        card.transceive(write(24, 1, 1, 1, 1));
+    }
+
+    @Test
+    public void counterAddsTheWrittenValue() throws IOException {
+        card.transceive(write(41, 1, 0, 0, 0));
+        card.transceive(write(41, 0x00, 0x01, 0, 0));
+        assertEquals(0x101, card.getCounter());
+        assertArrayEquals(new byte[]{0x01, 0x01, 0x00, 0x00}, page(41));
+    }
+
+    @Test
+    public void counterStopsAt16Bits() throws IOException {
+        card.transceive(write(41, (byte) 0xFE, (byte) 0xFF, 0, 0));
+        assertNak(write(41, 2, 0, 0, 0));
+        assertEquals(0xFFFE, card.getCounter());
+        card.connect();
+        card.transceive(write(41, 1, 0, 0, 0));
+        assertEquals(0xFFFF, card.getCounter());
+    }
+
+    @Test
+    public void auth0ProtectsReadAndWriteFromItsPage() throws IOException {
+        // AUTH1 bit 0 cleared: read and write protection
+        card.transceive(write(43, 0, 0, 0, 0));
+        card.transceive(write(42, 31, 0, 0, 0));
+        card.transceive(read(27));
+        assertNak(read(31));
+        card.connect();
+        assertNak(write(31, 1, 1, 1, 1));
+        card.connect();
+        card.transceive(write(30, 1, 1, 1, 1));
+    }
+
+    @Test
+    public void auth1AllowsReadingWithWriteProtection() throws IOException {
+        card.transceive(write(43, 1, 0, 0, 0));
+        card.transceive(write(42, 31, 0, 0, 0));
+        card.transceive(read(31));
+        assertNak(write(31, 1, 1, 1, 1));
+    }
+
+    @Test
+    public void authenticationWithTheDefaultKeyUnlocksProtectedPages() throws Exception {
+        card.transceive(write(43, 0, 0, 0, 0));
+        card.transceive(write(42, 31, 0, 0, 0));
+        assertTrue(authenticate(UltralightCSimulator.DEFAULT_KEY));
+        card.transceive(read(31));
+        card.transceive(write(31, 1, 2, 3, 4));
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, Arrays.copyOfRange(card.getMemory(), 31 * 4, 32 * 4));
+        assertEquals(1, card.getAuthentications());
+    }
+
+    @Test
+    public void authenticationWithAnotherKeyFails() throws Exception {
+        card.transceive(write(42, 31, 0, 0, 0));
+        assertFalse(authenticate("linverationjereh".getBytes()));
+        card.connect();
+        assertNak(write(31, 1, 1, 1, 1));
+        assertEquals(0, card.getAuthentications());
+    }
+
+    @Test
+    public void newKeyIsUsedForTheNextAuthentication() throws Exception {
+        byte[] key = "linverationjereh".getBytes();
+        assertTrue(authenticate(UltralightCSimulator.DEFAULT_KEY));
+        for (int i = 0; i < 4; i++) {
+            card.transceive(write(44 + i, key[i * 4], key[i * 4 + 1], key[i * 4 + 2], key[i * 4 + 3]));
+        }
+        card.connect();
+        assertTrue(authenticate(key));
+        card.connect();
+        assertFalse(authenticate(UltralightCSimulator.DEFAULT_KEY));
+    }
+
+    @Test
+    public void reselectingEndsTheAuthentication() throws Exception {
+        card.transceive(write(43, 0, 0, 0, 0));
+        card.transceive(write(42, 31, 0, 0, 0));
+        assertTrue(authenticate(UltralightCSimulator.DEFAULT_KEY));
+        card.close();
+        card.connect();
+        assertNak(read(31));
+    }
+
+    @Test
+    public void removedCardIsLost() throws IOException {
+        card.removeAfter(1);
+        card.transceive(read(0));
+        try {
+            card.transceive(read(0));
+            fail("the card was removed");
+        } catch (CardLostException e) {
+            // expected
+        }
+        try {
+            card.connect();
+            fail("the card was removed");
+        } catch (CardLostException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void lostAnswerStillCountsTheWrite() throws IOException {
+        card.loseAnswer(new byte[]{(byte) 0xA2, 41});
+        try {
+            card.transceive(write(41, 1, 0, 0, 0));
+            fail("the answer was lost");
+        } catch (CardLostException e) {
+            // expected
+        }
+        assertEquals(1, card.getCounter());
+    }
+
+    /**
+     * The reader side of the 3DES mutual authentication, as in {@link Reader#authenticate}.
+     *
+     * @return true if the card accepted the key and proved that it has it too
+     */
+    private boolean authenticate(byte[] key) throws Exception {
+        byte[] k = new byte[24];
+        for (int i = 0; i < 8; i++) {
+            k[i] = key[7 - i];
+            k[8 + i] = key[15 - i];
+            k[16 + i] = k[i];
+        }
+        TripleDesEngine engine = new TripleDesEngine(k);
+        byte[] response1 = card.transceive(new byte[]{0x1A, 0x00});
+        assertEquals((byte) 0xAF, response1[0]);
+        byte[] encRandB = Arrays.copyOfRange(response1, 1, 9);
+        byte[] randB = engine.decrypt(new byte[8], encRandB);
+        byte[] randA = {1, 2, 3, 4, 5, 6, 7, 8};
+        byte[] randCon = new byte[16];
+        System.arraycopy(randA, 0, randCon, 0, 8);
+        System.arraycopy(randB, 1, randCon, 8, 7);
+        randCon[15] = randB[0];
+        byte[] encRandCon = engine.encrypt(encRandB, randCon);
+        byte[] command = new byte[17];
+        command[0] = (byte) 0xAF;
+        System.arraycopy(encRandCon, 0, command, 1, 16);
+        byte[] response2;
+        try {
+            response2 = card.transceive(command);
+        } catch (IOException e) {
+            return false;
+        }
+        assertEquals(0x00, response2[0]);
+        byte[] randAp = engine.decrypt(Arrays.copyOfRange(encRandCon, 8, 16), Arrays.copyOfRange(response2, 1, 9));
+        for (int i = 0; i < 8; i++) {
+            assertEquals(randA[(i + 1) % 8], randAp[i]);
+        }
+        return true;
+    }
+
+    private void assertNak(byte[] command) throws IOException {
+        int naks = card.getNaks();
+        try {
+            card.transceive(command);
+            fail("expected NAK");
+        } catch (CardLostException e) {
+            fail("expected NAK, the card was lost");
+        } catch (IOException e) {
+            assertEquals(naks + 1, card.getNaks());
+        }
+    }
+
+    private byte[] page(int page) throws IOException {
+        return Arrays.copyOf(card.transceive(read(page)), 4);
+    }
+
+    private static byte[] read(int page) {
+        return new byte[]{0x30, (byte) page};
+    }
+
+    private static byte[] write(int page, int b0, int b1, int b2, int b3) {
+        return new byte[]{(byte) 0xA2, (byte) page, (byte) b0, (byte) b1, (byte) b2, (byte) b3};
+    }
+
+    private static byte[] bytes(int length, int value) {
+        byte[] b = new byte[length];
+        Arrays.fill(b, (byte) value);
+        return b;
+    }
+}
@@ -0,0 +1,97 @@
+package com.ticketapp.auth.app.ulctools;
+
+import com.ticketapp.auth.ticket.Ticket;
+import com.ticketapp.auth.ticket.TicketContext;
+import com.ticketapp.auth.ticket.TicketResult.Outcome;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Which cards are taken for Ultralight EV1, and that the tickets work on them but are not
+ * sold on an NTAG21x, which could not count the rides.
+ */
+public class UltralightEV1FamilyTest {
+    private static final byte[] UID = {0x04, 0x12, 0x34, 0x56, 0x78, (byte) 0x9A, (byte) 0xBC};
+    private static final byte[] NTAG213 = {0x00, 0x04, 0x04, 0x02, 0x01, 0x00, 0x0F, 0x03};
+    private static final byte[] NTAG215 = {0x00, 0x04, 0x04, 0x02, 0x01, 0x00, 0x11, 0x03};
+    private static final byte[] NTAG216 = {0x00, 0x04, 0x04, 0x02, 0x01, 0x00, 0x13, 0x03};
+
+    private final TicketContext context = new TicketContext("BREAKMEIFYOUCAN!".getBytes(),
+            "0123456789abcdef".getBytes(), "fedcba9876543210".getBytes(), null);
+
+    /**
+     * The memory and commands of the Ultralight EV1, with the version of an NTAG213 and
+     * without INCR_CNT, which is all the tickets can tell apart.
+     */
+    private static class NtagSimulator extends UltralightEV1Simulator {
+        NtagSimulator(byte[] uid) {
+            super(uid);
+        }
+
+        @Override
+        protected byte[] answer(byte[] data) throws IOException {
+            if (data[0] == (byte) 0x60) return NTAG213.clone();
+            if (data[0] == (byte) 0xA5) return nak();
+            return super.answer(data);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Reader.unbind();
+    }
+
+    @Test
+    public void ultralightEV1IsKnownByItsVersion() {
+        UltralightEV1Family family = UltralightEV1Family.fromVersion(UltralightEV1Simulator.VERSION);
+        assertNotNull(family);
+        assertEquals("Ultralight EV1 MF0UL21", family.getName());
+    }
+
+    @Test
+    public void ntagIsNotTakenForUltralightEV1() {
+        assertNull(UltralightEV1Family.fromVersion(NTAG213));
+        assertNull(UltralightEV1Family.fromVersion(NTAG215));
+        assertNull(UltralightEV1Family.fromVersion(NTAG216));
+    }
+
+    @Test
+    public void ticketsAreIssuedAndUsedOnUltralightEV1() throws Exception {
+        UltralightEV1Simulator card = connect(new UltralightEV1Simulator(UID));
+        Ticket ticket = new Ticket(context);
+        assertTrue(ticket.issue(2, 3));
+        int counter = card.getCounter();
+        assertTrue(ticket.use());
+        assertEquals(Outcome.VALIDATED_FIRST_USE, ticket.getResult().getOutcome());
+        assertEquals(counter + 1, card.getCounter());
+    }
+
+    @Test
+    public void noTicketsAreIssuedOnNtag() throws Exception {
+        NtagSimulator card = connect(new NtagSimulator(UID));
+        byte[] blank = card.getMemory();
+        Ticket ticket = new Ticket(context);
+        assertFalse(ticket.issue(2, 3));
+        assertEquals(Outcome.AUTHENTICATION_FAILED, ticket.getResult().getOutcome());
+        assertFalse(Reader.getFamily() instanceof UltralightEV1Family);
+        // nothing was written
+        assertArrayEquals(blank, card.getMemory());
+    }
+
+    private static <T extends CardSimulator> T connect(T card) {
+        card.setLatencyModel(LatencyModel.none());
+        Reader.bind(card);
+        Reader.connect();
+        return card;
+    }
+}
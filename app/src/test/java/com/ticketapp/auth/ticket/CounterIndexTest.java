@@ -0,0 +1,89 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.ticket.CounterIndex.Verdict;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CounterIndexTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("counter_index", ".bin");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void rollBacksAreFlagged() {
+        CounterIndex index = new CounterIndex(null);
+        assertEquals(Verdict.NEW, index.observe(1, 10, 5, 0));
+        assertEquals(Verdict.OK, index.observe(1, 11, 5, 0));
+        assertEquals(Verdict.COUNTER_ROLLED_BACK, index.observe(1, 10, 5, 0));
+        assertEquals(Verdict.STATE_ROLLED_BACK, index.observe(1, 12, 4, 0));
+        assertEquals(2, index.getSuspects());
+    }
+
+    @Test
+    public void counterStateAboveTheCounterIsFlagged() {
+        CounterIndex index = new CounterIndex(null);
+        assertEquals(Verdict.NEW, index.observe(1, 10, 10, 0));
+        assertEquals(Verdict.STATE_AHEAD, index.observe(1, 11, 12, 0));
+        assertEquals(Verdict.STATE_AHEAD, index.observe(2, 3, 4, 0));
+        assertEquals(Verdict.STATE_AHEAD, index.observe(0, 3, 4, 0));
+        assertEquals(3, index.getSuspects());
+    }
+
+    @Test
+    public void tableGrowsInTheBackground() throws InterruptedException {
+        CounterIndex index = new CounterIndex(null);
+        int capacity = index.capacity();
+        int cards = capacity / 2 + 1;
+        for (int i = 1; i <= cards; i++) index.observe(i, i, 0, 0);
+        // the taps go on while the table is grown
+        for (int round = 0; index.capacity() == capacity && round < 1000; round++) {
+            index.observe(round % cards + 1, cards + round, 0, 0);
+            Thread.sleep(1);
+        }
+        assertEquals(capacity * 2, index.capacity());
+        assertEquals(cards, index.size());
+        for (int i = 1; i <= cards; i++) assertTrue(index.getCounter(i) >= i);
+    }
+
+    @Test
+    public void tableIsGrownBeforeItFillsUp() {
+        CounterIndex index = new CounterIndex(null);
+        int capacity = index.capacity();
+        // faster than the background thread may keep up with
+        int cards = capacity * 3 / 4 + 1;
+        for (int i = 1; i <= cards; i++) index.observe(i, i, 0, 0);
+        assertTrue(index.capacity() > capacity);
+        assertEquals(cards, index.size());
+        for (int i = 1; i <= cards; i++) assertEquals(i, index.getCounter(i));
+    }
+
+    @Test
+    public void savedTableIsLoaded() {
+        CounterIndex index = new CounterIndex(file);
+        for (int i = 0; i < 2000; i++) index.observe(i, i + 1, i, i);
+        index.save();
+        CounterIndex loaded = new CounterIndex(file);
+        assertEquals(2000, loaded.size());
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(i + 1, loaded.getCounter(i));
+            assertEquals(i, loaded.getLastSeen(i));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.ticket.KeyStateIndex.KeyState;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KeyStateIndexTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("key_states", ".txt");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void changesAreWrittenOnFlushOnly() throws IOException {
+        KeyStateIndex index = new KeyStateIndex(file);
+        index.put("card1", KeyState.DEFAULT);
+        index.put("card2", KeyState.DIVERSIFIED);
+        assertFalse(file.exists());
+        index.flush();
+        assertEquals(2, lines());
+        // unchanged states are not written again
+        index.put("card2", KeyState.DIVERSIFIED);
+        index.flush();
+        assertEquals(2, lines());
+    }
+
+    @Test
+    public void lastStateOfACardWinsOnLoad() {
+        KeyStateIndex index = new KeyStateIndex(file);
+        index.put("card1", KeyState.DEFAULT);
+        index.put("card1", KeyState.DIVERSIFIED);
+        index.flush();
+        KeyStateIndex loaded = new KeyStateIndex(file);
+        assertEquals(KeyState.DIVERSIFIED, loaded.get("card1"));
+        assertNull(loaded.get("card2"));
+    }
+
+    @Test
+    public void fileIsCompactedWhenItHoldsManyMoreLinesThanCards() throws IOException {
+        KeyStateIndex index = new KeyStateIndex(file);
+        for (int i = 0; i < 100; i++) {
+            index.put("card1", i % 2 == 0 ? KeyState.DEFAULT : KeyState.DIVERSIFIED);
+            index.flush();
+        }
+        assertEquals(KeyState.DIVERSIFIED, index.get("card1"));
+        assertTrue(lines() <= 2 + 64);
+        assertEquals(KeyState.DIVERSIFIED, new KeyStateIndex(file).get("card1"));
+    }
+
+    @Test
+    public void cardSeenLongestAgoIsDropped() {
+        KeyStateIndex index = new KeyStateIndex(null);
+        for (int i = 0; i < KeyStateIndex.MAX_CARDS; i++) index.put("card" + i, KeyState.DIVERSIFIED);
+        index.get("card0");
+        index.put("new", KeyState.DEFAULT);
+        assertEquals(KeyStateIndex.MAX_CARDS, index.size());
+        assertEquals(KeyState.DIVERSIFIED, index.get("card0"));
+        assertNull(index.get("card1"));
+    }
+
+    private int lines() throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        int lines = 0;
+        while (reader.readLine() != null) lines++;
+        reader.close();
+        return lines;
+    }
+}
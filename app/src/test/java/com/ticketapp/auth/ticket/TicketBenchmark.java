@@ -0,0 +1,301 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.CardSimulator;
+import com.ticketapp.auth.app.ulctools.CardTransport;
+import com.ticketapp.auth.app.ulctools.LatencyModel;
+import com.ticketapp.auth.app.ulctools.Reader;
+import com.ticketapp.auth.app.ulctools.UltralightCSimulator;
+import com.ticketapp.auth.app.ulctools.UltralightEV1Simulator;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * End-to-end benchmark of {@link Ticket#issue} and {@link Ticket#use} against a simulated
+ * Ultralight C and a simulated Ultralight EV1 card.
+ * <p/>
+ * Every scenario prepares the card once and restores that memory image before each
+ * iteration, so all iterations run the same branch. For each scenario the report has the
+ * percentiles of the measured time on this device, the simulated RF time from the
+ * {@link LatencyModel}, and the number of transceives, reads and writes per operation.
+ * <p/>
+ * Each scenario starts with a {@link TicketContext} of its own kept in memory, so the caches
+ * and counters of one scenario do not change the branch taken in the next. The full run is
+ * started with {@code ./gradlew ticketBenchmark}, see {@link #main(String[])};
+ * {@link TicketBenchmarkTest} only runs a few iterations with the unit tests.
+ */
+public class TicketBenchmark {
+
+    private static final byte[] uid = {0x04, 0x12, 0x34, 0x56, 0x78, (byte) 0x9A, (byte) 0xBC};
+    private static final int daysValid = 2;
+    private static final int uses = 3;
+
+    public enum Card {
+        ULTRALIGHT_C,
+        ULTRALIGHT_EV1
+    }
+
+    public enum Scenario {
+        ISSUE_BLANK_CARD(true, true),
+        ISSUE_TOP_UP(true, true),
+        USE_FIRST(false, true),
+        USE_REPEAT(false, true),
+        USE_DOUBLE_TAP(false, false),
+        USE_EXPIRED(false, false),
+        USE_V1_CARD(false, true),
+        USE_TAG_LOST(false, false),
+        USE_LOST_ANSWER(false, true);
+
+        final boolean issue;
+        final boolean expectedResult;
+
+        Scenario(boolean issue, boolean expectedResult) {
+            this.issue = issue;
+            this.expectedResult = expectedResult;
+        }
+    }
+
+    private final TicketContext keys;
+    private final LatencyModel latency;
+    private final int iterations;
+    private int failures;
+
+    /**
+     * @param keys       context whose keys the tickets use
+     * @param latency    simulated time of each card command
+     * @param iterations measured operations per scenario
+     */
+    public TicketBenchmark(TicketContext keys, LatencyModel latency, int iterations) {
+        this.keys = keys;
+        this.latency = latency;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Run all scenarios with the default latencies and print the report.
+     *
+     * @param args iterations per scenario, 50 if not given
+     */
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        TicketContext context = new TicketContext("BREAKMEIFYOUCAN!".getBytes(),
+                "0123456789abcdef".getBytes(), "fedcba9876543210".getBytes(), null);
+        TicketBenchmark benchmark = new TicketBenchmark(context, new LatencyModel(), iterations);
+        System.out.print(benchmark.run());
+        if (benchmark.getFailures() > 0) {
+            System.err.println(benchmark.getFailures() + " iterations failed");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Run all scenarios on all cards. The card used by the Reader is restored afterwards.
+     *
+     * @return report with one line per scenario
+     */
+    public String run() throws Exception {
+        StringBuilder report = new StringBuilder();
+        CardTransport previousCard = Reader.getCard();
+        try {
+            for (Card card : Card.values()) {
+                report.append(card.name().toLowerCase(Locale.US)).append("\n");
+                report.append(String.format(Locale.US, "%-16s %8s %8s %8s %8s %6s %6s %6s %6s %s\n",
+                        "scenario", "p50 us", "p90 us", "p99 us", "rf us", "tx", "reads", "writes", "reconn", "failed"));
+                for (Scenario scenario : Scenario.values()) {
+                    report.append(run(card, scenario)).append("\n");
+                }
+            }
+        } finally {
+            Reader.setCard(previousCard);
+        }
+        return report.toString();
+    }
+
+    /**
+     * @return iterations of all runs so far whose outcome or counter was not the expected one
+     */
+    public int getFailures() {
+        return failures;
+    }
+
+    private String run(Card type, Scenario scenario) throws Exception {
+        CardSimulator card = type == Card.ULTRALIGHT_C ? new UltralightCSimulator(uid) : new UltralightEV1Simulator(uid);
+        card.setLatencyModel(LatencyModel.none());
+        Reader.setCard(card);
+        Reader.connect();
+        TicketContext context = keys.inMemory();
+        Ticket ticket = new Ticket(context);
+        byte[] image = prepare(scenario, card, ticket);
+        card.setLatencyModel(latency);
+
+        long[] nanos = new long[iterations];
+        long rfMicros = 0;
+        long transceives = 0;
+        long reads = 0;
+        long writes = 0;
+        long reconnects = 0;
+        int failed = 0;
+        // one warm-up round for every measured one
+        for (int i = -iterations; i < iterations; i++) {
+            card.setPages(0, image);
+            if (scenario == Scenario.USE_DOUBLE_TAP) {
+                // validated on this device a moment ago
+                card.setPages(page(38), toBytes(System.currentTimeMillis() / 1000));
+                context.getRecentTaps().record(uidString(card));
+            } else {
+                context.getRecentTaps().clear();
+            }
+            // the tag is taken away right after the authentication
+            card.removeAfter(scenario == Scenario.USE_TAG_LOST ? 3 : -1);
+            // the card counts the ride, but the phone does not hear it
+            card.loseAnswer(scenario == Scenario.USE_LOST_ANSWER ? counterCommand(type) : null);
+            int counter = card.getCounter();
+            // every tap ends with closing the link and starts with a new tag, whose family is
+            // not known yet
+            Reader.disconnect();
+            Reader.setCard(card);
+            Reader.connect();
+            if (scenario == Scenario.ISSUE_BLANK_CARD) {
+                // a blank card is not known yet
+                ticket = new Ticket(keys.inMemory());
+            }
+            card.resetCounters();
+            long reconnectsBefore = Reader.getConnection().getReconnects();
+
+            long start = System.nanoTime();
+            boolean result = scenario.issue ? ticket.issue(daysValid, uses) : ticket.use();
+            long time = System.nanoTime() - start;
+
+            if (i < 0) continue;
+            nanos[i] = time;
+            rfMicros += card.getElapsedMicros();
+            transceives += card.getTransceives();
+            reads += card.getReads();
+            writes += card.getWrites();
+            reconnects += Reader.getConnection().getReconnects() - reconnectsBefore;
+            // the outcome of the tap must tell the same as its return value
+            if (result != scenario.expectedResult || ticket.getResult().isValid() != result) failed++;
+            // a ride is counted exactly once, however often the writes were tried
+            else if (!scenario.issue && card.getCounter() != counter + (result ? 1 : 0)) failed++;
+        }
+        failures += failed;
+
+        Arrays.sort(nanos);
+        return String.format(Locale.US, "%-16s %8d %8d %8d %8d %6.1f %6.1f %6.1f %6.1f %d",
+                scenario.name().toLowerCase(Locale.US),
+                percentile(nanos, 50) / 1000, percentile(nanos, 90) / 1000, percentile(nanos, 99) / 1000,
+                rfMicros / iterations, (double) transceives / iterations,
+                (double) reads / iterations, (double) writes / iterations,
+                (double) reconnects / iterations, failed);
+    }
+
+    /**
+     * @return first bytes of the command that increments the counter on the card
+     */
+    private static byte[] counterCommand(Card type) {
+        if (type == Card.ULTRALIGHT_EV1) return new byte[]{(byte) 0xA5};
+        return new byte[]{(byte) 0xA2, 41};
+    }
+
+    /**
+     * Bring the card to the state of the scenario.
+     *
+     * @return memory image every iteration starts from
+     */
+    private byte[] prepare(Scenario scenario, CardSimulator card, Ticket ticket) throws Exception {
+        if (scenario != Scenario.ISSUE_BLANK_CARD) {
+            ticket.issue(daysValid, uses);
+        }
+        if (scenario == Scenario.USE_REPEAT || scenario == Scenario.USE_DOUBLE_TAP
+                || scenario == Scenario.USE_EXPIRED) {
+            ticket.use();
+        }
+        if (scenario == Scenario.USE_REPEAT) {
+            // first use a while ago, so the waiting time between two uses has passed
+            backdateFirstUse(card, 30);
+        }
+        if (scenario == Scenario.USE_EXPIRED) {
+            backdateFirstUse(card, 100 * 86400);
+        }
+        if (scenario == Scenario.USE_V1_CARD) {
+            // unused tickets written by the previous version, converted on the tap
+            toVersion1(card);
+        }
+        return card.getMemory();
+    }
+
+    /**
+     * Move the first use of the ticket on the card into the past, with valid MACs.
+     */
+    private void backdateFirstUse(CardSimulator card, int seconds) throws Exception {
+        byte[] pages = ticketPages(card);
+        TicketLayout ticket = new TicketLayout().wrap(pages, 0);
+        TicketMac mac = cardMac(card);
+        int firstUse = (int) (System.currentTimeMillis() / 1000) - seconds;
+        ticket.setIssued(firstUse);
+        ticket.setStaticMac(mac.generateMac(pages, 0, TicketLayout.STATIC_DATA_LENGTH));
+        ticket.setFirstUse(firstUse);
+        ticket.setFirstUseMac(mac.generateMac(pages, TicketLayout.FIRST_USE_DATA, TicketLayout.FIRST_USE_DATA_LENGTH));
+        ticket.setLastUse(0);
+        card.setPages(page(TicketLayout.FIRST_PAGE), Arrays.copyOf(pages, 9 * 4));
+    }
+
+    /**
+     * Rewrite the unused tickets on the card in the v1.0 layout.
+     */
+    private void toVersion1(CardSimulator card) throws Exception {
+        byte[] pages = ticketPages(card);
+        TicketLayout ticket = new TicketLayout().wrap(pages, 0);
+        TicketMac mac = cardMac(card);
+        int ticketCount = ticket.getTicketCount();
+        int validFor = ticket.getValidFor();
+        ticket.setVersion(TicketLayout.V1);
+        ticket.setTicketCount(ticketCount);
+        ticket.setValidFor(validFor);
+        ticket.setStaticMac(mac.generateMac(pages, 0, TicketLayout.STATIC_DATA_LENGTH));
+        ticket.setFirstUse(0);
+        ticket.setLastUse(0);
+        ticket.setDynamicMac(mac.generateMac(pages, TicketLayout.FIRST_USE, TicketLayout.DYNAMIC_DATA_LENGTH));
+        card.setPages(page(TicketLayout.FIRST_PAGE), Arrays.copyOf(pages, 9 * 4));
+    }
+
+    /**
+     * @return pages 31 - 39 of the ticket and the pages that follow them on the card
+     */
+    private static byte[] ticketPages(CardSimulator card) {
+        int first = page(TicketLayout.FIRST_PAGE);
+        return Arrays.copyOfRange(card.getMemory(), first * 4, (first + TicketLayout.PAGES) * 4);
+    }
+
+    /**
+     * @return page of the simulated card an Ultralight C page is stored on
+     */
+    private static int page(int page) {
+        return Reader.getFamily().physicalPage(page);
+    }
+
+    private TicketMac cardMac(CardSimulator card) throws Exception {
+        TicketMac mac = new TicketMac();
+        mac.setKey(Ticket.generateDiversifiedKey(new String(keys.ourHMACKey), uidString(card)));
+        return mac;
+    }
+
+    /**
+     * @return UID of the card as the ticket uses it
+     */
+    private static String uidString(CardSimulator card) {
+        byte[] uidBytes = Arrays.copyOfRange(card.getMemory(), 0, 8);
+        return new String(Base64.getEncoder().encode(uidBytes));
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static byte[] toBytes(long seconds) {
+        return ByteBuffer.allocate(4).putInt((int) seconds).array();
+    }
+}
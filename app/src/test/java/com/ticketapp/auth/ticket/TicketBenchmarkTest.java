@@ -0,0 +1,24 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.LatencyModel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A few iterations of the {@link TicketBenchmark}, to keep it working. Fails if any iteration
+ * had an unexpected outcome or did not count a ride exactly once. The full benchmark runs
+ * with {@code ./gradlew ticketBenchmark}.
+ */
+public class TicketBenchmarkTest {
+
+    @Test
+    public void allScenariosGiveTheExpectedOutcome() throws Exception {
+        TicketContext context = new TicketContext("BREAKMEIFYOUCAN!".getBytes(),
+                "0123456789abcdef".getBytes(), "fedcba9876543210".getBytes(), null);
+        TicketBenchmark benchmark = new TicketBenchmark(context, new LatencyModel(), 2);
+        benchmark.run();
+        assertEquals(0, benchmark.getFailures());
+    }
+}
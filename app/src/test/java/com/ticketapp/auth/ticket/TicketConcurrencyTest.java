@@ -0,0 +1,101 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.CardSimulator;
+import com.ticketapp.auth.app.ulctools.LatencyModel;
+import com.ticketapp.auth.app.ulctools.Reader;
+import com.ticketapp.auth.app.ulctools.UltralightCSimulator;
+import com.ticketapp.auth.app.ulctools.UltralightEV1Simulator;
+import com.ticketapp.auth.ticket.TicketMetrics.Operation;
+import com.ticketapp.auth.ticket.TicketResult.Outcome;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Several gates validating at the same time, each on a thread with a simulated card bound to
+ * it, all with the tickets of one {@link TicketContext}.
+ */
+public class TicketConcurrencyTest {
+    private static final int THREADS = 8;
+    private static final int CARDS_PER_THREAD = 25;
+
+    private final TicketContext context = new TicketContext("BREAKMEIFYOUCAN!".getBytes(),
+            "0123456789abcdef".getBytes(), "fedcba9876543210".getBytes(), null);
+
+    @Test
+    public void everyRideIsCountedExactlyOnce() throws Exception {
+        final List<List<String>> failures = new ArrayList<List<String>>();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] gates = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int gate = t;
+            final List<String> failed = new ArrayList<String>();
+            failures.add(failed);
+            gates[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < CARDS_PER_THREAD; i++) validate(gate, i, failed);
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            }, "gate-" + t);
+            gates[t].start();
+        }
+        start.countDown();
+        for (Thread gate : gates) gate.join();
+
+        if (error.get() != null) throw new AssertionError(error.get());
+        for (List<String> failed : failures) assertEquals(new ArrayList<String>(), failed);
+        int cards = THREADS * CARDS_PER_THREAD;
+        assertEquals(cards, context.getMetrics().getTaps(Operation.ISSUE, Outcome.ISSUED));
+        assertEquals(cards, context.getMetrics().getTaps(Operation.USE, Outcome.VALIDATED_FIRST_USE));
+        assertEquals(cards, context.getKeyStates().size());
+        assertEquals(cards, context.getCounterIndex().size());
+    }
+
+    /**
+     * Issue tickets to a new card and use one, on the calling thread. Every other card loses
+     * the answer to the counter increment, which the ticket has to find out on the card.
+     */
+    private void validate(int gate, int number, List<String> failed) throws Exception {
+        byte[] uid = {0x04, (byte) gate, (byte) number, 0x56, 0x78, (byte) 0x9A, (byte) 0xBC};
+        boolean ultralightC = (gate + number) % 2 == 0;
+        CardSimulator card = ultralightC ? new UltralightCSimulator(uid) : new UltralightEV1Simulator(uid);
+        card.setLatencyModel(LatencyModel.none());
+        Reader.bind(card);
+        try {
+            Ticket ticket = new Ticket(context);
+            Reader.connect();
+            if (!ticket.issue(2, 3)) failed.add(name(card, number) + ": " + ticket.getResult().getOutcome());
+            Reader.disconnect();
+
+            int counter = card.getCounter();
+            if (number % 2 == 1) {
+                card.loseAnswer(ultralightC ? new byte[]{(byte) 0xA2, 41} : new byte[]{(byte) 0xA5});
+            }
+            Reader.setCard(card);
+            Reader.connect();
+            if (!ticket.use()) failed.add(name(card, number) + ": " + ticket.getResult().getOutcome());
+            if (card.getCounter() != counter + 1) {
+                failed.add(name(card, number) + ": counter " + counter + " -> " + card.getCounter());
+            }
+        } finally {
+            Reader.disconnect();
+            Reader.unbind();
+        }
+    }
+
+    private static String name(CardSimulator card, int number) {
+        return Thread.currentThread().getName() + " card " + number + " (" + card.getClass().getSimpleName() + ")";
+    }
+}
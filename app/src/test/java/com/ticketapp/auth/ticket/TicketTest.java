@@ -0,0 +1,186 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.app.ulctools.LatencyModel;
+import com.ticketapp.auth.app.ulctools.Reader;
+import com.ticketapp.auth.app.ulctools.UltralightCSimulator;
+import com.ticketapp.auth.ticket.TicketResult.Outcome;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Taps on cards of the previous version, which are converted to the current layout.
+ */
+public class TicketTest {
+    private static final byte[] UID = {0x04, 0x12, 0x34, 0x56, 0x78, (byte) 0x9A, (byte) 0xBC};
+    private static final String HMAC_KEY = "fedcba9876543210";
+
+    private final TicketContext context = new TicketContext("BREAKMEIFYOUCAN!".getBytes(),
+            "0123456789abcdef".getBytes(), HMAC_KEY.getBytes(), null);
+    private TearingCard card;
+    private Ticket ticket;
+
+    @Before
+    public void setUp() throws Exception {
+        card = new TearingCard(UID);
+        card.setLatencyModel(LatencyModel.none());
+        Reader.bind(card);
+        Reader.connect();
+        ticket = new Ticket(context);
+        assertTrue(ticket.issue(2, 3));
+        // the first ride
+        tap();
+        assertTrue(ticket.use());
+    }
+
+    @After
+    public void tearDown() {
+        Reader.unbind();
+    }
+
+    @Test
+    public void doubleTapOnPreviousVersionWritesNothing() throws Exception {
+        int now = (int) (System.currentTimeMillis() / 1000);
+        toVersion1(now - 60, now - 2);
+        int counter = card.getCounter();
+        tap();
+        assertFalse(ticket.use());
+        assertEquals(Outcome.TOO_SOON, ticket.getResult().getOutcome());
+        assertEquals(0, card.getWrites());
+        assertEquals(counter, card.getCounter());
+        assertEquals(TicketLayout.V1, layout().getVersion());
+    }
+
+    @Test
+    public void previousVersionIsConvertedOnARepeatRide() throws Exception {
+        int now = (int) (System.currentTimeMillis() / 1000);
+        toVersion1(now - 60, 0);
+        int counter = card.getCounter();
+        tap();
+        assertTrue(ticket.use());
+        assertEquals(Outcome.VALIDATED, ticket.getResult().getOutcome());
+        assertEquals(counter + 1, card.getCounter());
+        TicketLayout layout = layout();
+        assertEquals(TicketLayout.V2, layout.getVersion());
+        assertEquals(now - 60, layout.getFirstUse());
+    }
+
+    @Test
+    public void previousVersionWithTooManyTicketsIsNotConverted() throws Exception {
+        int now = (int) (System.currentTimeMillis() / 1000);
+        toVersion1(now - 60, 0, TicketLayout.MAX_COMPACT + 1);
+        tap();
+        assertFalse(ticket.use());
+        assertEquals(Outcome.INVALID_VERSION, ticket.getResult().getOutcome());
+        assertEquals(0, card.getWrites());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compactFieldsRefuseValuesThatDoNotFit() {
+        TicketLayout layout = new TicketLayout().wrap(new byte[TicketLayout.SIZE], 0);
+        layout.setVersion(TicketLayout.V2);
+        layout.setTicketCount(TicketLayout.MAX_COMPACT + 1);
+    }
+
+    @Test
+    public void conversionTornBeforeTheFirstUseMacIsRepaired() throws Exception {
+        int now = (int) (System.currentTimeMillis() / 1000);
+        toVersion1(now - 60, 0);
+        int counter = card.getCounter();
+        card.tearAfterPage = TicketLayout.page(TicketLayout.STATIC_MAC);
+        tap();
+        assertFalse(ticket.use());
+        // converted, but with the v1.0 MAC of the first use left on page 39
+        assertEquals(TicketLayout.V2, layout().getVersion());
+        assertEquals(counter, card.getCounter());
+
+        card.removeAfter(-1);
+        tap();
+        assertTrue(ticket.use());
+        assertEquals(Outcome.VALIDATED, ticket.getResult().getOutcome());
+        assertEquals(counter + 1, card.getCounter());
+        byte[] pages = ticketPages();
+        TicketLayout layout = new TicketLayout().wrap(pages, 0);
+        assertTrue(layout.firstUseMacMatches(cardMac().generateMac(pages, TicketLayout.FIRST_USE_DATA,
+                TicketLayout.FIRST_USE_DATA_LENGTH)));
+    }
+
+    /**
+     * Ultralight C that can be taken out of the field right after a page was written.
+     */
+    private static class TearingCard extends UltralightCSimulator {
+        int tearAfterPage = -1;
+
+        TearingCard(byte[] uid) {
+            super(uid);
+        }
+
+        @Override
+        protected byte[] answer(byte[] data) throws IOException {
+            byte[] response = super.answer(data);
+            if (data[0] == (byte) 0xA2 && (data[1] & 0xFF) == tearAfterPage) {
+                tearAfterPage = -1;
+                removeAfter(0);
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Start a new tap on the same card, as the next gate would.
+     */
+    private void tap() {
+        Reader.disconnect();
+        Reader.setCard(card);
+        Reader.connect();
+        context.getRecentTaps().clear();
+        card.resetCounters();
+    }
+
+    /**
+     * Rewrite the tickets on the card in the v1.0 layout, used since the given time.
+     */
+    private void toVersion1(int firstUse, int lastUse) throws Exception {
+        toVersion1(firstUse, lastUse, layout().getTicketCount());
+    }
+
+    private void toVersion1(int firstUse, int lastUse, int ticketCount) throws Exception {
+        byte[] pages = ticketPages();
+        TicketLayout layout = new TicketLayout().wrap(pages, 0);
+        int validFor = layout.getValidFor();
+        layout.setVersion(TicketLayout.V1);
+        layout.setTicketCount(ticketCount);
+        layout.setValidFor(validFor);
+        TicketMac mac = cardMac();
+        layout.setStaticMac(mac.generateMac(pages, 0, TicketLayout.STATIC_DATA_LENGTH));
+        layout.setFirstUse(firstUse);
+        layout.setLastUse(lastUse);
+        layout.setDynamicMac(mac.generateMac(pages, TicketLayout.FIRST_USE, TicketLayout.DYNAMIC_DATA_LENGTH));
+        card.setPages(TicketLayout.FIRST_PAGE, Arrays.copyOf(pages, 9 * 4));
+    }
+
+    private TicketLayout layout() {
+        return new TicketLayout().wrap(ticketPages(), 0);
+    }
+
+    private byte[] ticketPages() {
+        int first = TicketLayout.FIRST_PAGE;
+        return Arrays.copyOfRange(card.getMemory(), first * 4, (first + TicketLayout.PAGES) * 4);
+    }
+
+    private TicketMac cardMac() throws Exception {
+        String uid = new String(Base64.getEncoder().encode(Arrays.copyOf(card.getMemory(), 8)));
+        TicketMac mac = new TicketMac();
+        mac.setKey(Ticket.generateDiversifiedKey(HMAC_KEY, uid));
+        return mac;
+    }
+}
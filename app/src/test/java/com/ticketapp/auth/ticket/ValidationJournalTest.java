@@ -0,0 +1,87 @@
+package com.ticketapp.auth.ticket;
+
+import com.ticketapp.auth.ticket.TicketMetrics.Operation;
+import com.ticketapp.auth.ticket.TicketResult.Outcome;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ValidationJournalTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("journal", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void recordsGoOnInTheNextSegment() throws IOException {
+        ValidationJournal journal = new ValidationJournal(dir, 4, 3);
+        for (int i = 0; i < 6; i++) append(journal, i);
+        journal.flush();
+        ArrayList<File> segments = journal.getSegments();
+        assertEquals(2, segments.size());
+        assertEquals(4, lines(segments.get(0)));
+        assertEquals(2, lines(segments.get(1)));
+        // the full segment and the current one, the commit thread may have split them further
+        assertTrue(journal.getCommits() >= 2);
+    }
+
+    @Test
+    public void onlyTheNewestSegmentsAreKept() throws IOException {
+        ValidationJournal journal = new ValidationJournal(dir, 2, 2);
+        for (int i = 0; i < 9; i++) {
+            append(journal, i);
+            journal.flush();
+        }
+        ArrayList<File> segments = journal.getSegments();
+        assertEquals(2, segments.size());
+        assertEquals(2, lines(segments.get(0)));
+        assertEquals(1, lines(segments.get(1)));
+        assertTrue(ValidationJournal.toText(segments.get(1)).contains("remaining 8"));
+        // the older segments are gone, the next one may be mapped already
+        for (String name : dir.list()) {
+            assertTrue(name, name.compareTo(segments.get(0).getName()) >= 0);
+        }
+    }
+
+    @Test
+    public void aReopenedJournalContinuesAfterTheLastRecord() throws IOException {
+        ValidationJournal journal = new ValidationJournal(dir, 4, 3);
+        for (int i = 0; i < 3; i++) append(journal, i);
+        journal.flush();
+        journal = new ValidationJournal(dir, 4, 3);
+        append(journal, 3);
+        journal.flush();
+        ArrayList<File> segments = journal.getSegments();
+        assertEquals(4, lines(segments.get(segments.size() - 1)));
+    }
+
+    private static void append(ValidationJournal journal, int remaining) {
+        journal.append(Operation.USE, new byte[8], remaining, remaining + 1,
+                TicketResult.of(Outcome.VALIDATED, remaining, 0));
+    }
+
+    private static int lines(File segment) throws IOException {
+        String text = ValidationJournal.toText(segment);
+        return text.isEmpty() ? 0 : text.split("\n").length;
+    }
+}